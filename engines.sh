@@ -27,7 +27,8 @@ function prime_server() {
   ./autogen.sh
   ./configure
   make test -j8
-  #sudo make install
+  # valhalla needs prime_server installed to build valhalla_service with its http service
+  sudo make install
   cd ..
 }
 
@@ -43,7 +44,7 @@ function valhalla() {
   if [ -d build ] ; then rm -rf build; fi
   mkdir build
   cd build || exit 1
-  cmake .. -DCMAKE_BUILD_TYPE=Release -DDENABLE_STATIC_LIBRARY_MODULES=On -DDENABLE_GDAL=OFF -DENABLE_SERVICES=OFF
+  cmake .. -DCMAKE_BUILD_TYPE=Release -DDENABLE_STATIC_LIBRARY_MODULES=On -DDENABLE_GDAL=OFF -DENABLE_SERVICES=ON
   make -j"$(nproc)"
   make package
   #sudo make install
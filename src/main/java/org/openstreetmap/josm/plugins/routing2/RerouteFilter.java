@@ -0,0 +1,134 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.PseudoCommand;
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RoutablePrimitives;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+/**
+ * Decide if a command can change a route. Only commands that touch routable primitives near the current route, or
+ * near the locations the route must pass through, are relevant. Without a route, everything between the locations
+ * is relevant.
+ */
+final class RerouteFilter {
+    private final DataSet dataSet;
+    private final List<BBox> areas = new ArrayList<>();
+
+    /**
+     * Create a new filter
+     * @param dataSet The data set that is routed on
+     * @param trip The current trip, may be {@code null}
+     * @param buffer The distance around the trip and locations that is still relevant, in meters
+     * @param locations The locations the route must pass through
+     */
+    RerouteFilter(DataSet dataSet, Trip trip, double buffer, ILatLon... locations) {
+        this.dataSet = dataSet;
+        final ILatLon[] known = Arrays.stream(locations).filter(Objects::nonNull).toArray(ILatLon[]::new);
+        if (trip == null && known.length > 0) {
+            // The route is still being calculated or none was found, so any edit between the locations may connect them
+            this.areas.add(RoutablePrimitives.buffered(buffer, known));
+        } else if (trip != null) {
+            final Trip.Summary summary = trip.summary();
+            if (summary != null && !Double.isNaN(summary.min_lat() + summary.min_lon() + summary.max_lat()
+                    + summary.max_lon())) {
+                this.areas.add(RoutablePrimitives.buffered(summary.min_lat(), summary.min_lon(), summary.max_lat(),
+                        summary.max_lon(), buffer));
+            } else if (trip.legs() != null) {
+                // Older responses may not have the bounds in the summary
+                for (Legs leg : trip.legs()) {
+                    final double[] shape = leg.shape();
+                    if (shape != null && shape.length >= 2) {
+                        final BBox bbox = new BBox(shape[1], shape[0]);
+                        for (int i = 2; i < shape.length; i += 2) {
+                            bbox.add(shape[i + 1], shape[i]);
+                        }
+                        this.areas.add(RoutablePrimitives.buffered(bbox.getBottomRightLat(),
+                                bbox.getTopLeftLon(), bbox.getTopLeftLat(), bbox.getBottomRightLon(), buffer));
+                    }
+                }
+            }
+        }
+        for (ILatLon location : known) {
+            // This is the area that valhalla searches for the nearest edge to the location
+            this.areas.add(RoutablePrimitives.buffered(buffer, location));
+        }
+    }
+
+    /**
+     * Check if a command can change the route
+     * @param command The command that was added, undone or redone
+     * @return {@code true} if the route should be calculated again
+     */
+    boolean isRelevant(Command command) {
+        if (this.dataSet == null || command.getAffectedDataSet() != this.dataSet) {
+            return false;
+        }
+        // Removing a routing tag makes a primitive unroutable, but it was routable before the command
+        final boolean routingKeys = changesRoutingKeys(command);
+        for (OsmPrimitive primitive : command.getParticipatingPrimitives()) {
+            if ((routingKeys || RoutablePrimitives.isRoutable(primitive)) && isNearby(primitive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isNearby(OsmPrimitive primitive) {
+        if (intersects(primitive.getBBox())) {
+            return true;
+        }
+        // A node that was moved away from the route still changes the ways that it is on
+        if (primitive instanceof Node node) {
+            for (OsmPrimitive referrer : node.getReferrers()) {
+                if (referrer instanceof Way way && RoutablePrimitives.isRoutable(way) && intersects(way.getBBox())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean intersects(BBox bbox) {
+        if (bbox == null || !bbox.isValid()) {
+            // We don't know where it is, so assume the worst
+            return true;
+        }
+        for (BBox area : this.areas) {
+            if (area.intersects(bbox)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean changesRoutingKeys(PseudoCommand command) {
+        if (command instanceof ChangePropertyCommand change
+                && change.getTags().keySet().stream().anyMatch(RoutablePrimitives::isRoutingKey)) {
+            return true;
+        }
+        final Collection<? extends PseudoCommand> children = command.getChildren();
+        if (children != null) {
+            for (PseudoCommand child : children) {
+                if (changesRoutingKeys(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
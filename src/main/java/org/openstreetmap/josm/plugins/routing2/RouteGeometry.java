@@ -0,0 +1,572 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.PackedRTree;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+/**
+ * A trip projected to east/north coordinates. This is computed once per trip (and projection), so painting only
+ * needs to apply the view transform.
+ */
+final class RouteGeometry {
+    /** The number of segments in each entry of the segment index */
+    private static final int CHUNK_SIZE = 32;
+
+    /**
+     * The range of points to highlight for a maneuver
+     * @param leg The index of the leg
+     * @param maneuver The index of the maneuver in the leg
+     * @param start The first point to highlight
+     * @param end The last point to highlight (inclusive)
+     */
+    record Range(int leg, int maneuver, int start, int end) {}
+
+    /**
+     * A simplified version of a leg
+     * @param tolerance The maximum distance (in east/north units) between the simplified and the original shape
+     * @param indices The index of each point in the original shape, or {@code null} if this is the original shape
+     * @param points The points in east/north pairs
+     */
+    record Level(double tolerance, int[] indices, double[] points) {
+        /**
+         * Map the index of a point in the original shape to this level
+         * @param index The original index
+         * @return The index of the first point of this level at or after {@code index}
+         */
+        int map(int index) {
+            if (this.indices == null) {
+                return index;
+            }
+            final int found = Arrays.binarySearch(this.indices, index);
+            return Math.min(found >= 0 ? found : -found - 1, this.indices.length - 1);
+        }
+
+        /**
+         * Map the index of a point in the original shape to this level
+         * @param index The original index
+         * @return The index of the last point of this level at or before {@code index}
+         */
+        int floor(int index) {
+            if (this.indices == null) {
+                return index;
+            }
+            final int found = Arrays.binarySearch(this.indices, index);
+            return Math.max(found >= 0 ? found : -found - 2, 0);
+        }
+    }
+
+    /**
+     * A projected leg
+     * @param points The points in east/north pairs
+     * @param maneuvers The maneuvers of the leg
+     * @param maneuverPoints The index of the point each maneuver starts at
+     * @param arrowAngles The screen rotation of the arrow for each maneuver, or {@link Double#NaN} for no arrow
+     * @param levels The simplified versions of the leg, coarsest first. The last level is the original shape.
+     */
+    record Leg(double[] points, Maneuver[] maneuvers, int[] maneuverPoints, double[] arrowAngles,
+               Level[] levels) {
+        /**
+         * Get the coarsest level that is accurate to a tolerance
+         * @param tolerance The tolerance in east/north units
+         * @return The level to paint
+         */
+        Level level(double tolerance) {
+            for (Level level : this.levels) {
+                if (level.tolerance() <= tolerance) {
+                    return level;
+                }
+            }
+            return this.levels[this.levels.length - 1];
+        }
+    }
+
+    private final Trip trip;
+    private final Projection projection;
+    private final Leg[] legs;
+    private final double[] locations;
+    private final Map<Maneuver, Range> ranges;
+    /** Chunks of {@link #CHUNK_SIZE} segments, numbered in leg order */
+    private final PackedRTree segments;
+    private final int[] chunkLegs;
+    private final int[] chunkStarts;
+    /** Maneuver start points, numbered in leg order */
+    private final PackedRTree maneuvers;
+    private final int[] maneuverLegs;
+    private final int[] maneuverIndices;
+
+    /**
+     * Project a trip
+     * @param trip The trip to project
+     * @param projection The projection to use
+     */
+    RouteGeometry(Trip trip, Projection projection) {
+        this.trip = trip;
+        this.projection = projection;
+        this.legs = new Leg[trip.legs().length];
+        for (int i = 0; i < this.legs.length; i++) {
+            this.legs[i] = project(trip.legs()[i], projection);
+        }
+        if (trip.locations() != null) {
+            this.locations = new double[2 * trip.locations().length];
+            for (int i = 0; i < trip.locations().length; i++) {
+                final EastNorth en = projection.latlon2eastNorth(trip.locations()[i]);
+                this.locations[2 * i] = en.east();
+                this.locations[2 * i + 1] = en.north();
+            }
+        } else {
+            this.locations = new double[0];
+        }
+
+        int chunkCount = 0;
+        int maneuverCount = 0;
+        for (Leg leg : this.legs) {
+            chunkCount += chunks(leg);
+            maneuverCount += leg.maneuvers().length;
+        }
+        this.chunkLegs = new int[chunkCount];
+        this.chunkStarts = new int[chunkCount];
+        this.maneuverLegs = new int[maneuverCount];
+        this.maneuverIndices = new int[maneuverCount];
+        this.ranges = new HashMap<>(maneuverCount * 4 / 3 + 1);
+        final double[] chunkBoxes = new double[4 * chunkCount];
+        final double[] maneuverBoxes = new double[4 * maneuverCount];
+        int chunk = 0;
+        int maneuver = 0;
+        for (int l = 0; l < this.legs.length; l++) {
+            final Leg leg = this.legs[l];
+            final double[] points = leg.points();
+            final int last = points.length / 2 - 1;
+            for (int start = 0; start < last; start += CHUNK_SIZE, chunk++) {
+                this.chunkLegs[chunk] = l;
+                this.chunkStarts[chunk] = start;
+                double minEast = Double.POSITIVE_INFINITY;
+                double minNorth = Double.POSITIVE_INFINITY;
+                double maxEast = Double.NEGATIVE_INFINITY;
+                double maxNorth = Double.NEGATIVE_INFINITY;
+                for (int i = start; i <= Math.min(last, start + CHUNK_SIZE); i++) {
+                    minEast = Math.min(minEast, points[2 * i]);
+                    maxEast = Math.max(maxEast, points[2 * i]);
+                    minNorth = Math.min(minNorth, points[2 * i + 1]);
+                    maxNorth = Math.max(maxNorth, points[2 * i + 1]);
+                }
+                chunkBoxes[4 * chunk] = minEast;
+                chunkBoxes[4 * chunk + 1] = minNorth;
+                chunkBoxes[4 * chunk + 2] = maxEast;
+                chunkBoxes[4 * chunk + 3] = maxNorth;
+            }
+            for (int m = 0; m < leg.maneuvers().length; m++, maneuver++) {
+                final Maneuver value = leg.maneuvers()[m];
+                final int start = leg.maneuverPoints()[m];
+                this.maneuverLegs[maneuver] = l;
+                this.maneuverIndices[maneuver] = m;
+                maneuverBoxes[4 * maneuver] = points[2 * start];
+                maneuverBoxes[4 * maneuver + 1] = points[2 * start + 1];
+                maneuverBoxes[4 * maneuver + 2] = points[2 * start];
+                maneuverBoxes[4 * maneuver + 3] = points[2 * start + 1];
+                this.ranges.putIfAbsent(value,
+                        new Range(l, m, start, Math.max(start, Math.min(value.endShape(), last))));
+            }
+        }
+        this.segments = new PackedRTree(chunkBoxes);
+        this.maneuvers = new PackedRTree(maneuverBoxes);
+    }
+
+    private static int chunks(Leg leg) {
+        final int segmentCount = leg.points().length / 2 - 1;
+        return segmentCount <= 0 ? 0 : (segmentCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    private static Leg project(Legs leg, Projection projection) {
+        final double[] shape = leg.shape() == null ? new double[0] : leg.shape();
+        final double[] points = new double[shape.length];
+        double minEast = Double.POSITIVE_INFINITY;
+        double minNorth = Double.POSITIVE_INFINITY;
+        double maxEast = Double.NEGATIVE_INFINITY;
+        double maxNorth = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < shape.length; i += 2) {
+            final EastNorth en = projection.latlon2eastNorth(new LatLon(shape[i], shape[i + 1]));
+            points[i] = en.east();
+            points[i + 1] = en.north();
+            minEast = Math.min(minEast, points[i]);
+            maxEast = Math.max(maxEast, points[i]);
+            minNorth = Math.min(minNorth, points[i + 1]);
+            maxNorth = Math.max(maxNorth, points[i + 1]);
+        }
+        final int count = points.length / 2;
+        // Without a shape, there is nowhere to draw the maneuvers
+        final Maneuver[] maneuvers = count == 0 || leg.maneuvers() == null ? new Maneuver[0] : leg.maneuvers();
+        final int[] maneuverPoints = new int[maneuvers.length];
+        final double[] arrowAngles = new double[maneuvers.length];
+        for (int m = 0; m < maneuvers.length; m++) {
+            final int i = Math.min(Math.max(0, maneuvers[m].startShape()), count - 1);
+            maneuverPoints[m] = i;
+            arrowAngles[m] = arrowAngle(maneuvers[m].type(), points, i);
+        }
+        final Level[] levels = count == 0 ? new Level[] {new Level(0, null, points)}
+                : levels(points, maneuvers, Math.max(maxEast - minEast, maxNorth - minNorth));
+        return new Leg(points, maneuvers, maneuverPoints, arrowAngles, levels);
+    }
+
+    /**
+     * Build the simplified levels for a leg. Each level has at most half of the points of the next finer level, so
+     * all levels together use at most twice the memory of the original shape.
+     * @param points The points in east/north pairs
+     * @param maneuvers The maneuvers, whose start and end points are kept at every level
+     * @param size The size of the leg in east/north units
+     * @return The levels, coarsest first
+     */
+    private static Level[] levels(double[] points, Maneuver[] maneuvers, double size) {
+        final int count = points.length / 2;
+        final double[] significance = significance(points, maneuvers);
+        final List<Level> levels = new ArrayList<>();
+        levels.add(new Level(0, null, points));
+        int kept = count;
+        // Start at roughly a millionth of the leg, and stop when only the forced points are left
+        for (double tolerance = size / (1 << 20); kept > 2 && tolerance < size; tolerance *= 2) {
+            int levelCount = 0;
+            for (double value : significance) {
+                if (value > tolerance) {
+                    levelCount++;
+                }
+            }
+            if (levelCount > kept / 2) {
+                continue;
+            }
+            final int[] indices = new int[levelCount];
+            final double[] levelPoints = new double[2 * levelCount];
+            for (int i = 0, j = 0; i < count; i++) {
+                if (significance[i] > tolerance) {
+                    indices[j] = i;
+                    levelPoints[2 * j] = points[2 * i];
+                    levelPoints[2 * j + 1] = points[2 * i + 1];
+                    j++;
+                }
+            }
+            levels.add(new Level(tolerance, indices, levelPoints));
+            kept = levelCount;
+        }
+        Collections.reverse(levels);
+        return levels.toArray(new Level[0]);
+    }
+
+    /**
+     * Compute the Douglas-Peucker tolerance at which each point is removed. A point is kept at a tolerance if its
+     * significance is greater than that tolerance. The significance of a point is never greater than that of the
+     * point that split its parent range, so every level is a subset of the finer levels.
+     * @param points The points in east/north pairs
+     * @param maneuvers The maneuvers, whose start and end points are always kept
+     * @return The significance of each point
+     */
+    private static double[] significance(double[] points, Maneuver[] maneuvers) {
+        final int count = points.length / 2;
+        final double[] significance = new double[count];
+        significance[0] = Double.POSITIVE_INFINITY;
+        significance[count - 1] = Double.POSITIVE_INFINITY;
+        for (Maneuver maneuver : maneuvers) {
+            significance[Math.max(0, Math.min(maneuver.startShape(), count - 1))] = Double.POSITIVE_INFINITY;
+            significance[Math.max(0, Math.min(maneuver.endShape(), count - 1))] = Double.POSITIVE_INFINITY;
+        }
+        // Ranges to split as (first, last, parent significance) triples; avoid recursion for large shapes
+        final Deque<double[]> ranges = new ArrayDeque<>();
+        ranges.push(new double[] {0, count - 1, Double.POSITIVE_INFINITY});
+        while (!ranges.isEmpty()) {
+            final double[] range = ranges.pop();
+            final int first = (int) range[0];
+            final int last = (int) range[1];
+            if (last - first < 2) {
+                continue;
+            }
+            int split = first + 1;
+            double max = -1;
+            for (int i = first + 1; i < last; i++) {
+                final double distance = distance(points[2 * i], points[2 * i + 1], points, first, last);
+                if (distance > max) {
+                    max = distance;
+                    split = i;
+                }
+            }
+            final double value = Math.min(max, range[2]);
+            significance[split] = Math.max(significance[split], value);
+            ranges.push(new double[] {first, split, value});
+            ranges.push(new double[] {split, last, value});
+        }
+        return significance;
+    }
+
+    /**
+     * Get the distance from a point to a segment
+     * @param x The east coordinate of the point
+     * @param y The north coordinate of the point
+     * @param points The points in east/north pairs
+     * @param first The start of the segment
+     * @param last The end of the segment
+     * @return The distance
+     */
+    private static double distance(double x, double y, double[] points, int first, int last) {
+        final double x1 = points[2 * first];
+        final double y1 = points[2 * first + 1];
+        final double dx = points[2 * last] - x1;
+        final double dy = points[2 * last + 1] - y1;
+        final double lengthSquared = dx * dx + dy * dy;
+        final double t = lengthSquared == 0 ? 0
+                : Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        return Math.hypot(x - (x1 + t * dx), y - (y1 + t * dy));
+    }
+
+    /**
+     * Get the screen rotation for a maneuver arrow. The view transform only scales and flips the north axis, so this
+     * does not depend on the view.
+     * @param type The maneuver type
+     * @param points The leg points
+     * @param i The index of the maneuver point
+     * @return The rotation, or {@link Double#NaN} if no arrow should be painted
+     */
+    private static double arrowAngle(Maneuver.Type type, double[] points, int i) {
+        final double turnAngle = switch (type) {
+        case RIGHT, DESTINATION_RIGHT, EXIT_RIGHT, START_RIGHT -> Math.PI / 2;
+        case LEFT, DESTINATION_LEFT, EXIT_LEFT, START_LEFT -> 3 * Math.PI / 2;
+        // Don't bother painting arrows
+        case NONE -> Double.NaN;
+        default -> Double.NaN;
+        };
+        if (Double.isNaN(turnAngle) || i < 0) {
+            return Double.NaN;
+        }
+        // Rotate relative to the previous point (or away from the next point for the first point)
+        final int other;
+        if (i > 0) {
+            other = i - 1;
+        } else if (points.length > 2) {
+            other = i + 1;
+        } else {
+            return turnAngle;
+        }
+        // Screen y increases to the south
+        final double dx = points[2 * i] - points[2 * other];
+        final double dy = points[2 * other + 1] - points[2 * i + 1];
+        return Math.atan2(dy, dx) + Math.PI / 2 + turnAngle;
+    }
+
+    /**
+     * Get the trip this geometry was created from
+     * @return The trip
+     */
+    Trip trip() {
+        return this.trip;
+    }
+
+    /**
+     * Check if this geometry is valid for a projection
+     * @param other The projection to check
+     * @return {@code true} if this geometry was projected with {@code other}
+     */
+    boolean isProjectedWith(Projection other) {
+        return this.projection == other;
+    }
+
+    /**
+     * Get the projected legs
+     * @return The legs
+     */
+    Leg[] legs() {
+        return this.legs;
+    }
+
+    /**
+     * Get the projected locations
+     * @return The locations in east/north pairs
+     */
+    double[] locations() {
+        return this.locations;
+    }
+
+    /**
+     * Find the points to highlight for a maneuver
+     * @param maneuver The maneuver to highlight
+     * @return The range to highlight, or {@code null} if the maneuver is not part of the trip
+     */
+    Range highlight(Maneuver maneuver) {
+        return this.ranges.get(maneuver);
+    }
+
+    /**
+     * Find the segment chunks that intersect an area
+     * @param clip The area
+     * @return The chunk ids in ascending order, so chunks of the same leg are next to each other
+     */
+    int[] visibleChunks(ProjectionBounds clip) {
+        final int[] chunks = this.segments.search(clip.minEast, clip.minNorth, clip.maxEast, clip.maxNorth);
+        Arrays.sort(chunks);
+        return chunks;
+    }
+
+    /**
+     * Get the leg a chunk is part of
+     * @param chunk The chunk id
+     * @return The leg index
+     */
+    int chunkLeg(int chunk) {
+        return this.chunkLegs[chunk];
+    }
+
+    /**
+     * Get the first point of a chunk
+     * @param chunk The chunk id
+     * @return The index of the first point in the leg
+     */
+    int chunkStart(int chunk) {
+        return this.chunkStarts[chunk];
+    }
+
+    /**
+     * Get the last point of a chunk
+     * @param chunk The chunk id
+     * @return The index of the last point in the leg (inclusive)
+     */
+    int chunkEnd(int chunk) {
+        final int last = this.legs[this.chunkLegs[chunk]].points().length / 2 - 1;
+        return Math.min(this.chunkStarts[chunk] + CHUNK_SIZE, last);
+    }
+
+    /**
+     * Find the maneuvers that start in an area
+     * @param clip The area
+     * @return The maneuver ids in ascending order, so maneuvers of the same leg are next to each other
+     */
+    int[] visibleManeuvers(ProjectionBounds clip) {
+        final int[] found = this.maneuvers.search(clip.minEast, clip.minNorth, clip.maxEast, clip.maxNorth);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Get the leg a maneuver is part of
+     * @param maneuver The maneuver id
+     * @return The leg index
+     */
+    int maneuverLeg(int maneuver) {
+        return this.maneuverLegs[maneuver];
+    }
+
+    /**
+     * Get the index of a maneuver in its leg
+     * @param maneuver The maneuver id
+     * @return The index in {@link Leg#maneuvers()}
+     */
+    int maneuverIndex(int maneuver) {
+        return this.maneuverIndices[maneuver];
+    }
+
+    /**
+     * Find the maneuver closest to a point. Maneuver start points are preferred over the segments of a maneuver.
+     * @param east The east coordinate
+     * @param north The north coordinate
+     * @param radius The maximum distance to search
+     * @return The maneuver, or {@code null} if nothing is within {@code radius}
+     */
+    Range nearest(double east, double north, double radius) {
+        double best = radius;
+        int found = -1;
+        for (int maneuver : this.maneuvers.search(east - radius, north - radius, east + radius, north + radius)) {
+            final double[] points = this.legs[this.maneuverLegs[maneuver]].points();
+            final int point = this.legs[this.maneuverLegs[maneuver]].maneuverPoints()[this.maneuverIndices[maneuver]];
+            final double distance = Math.hypot(points[2 * point] - east, points[2 * point + 1] - north);
+            if (distance <= best) {
+                best = distance;
+                found = maneuver;
+            }
+        }
+        if (found >= 0) {
+            return rangeOf(this.maneuverLegs[found], this.maneuverIndices[found]);
+        }
+        int foundLeg = -1;
+        int foundSegment = -1;
+        best = radius;
+        for (int chunk : this.segments.search(east - radius, north - radius, east + radius, north + radius)) {
+            final double[] points = this.legs[this.chunkLegs[chunk]].points();
+            for (int i = this.chunkStarts[chunk]; i < chunkEnd(chunk); i++) {
+                final double distance = distance(east, north, points, i, i + 1);
+                if (distance <= best) {
+                    best = distance;
+                    foundLeg = this.chunkLegs[chunk];
+                    foundSegment = i;
+                }
+            }
+        }
+        if (foundLeg < 0) {
+            return null;
+        }
+        // The maneuver that covers a segment is the last one that starts at or before it
+        final int[] maneuverPoints = this.legs[foundLeg].maneuverPoints();
+        int low = 0;
+        int high = maneuverPoints.length - 1;
+        int maneuver = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (maneuverPoints[mid] <= foundSegment) {
+                maneuver = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return maneuver < 0 ? null : rangeOf(foundLeg, maneuver);
+    }
+
+    private Range rangeOf(int leg, int maneuver) {
+        return this.ranges.get(this.legs[leg].maneuvers()[maneuver]);
+    }
+
+    /**
+     * Append part of a leg to a path in screen coordinates, skipping segments outside the clip
+     * @param path The path to append to
+     * @param points The leg points in east/north pairs
+     * @param start The first point (inclusive)
+     * @param end The last point (inclusive)
+     * @param transform The east/north to screen transform
+     * @param clip The visible area in east/north coordinates
+     */
+    static void appendPath(Path2D.Double path, double[] points, int start, int end, AffineTransform transform,
+            ProjectionBounds clip) {
+        final double m00 = transform.getScaleX();
+        final double m01 = transform.getShearX();
+        final double m02 = transform.getTranslateX();
+        final double m10 = transform.getShearY();
+        final double m11 = transform.getScaleY();
+        final double m12 = transform.getTranslateY();
+        boolean connected = false;
+        for (int i = start; i < end; i++) {
+            final double x0 = points[2 * i];
+            final double y0 = points[2 * i + 1];
+            final double x1 = points[2 * i + 2];
+            final double y1 = points[2 * i + 3];
+            if ((x0 < clip.minEast && x1 < clip.minEast) || (x0 > clip.maxEast && x1 > clip.maxEast)
+                    || (y0 < clip.minNorth && y1 < clip.minNorth) || (y0 > clip.maxNorth && y1 > clip.maxNorth)) {
+                connected = false;
+                continue;
+            }
+            if (!connected) {
+                path.moveTo(m00 * x0 + m01 * y0 + m02, m10 * x0 + m11 * y0 + m12);
+                connected = true;
+            }
+            path.lineTo(m00 * x1 + m01 * y1 + m02, m10 * x1 + m11 * y1 + m12);
+        }
+    }
+}
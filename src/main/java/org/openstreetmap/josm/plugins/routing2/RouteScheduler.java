@@ -0,0 +1,264 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.swing.PleaseWaitProgressMonitor;
+import org.openstreetmap.josm.plugins.routing2.lib.dataset.DataSetRouter;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.IRouter;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RouterExecutors;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.SetupException;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.TripException;
+import org.openstreetmap.josm.plugins.routing2.lib.valhalla.RemoteValhallaRouter;
+import org.openstreetmap.josm.plugins.routing2.lib.valhalla.ValhallaServer;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Schedule route calculations for {@link RoutingLayer}s.
+ * <p>
+ * Requests are debounced, so a burst of edits only causes one calculation. There is at most one job per data layer,
+ * which routes every layer that uses that data layer. If the data changes while a job is running, the job runs again
+ * once it finishes, instead of queuing one job per change. A running calculation is cancelled when its result would be
+ * thrown away anyway, which stops the router processes that it started.
+ * <p>
+ * Jobs run on virtual threads, so the routes for different data layers are calculated at the same time instead of
+ * waiting for each other.
+ */
+final class RouteScheduler {
+    private static final RouteScheduler INSTANCE = new RouteScheduler();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "routing2-reroute");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Guarded by this */
+    private final Map<OsmDataLayer, Job> jobs = new HashMap<>();
+
+    private RouteScheduler() {
+        // Hide constructor
+    }
+
+    /**
+     * Get the scheduler
+     * @return The shared scheduler
+     */
+    static RouteScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create the router chosen with {@code routing2.router}: {@code valhalla} (the default), {@code dataset}, which
+     * routes on the layer data without an external router, or {@code remote}, which sends the routes to the valhalla
+     * server at {@code routing2.valhalla.url}
+     * @return The router
+     */
+    static IRouter createRouter() {
+        final String router = Config.getPref().get("routing2.router", "valhalla");
+        if ("dataset".equals(router)) {
+            return new DataSetRouter();
+        }
+        if ("remote".equals(router)) {
+            final String url = Config.getPref().get("routing2.valhalla.url", "");
+            try {
+                if (!url.isBlank()) {
+                    return new RemoteValhallaRouter(URI.create(url.trim()));
+                }
+                Logging.warn("No routing2.valhalla.url set for the remote router, using valhalla");
+            } catch (IllegalArgumentException illegalArgumentException) {
+                Logging.warn("Invalid routing2.valhalla.url " + url + ", using valhalla");
+                Logging.trace(illegalArgumentException);
+            }
+            return new ValhallaServer();
+        }
+        if (!"valhalla".equals(router)) {
+            Logging.warn("Unknown router " + router + ", using valhalla");
+        }
+        return new ValhallaServer();
+    }
+
+    /**
+     * Calculate the route for a layer after the current burst of changes
+     * @param layer The layer to route
+     */
+    synchronized void schedule(RoutingLayer layer) {
+        final Job job = this.jobs.computeIfAbsent(layer.getDataLayer(), Job::new);
+        job.layers.add(layer);
+        job.debounce();
+    }
+
+    /**
+     * Stop routing a layer
+     * @param layer The layer to remove
+     */
+    synchronized void remove(RoutingLayer layer) {
+        final Job job = this.jobs.get(layer.getDataLayer());
+        if (job != null) {
+            job.layers.remove(layer);
+            if (job.layers.isEmpty()) {
+                job.cancel();
+                job.token.cancel();
+                if (!job.running) {
+                    this.jobs.remove(job.dataLayer);
+                }
+            }
+        }
+    }
+
+    /**
+     * The pending and running work for a data layer
+     */
+    private final class Job {
+        private final OsmDataLayer dataLayer;
+        /* The remaining fields are guarded by the scheduler */
+        private final Set<RoutingLayer> layers = new LinkedHashSet<>();
+        private ScheduledFuture<?> pending;
+        private boolean running;
+        private boolean dirty;
+        private CancellationToken token = CancellationToken.NONE;
+
+        Job(OsmDataLayer dataLayer) {
+            this.dataLayer = dataLayer;
+        }
+
+        /**
+         * Replace any pending calculation with one after the debounce delay
+         */
+        void debounce() {
+            cancel();
+            final long delay = Math.max(0, Config.getPref().getInt("routing2.reroute.delay", 500));
+            this.pending = timer.schedule(this::submit, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Cancel the pending calculation, if any
+         */
+        void cancel() {
+            if (this.pending != null) {
+                this.pending.cancel(false);
+                this.pending = null;
+            }
+        }
+
+        private void submit() {
+            synchronized (RouteScheduler.this) {
+                this.pending = null;
+                if (this.running) {
+                    // The running calculation is stale; stop it and run again with the newest data
+                    this.dirty = true;
+                    this.token.cancel();
+                    return;
+                }
+                if (this.layers.isEmpty()) {
+                    return;
+                }
+                this.running = true;
+            }
+            RouterExecutors.io().execute(this::run);
+        }
+
+        private void run() {
+            try {
+                final List<RoutingLayer> targets;
+                final CancellationToken runToken;
+                synchronized (RouteScheduler.this) {
+                    targets = new ArrayList<>(this.layers);
+                    this.token = new CancellationToken();
+                    runToken = this.token;
+                }
+                route(runToken, targets);
+            } catch (CancellationException cancellationException) {
+                Logging.debug(cancellationException);
+            } finally {
+                synchronized (RouteScheduler.this) {
+                    this.running = false;
+                    if (this.dirty && !this.layers.isEmpty()) {
+                        this.dirty = false;
+                        this.running = true;
+                        RouterExecutors.io().execute(this::run);
+                    } else if (this.layers.isEmpty()) {
+                        jobs.remove(this.dataLayer, this);
+                    }
+                }
+            }
+        }
+
+        private void route(CancellationToken runToken, List<RoutingLayer> targets) {
+            final IRouter router = createRouter();
+            if (router.shouldPerformSetup()) {
+                final PleaseWaitProgressMonitor monitor = new PleaseWaitProgressMonitor(
+                        tr("Downloading configured router"));
+                // Stop the download when the route is obsolete, and stop the route when the download is cancelled
+                CancellationToken.of(monitor).onCancel(runToken::cancel);
+                try (CancellationToken.Registration registration = runToken.onCancel(monitor::cancel)) {
+                    monitor.beginTask(tr("Download"), 1);
+                    router.performSetup(monitor);
+                } catch (SetupException setupException) {
+                    throw new JosmRuntimeException(setupException);
+                } finally {
+                    monitor.close();
+                }
+                if (monitor.isCanceled()) {
+                    return;
+                }
+            }
+            // One failed route stops the other routes, but only the scheduler and the monitor cancel the run itself
+            final CancellationToken routesToken = runToken.child();
+            final List<CompletableFuture<Trip>> trips = new ArrayList<>(targets.size());
+            for (RoutingLayer layer : targets) {
+                trips.add(router.generateRouteAsync(routesToken, this.dataLayer, layer.getStart(), layer.getEnd())
+                        .whenComplete((trip, throwable) -> {
+                            if (throwable != null) {
+                                routesToken.cancel();
+                            }
+                        }));
+            }
+            // Wait for every route to stop, so that the next run does not overlap with this one
+            CompletableFuture.allOf(trips.toArray(CompletableFuture[]::new)).exceptionally(throwable -> null).join();
+            routesToken.cancel();
+            // The routes that were stopped because of the failure are cancelled, so look for the failure itself
+            for (CompletableFuture<Trip> trip : trips) {
+                try {
+                    trip.join();
+                } catch (CancellationException cancellationException) {
+                    Logging.trace(cancellationException);
+                } catch (CompletionException completionException) {
+                    if (completionException.getCause() instanceof TripException tripException) {
+                        throw new JosmRuntimeException(tripException);
+                    } else if (completionException.getCause() instanceof CancellationException) {
+                        Logging.trace(completionException);
+                    } else if (completionException.getCause() instanceof RuntimeException runtimeException) {
+                        throw runtimeException;
+                    } else {
+                        throw completionException;
+                    }
+                }
+            }
+            // Do not publish routes for stale data
+            runToken.throwIfCancelled();
+            for (int i = 0; i < targets.size(); i++) {
+                targets.get(i).setTrip(trips.get(i).join());
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.LayerManager;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Prepare the router in the background when a data layer is added, so that the first route does not have to wait for
+ * setup and graph building. This is opt-in with {@code routing2.warmup}, since it may download the router and build
+ * graphs for layers that may never be routed on.
+ * <p>
+ * Only the newest data layer is prepared, since it is the one that is most likely to be routed on, and every
+ * preparation may export the data and build a whole graph. Routers keep the prepared data of every data set, so a
+ * layer that was prepared earlier stays ready. The preparation is cancelled when a newer layer is added or when its
+ * layer is removed.
+ */
+final class RouterWarmUp implements LayerManager.LayerChangeListener {
+    /* The heavy work runs on the router executors and in router processes; this thread mostly waits for it */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            Utils.newThreadFactory("routing2-warm-up-%d", Thread.NORM_PRIORITY));
+    /* Guarded by this */
+    private OsmDataLayer current;
+    /* Guarded by this */
+    private CancellationToken token = CancellationToken.NONE;
+
+    /**
+     * Start preparing data layers, including the ones that are already open
+     */
+    void install() {
+        MainApplication.getLayerManager().addLayerChangeListener(this, true);
+    }
+
+    /**
+     * Stop preparing data layers, and cancel the running preparation. The warm up cannot be installed again.
+     */
+    void uninstall() {
+        MainApplication.getLayerManager().removeLayerChangeListener(this);
+        synchronized (this) {
+            this.token.cancel();
+            this.current = null;
+        }
+        this.executor.shutdownNow();
+    }
+
+    private static boolean isEnabled() {
+        return Config.getPref().getBoolean("routing2.warmup", false);
+    }
+
+    @Override
+    public void layerAdded(LayerManager.LayerAddEvent e) {
+        if (isEnabled() && e.getAddedLayer() instanceof OsmDataLayer dataLayer) {
+            warmUp(dataLayer);
+        }
+    }
+
+    @Override
+    public synchronized void layerRemoving(LayerManager.LayerRemoveEvent e) {
+        if (e.getRemovedLayer() == this.current) {
+            this.token.cancel();
+            this.current = null;
+        }
+    }
+
+    @Override
+    public void layerOrderChanged(LayerManager.LayerOrderChangeEvent e) {
+        // The order doesn't matter
+    }
+
+    private synchronized void warmUp(OsmDataLayer dataLayer) {
+        this.token.cancel();
+        final CancellationToken layerToken = new CancellationToken();
+        this.current = dataLayer;
+        this.token = layerToken;
+        this.executor.execute(() -> run(dataLayer, layerToken));
+    }
+
+    private void run(OsmDataLayer dataLayer, CancellationToken layerToken) {
+        if (layerToken.isCancelled()) {
+            return;
+        }
+        try {
+            final long start = System.nanoTime();
+            RouteScheduler.createRouter().prepare(layerToken, dataLayer);
+            Logging.info("Prepared routing for " + dataLayer.getName() + " in "
+                    + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s");
+        } catch (CancellationException cancellationException) {
+            Logging.debug(cancellationException);
+        } catch (RuntimeException runtimeException) {
+            // The first route will try again, and report the problem to the user
+            Logging.warn("Could not prepare routing for " + dataLayer.getName());
+            Logging.warn(runtimeException);
+        } finally {
+            synchronized (this) {
+                if (this.token == layerToken) {
+                    this.current = null;
+                }
+            }
+        }
+    }
+}
@@ -8,10 +8,13 @@ import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
+import org.openstreetmap.josm.plugins.routing2.lib.valhalla.ValhallaServer;
 import org.openstreetmap.josm.tools.Destroyable;
 
 public class Routing2Plugin extends Plugin implements Destroyable {
     private static PluginInformation pluginInformation;
+    private RoutingMouseListener mouseListener;
+    private RouterWarmUp warmUp;
 
     /**
      * Creates the plugin
@@ -26,8 +29,21 @@ public class Routing2Plugin extends Plugin implements Destroyable {
     @Override
     public void mapFrameInitialized(MapFrame oldFrame, MapFrame newFrame) {
         super.mapFrameInitialized(oldFrame, newFrame);
+        if (this.mouseListener != null) {
+            this.mouseListener.uninstall();
+            this.mouseListener = null;
+        }
         if (newFrame != null) {
             MainApplication.getMap().addToggleDialog(new RoutingDialog());
+            this.mouseListener = new RoutingMouseListener(newFrame.mapView);
+            this.mouseListener.install();
+            if (this.warmUp == null) {
+                this.warmUp = new RouterWarmUp();
+                this.warmUp.install();
+            }
+        } else if (this.warmUp != null) {
+            this.warmUp.uninstall();
+            this.warmUp = null;
         }
     }
 
@@ -36,9 +52,18 @@ public class Routing2Plugin extends Plugin implements Destroyable {
         final List<RoutingLayer> layerList = new ArrayList<>(
                 MainApplication.getLayerManager().getLayersOfType(RoutingLayer.class));
         layerList.forEach(MainApplication.getLayerManager()::removeLayer);
+        if (this.mouseListener != null) {
+            this.mouseListener.uninstall();
+            this.mouseListener = null;
+        }
+        if (this.warmUp != null) {
+            this.warmUp.uninstall();
+            this.warmUp = null;
+        }
         if (MainApplication.getMap() != null) {
             MainApplication.getMap().removeToggleDialog(MainApplication.getMap().getToggleDialog(RoutingDialog.class));
         }
+        ValhallaServer.shutdown();
     }
 
     /**
@@ -12,7 +12,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.function.Consumer;
 
@@ -66,6 +68,7 @@ public class RoutingDialog extends ToggleDialog {
                 final RoutingLayer layer = new RoutingLayer("Route", LatLonParser.parse(start.getText()),
                         LatLonParser.parse(end.getText()));
                 layer.addTripListener(instructions);
+                layer.addManeuverListener(instructions);
                 MainApplication.getLayerManager().addLayer(layer);
             }
         });
@@ -80,11 +83,25 @@ public class RoutingDialog extends ToggleDialog {
         new LatLonValidator(doRouting, end);
     }
 
-    private static class RouteInstructions extends JPanel implements Consumer<Trip> {
+    private static class RouteInstructions extends JPanel implements Consumer<Trip>, RoutingLayer.ManeuverListener {
+        private final List<ManeuverTable> tables = new ArrayList<>();
+
         public RouteInstructions() {
             super(new GridBagLayout());
         }
 
+        @Override
+        public void maneuverHighlighted(int leg, int index, Maneuver maneuver) {
+            if (maneuver != null) {
+                GuiHelper.runInEDT(() -> {
+                    if (leg < this.tables.size() && index < this.tables.get(leg).getModel().getSize()) {
+                        this.tables.get(leg).setSelectedIndex(index);
+                        this.tables.get(leg).ensureIndexIsVisible(index);
+                    }
+                });
+            }
+        }
+
         @Override
         public void accept(Trip trip) {
             if (trip != null) {
@@ -94,9 +111,12 @@ public class RoutingDialog extends ToggleDialog {
 
         private void rebuildTrip(Trip trip) {
             this.removeAll();
+            this.tables.clear();
             JPanel scroller = new JPanel(new GridBagLayout());
             for (Legs leg : trip.legs()) {
-                scroller.add(new LegPanel(leg), GBC.eol().anchor(GBC.LINE_START).fill(GBC.BOTH));
+                final LegPanel legPanel = new LegPanel(leg);
+                this.tables.add(legPanel.table);
+                scroller.add(legPanel, GBC.eol().anchor(GBC.LINE_START).fill(GBC.BOTH));
             }
             this.add(GuiHelper.embedInVerticalScrollPane(scroller), GBC.eol().fill(GBC.BOTH));
         }
@@ -131,9 +151,12 @@ public class RoutingDialog extends ToggleDialog {
     }
 
     private static class LegPanel extends JPanel {
+        private final ManeuverTable table;
+
         public LegPanel(Legs leg) {
             super(new GridBagLayout());
-            this.add(new ManeuverTable(leg.maneuvers()), GBC.eol().fill(GBC.BOTH));
+            this.table = new ManeuverTable(leg.maneuvers());
+            this.add(this.table, GBC.eol().fill(GBC.BOTH));
         }
     }
 
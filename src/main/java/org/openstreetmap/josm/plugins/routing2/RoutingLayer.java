@@ -1,46 +1,60 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.routing2;
 
-import static org.openstreetmap.josm.tools.I18n.tr;
-
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 
+import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.ProjectionBounds;
 import org.openstreetmap.josm.data.UndoRedoHandler;
+import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.ILatLon;
-import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.layer.Layer;
-import org.openstreetmap.josm.gui.progress.swing.PleaseWaitProgressMonitor;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.Locations;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.SetupException;
 import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
-import org.openstreetmap.josm.plugins.routing2.lib.valhalla.ValhallaServer;
-import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.ListenerList;
 
-public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueListener {
+public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueuePreciseListener {
+    private static final BasicStroke ROUTE_STROKE = new BasicStroke(10);
+    private static final BasicStroke HIGHLIGHT_STROKE = new BasicStroke(5);
+    private static final Polygon ARROW_HEAD = new Polygon(new int[] {0, -5, 5}, new int[] {-5, 5, 5}, 3);
+    /** The maximum distance in pixels for mouse hits */
+    private static final int HIT_DISTANCE = 8;
+
     private final ListenerList<Consumer<Trip>> tripConsumers = ListenerList.create();
+    private final ListenerList<ManeuverListener> maneuverListeners = ListenerList.create();
     private final ILatLon start;
     private final ILatLon end;
+    private final OsmDataLayer dataLayer;
+    /* These are only used in paint, and are reused to avoid allocations */
+    private final Path2D.Double path = new Path2D.Double();
+    private final Point2D.Double point = new Point2D.Double();
+    private final AffineTransform arrowTransform = new AffineTransform();
+    private int[] runs = new int[16];
     private Trip trip;
+    /* Set from routing threads and reprojected while painting */
+    private final AtomicReference<RouteGeometry> geometry = new AtomicReference<>();
     private Maneuver maneuver;
+    private volatile RouteGeometry.Range highlightRange;
 
     /**
      * Create the layer and fill in the necessary components.
@@ -50,11 +64,27 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
      * @param end The end of the route
      */
     protected RoutingLayer(String name, ILatLon start, ILatLon end) {
+        this(name, start, end, true);
+    }
+
+    /**
+     * Create the layer
+     *
+     * @param name Layer name
+     * @param start The start of the route
+     * @param end The end of the route
+     * @param route {@code true} to calculate the route now and whenever the data changes. Benchmarks use
+     *              {@code false} and set the trip directly.
+     */
+    RoutingLayer(String name, ILatLon start, ILatLon end, boolean route) {
         super(name);
-        UndoRedoHandler.getInstance().addCommandQueueListener(this);
         this.start = start;
         this.end = end;
-        this.commandChanged(0, 0);
+        this.dataLayer = MainApplication.getLayerManager().getActiveDataLayer();
+        if (route) {
+            UndoRedoHandler.getInstance().addCommandQueuePreciseListener(this);
+            RouteScheduler.getInstance().schedule(this);
+        }
         this.setOpacity(.5);
     }
 
@@ -95,107 +125,127 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
 
     @Override
     public void paint(Graphics2D g, MapView mv, Bounds bbox) {
-        final Trip current = this.trip;
-        if (current != null) {
-            Path2D.Double maneuverShape = new Path2D.Double();
-            for (Legs leg : current.legs()) {
-                double[] shape = leg.shape();
-                final Path2D.Double drawShape = new Path2D.Double(Path2D.WIND_NON_ZERO, shape.length / 2);
-                for (int i = 0; i < shape.length; i += 2) {
-                    final double lat = shape[i];
-                    final double lon = shape[i + 1];
-                    Point2D p = mv.getPoint2D(new LatLon(lat, lon));
-                    if (this.maneuver != null && i / 2 >= this.maneuver.startShape()
-                            && i / 2 <= this.maneuver.endShape()) {
-                        if (i / 2 == this.maneuver.startShape()) {
-                            maneuverShape.moveTo(p.getX(), p.getY());
-                        } else {
-                            maneuverShape.lineTo(p.getX(), p.getY());
-                        }
-                    }
-                    if (i == 0) {
-                        drawShape.moveTo(p.getX(), p.getY());
-                    } else {
-                        drawShape.lineTo(p.getX(), p.getY());
-                    }
+        RouteGeometry current = this.geometry.get();
+        if (current == null) {
+            return;
+        }
+        if (!current.isProjectedWith(mv.getProjection())) {
+            final RouteGeometry reprojected = new RouteGeometry(current.trip(), mv.getProjection());
+            // Don't replace a newer trip from setTrip; that trip is painted on the repaint it asked for
+            this.geometry.compareAndSet(current, reprojected);
+            current = reprojected;
+        }
+        final AffineTransform transform = mv.getAffineTransform();
+        final ProjectionBounds view = mv.getProjectionBounds();
+        // Don't cut off strokes and maneuver markers at the edge of the view
+        final double margin = ROUTE_STROKE.getLineWidth() * mv.getScale();
+        final ProjectionBounds clip = new ProjectionBounds(view.minEast - margin, view.minNorth - margin,
+                view.maxEast + margin, view.maxNorth + margin);
+        // Points that are within half a pixel of the simplified shape are not visible
+        final double tolerance = mv.getScale() / 2;
+        final RouteGeometry.Range highlight = this.highlightRange;
+        final RouteGeometry.Leg[] legs = current.legs();
+        final int[] chunks = current.visibleChunks(clip);
+        int chunk = 0;
+        for (int l = 0; l < legs.length && chunk < chunks.length; l++) {
+            // Merge consecutive visible chunks of this leg into runs of points
+            int runCount = 0;
+            while (chunk < chunks.length && current.chunkLeg(chunks[chunk]) == l) {
+                final int first = current.chunkStart(chunks[chunk]);
+                int last = current.chunkEnd(chunks[chunk]);
+                chunk++;
+                while (chunk < chunks.length && chunks[chunk] == chunks[chunk - 1] + 1
+                        && current.chunkLeg(chunks[chunk]) == l) {
+                    last = current.chunkEnd(chunks[chunk]);
+                    chunk++;
                 }
-                g.setColor(Color.GREEN);
-                g.setStroke(new BasicStroke(10));
-                g.draw(drawShape);
-                g.setStroke(new BasicStroke(5));
-                g.setColor(Color.RED);
-                g.draw(maneuverShape);
-                // Draw maneuver locations
-                for (Maneuver t : leg.maneuvers()) {
-                    final int i = t.startShape();
-                    final double lat = shape[2 * i];
-                    final double lon = shape[2 * i + 1];
-                    final Point2D p = mv.getPoint2D(new LatLon(lat, lon));
-                    final Point2D previous;
-                    final Point2D next;
-                    if (i == 0 && shape.length <= 2 * (i + 1) + 1) {
-                        previous = null;
-                        next = null;
-                    } else if (i == 0) {
-                        previous = null;
-                        next = mv.getPoint2D(new LatLon(shape[2 * (i + 1)], shape[2 * (i + 1) + 1]));
-                    } else if (shape.length <= 2 * (i + 1) + 1) {
-                        previous = mv.getPoint2D(new LatLon(shape[2 * (i - 1)], shape[2 * (i - 1) + 1]));
-                        next = null;
-                    } else {
-                        previous = mv.getPoint2D(new LatLon(shape[2 * (i - 1)], shape[2 * (i - 1) + 1]));
-                        next = mv.getPoint2D(new LatLon(shape[2 * (i + 1)], shape[2 * (i + 1) + 1]));
-                    }
-                    g.setColor(Color.ORANGE);
-                    g.drawRect((int) (p.getX() - 4), (int) (p.getY() - 4), 8, 8);
-                    paintArrow(g, t.type(), previous, p, next);
+                if (2 * runCount + 2 > this.runs.length) {
+                    this.runs = Arrays.copyOf(this.runs, 2 * this.runs.length);
                 }
+                this.runs[2 * runCount] = first;
+                this.runs[2 * runCount + 1] = last;
+                runCount++;
+            }
+            if (runCount == 0) {
+                continue;
             }
-            if (current.locations() != null) {
-                for (Locations loc : current.locations()) {
-                    g.setColor(Color.RED);
-                    Point2D point = mv.getPoint2D(loc);
-                    g.drawRect((int) point.getX(), (int) point.getY(), 3, 3);
+            final RouteGeometry.Level level = legs[l].level(tolerance);
+            final double[] points = level.points();
+            this.path.reset();
+            for (int run = 0; run < runCount; run++) {
+                RouteGeometry.appendPath(this.path, points, level.floor(this.runs[2 * run]),
+                        level.map(this.runs[2 * run + 1]), transform, clip);
+            }
+            g.setColor(Color.GREEN);
+            g.setStroke(ROUTE_STROKE);
+            g.draw(this.path);
+            if (highlight != null && highlight.leg() == l) {
+                this.path.reset();
+                for (int run = 0; run < runCount; run++) {
+                    final int first = Math.max(highlight.start(), this.runs[2 * run]);
+                    final int last = Math.min(highlight.end(), this.runs[2 * run + 1]);
+                    if (first < last) {
+                        RouteGeometry.appendPath(this.path, points, level.floor(first), level.map(last), transform,
+                                clip);
+                    }
                 }
+                g.setStroke(HIGHLIGHT_STROKE);
+                g.setColor(Color.RED);
+                g.draw(this.path);
             }
         }
+        paintManeuvers(g, current, transform, clip);
+        final double[] locations = current.locations();
+        g.setColor(Color.RED);
+        for (int i = 0; i < locations.length; i += 2) {
+            this.point.setLocation(locations[i], locations[i + 1]);
+            transform.transform(this.point, this.point);
+            g.drawRect((int) this.point.getX(), (int) this.point.getY(), 3, 3);
+        }
     }
 
-    private void paintArrow(Graphics2D g, Maneuver.Type type, Point2D previous, Point2D current, Point2D next) {
-        final Polygon arrowHead = new Polygon();
-        arrowHead.addPoint(0, -5);
-        arrowHead.addPoint(-5, 5);
-        arrowHead.addPoint(5, 5);
+    private void paintManeuvers(Graphics2D g, RouteGeometry current, AffineTransform transform,
+            ProjectionBounds clip) {
         final AffineTransform original = g.getTransform();
-        final AffineTransform transform = AffineTransform.getTranslateInstance(current.getX(), current.getY());
-        final double angle;
-        if (previous != null) {
-            angle = Math.atan2(current.getY() - previous.getY(), current.getX() - previous.getX()) + Math.PI / 2;
-        } else if (next != null) {
-            angle = Math.atan2(current.getY() - next.getY(), current.getX() - next.getX()) + Math.PI / 2;
-        } else {
-            angle = 0;
+        for (int maneuver : current.visibleManeuvers(clip)) {
+            final RouteGeometry.Leg leg = current.legs()[current.maneuverLeg(maneuver)];
+            final int m = current.maneuverIndex(maneuver);
+            final int index = leg.maneuverPoints()[m];
+            this.point.setLocation(leg.points()[2 * index], leg.points()[2 * index + 1]);
+            transform.transform(this.point, this.point);
+            g.setColor(Color.ORANGE);
+            g.drawRect((int) (this.point.getX() - 4), (int) (this.point.getY() - 4), 8, 8);
+            final double arrowAngle = leg.arrowAngles()[m];
+            if (!Double.isNaN(arrowAngle)) {
+                this.arrowTransform.setTransform(original);
+                this.arrowTransform.translate(this.point.getX(), this.point.getY());
+                this.arrowTransform.rotate(arrowAngle);
+                g.setColor(Color.YELLOW);
+                try {
+                    g.setTransform(this.arrowTransform);
+                    g.fill(ARROW_HEAD);
+                } finally {
+                    g.setTransform(original);
+                }
+            }
         }
-        transform.rotate(angle);
-        transform.preConcatenate(original);
-        // Rotate relative to previous point
-        g.setColor(Color.YELLOW);
-        final double turnAngle = switch (type) {
-        case RIGHT, DESTINATION_RIGHT, EXIT_RIGHT, START_RIGHT -> Math.PI / 2;
-        case LEFT, DESTINATION_LEFT, EXIT_LEFT, START_LEFT -> 3 * Math.PI / 2;
-        // Don't bother painting arrows
-        case NONE -> Double.NaN;
-        default -> Double.NaN;
-        };
-        if (Double.isNaN(turnAngle))
-            return;
-        transform.rotate(turnAngle);
-        try {
-            g.setTransform(transform);
-            g.fill(arrowHead);
-        } finally {
-            g.setTransform(original);
+    }
+
+    /**
+     * Find the maneuver at a point on the map view
+     * @param mv The map view
+     * @param point The point in screen coordinates
+     * @return The maneuver at (or closest to) the point, or {@code null} if there is none within a few pixels
+     */
+    Maneuver getManeuverAt(MapView mv, Point point) {
+        final RouteGeometry current = this.geometry.get();
+        if (current == null || !current.isProjectedWith(mv.getProjection())) {
+            return null;
         }
+        final EastNorth en = mv.getEastNorth(point.x, point.y);
+        final RouteGeometry.Range range = current.nearest(en.east(), en.north(),
+                HIT_DISTANCE * mv.getScale());
+        return range == null ? null : current.legs()[range.leg()].maneuvers()[range.maneuver()];
     }
 
     /**
@@ -204,6 +254,11 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
      */
     public void setTrip(Trip newTrip) {
         this.trip = newTrip;
+        final RouteGeometry newGeometry = newTrip == null ? null
+                : new RouteGeometry(newTrip, ProjectionRegistry.getProjection());
+        this.geometry.set(newGeometry);
+        this.highlightRange = newGeometry == null || this.maneuver == null ? null
+                : newGeometry.highlight(this.maneuver);
         this.tripConsumers.fireEvent(c -> c.accept(newTrip));
         this.invalidate();
     }
@@ -216,6 +271,30 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
         return this.trip;
     }
 
+    /**
+     * Get the start of the route
+     * @return The start location
+     */
+    ILatLon getStart() {
+        return this.start;
+    }
+
+    /**
+     * Get the end of the route
+     * @return The end location
+     */
+    ILatLon getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Get the data layer this layer routes on. This is the data layer that was active when this layer was created.
+     * @return The data layer
+     */
+    OsmDataLayer getDataLayer() {
+        return this.dataLayer;
+    }
+
     /**
      * Add a listener for when a trip updates
      * @param tripConsumer The consumer to notify
@@ -224,33 +303,52 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
         this.tripConsumers.addListener(tripConsumer);
     }
 
+    /**
+     * Add a listener for when the highlighted maneuver changes
+     * @param listener The listener to notify
+     */
+    public void addManeuverListener(ManeuverListener listener) {
+        this.maneuverListeners.addListener(listener);
+    }
+
     @Override
-    public void commandChanged(int queueSize, int redoSize) {
-        MainApplication.worker.execute(() -> {
-            ValhallaServer valhallaServer = new ValhallaServer();
-            final PleaseWaitProgressMonitor monitor = new PleaseWaitProgressMonitor(
-                    tr("Downloading configured router"));
-            if (valhallaServer.shouldPerformSetup()) {
-                try {
-                    monitor.beginTask(tr("Download"), 1);
-                    valhallaServer.performSetup(monitor);
-                } catch (SetupException setupException) {
-                    throw new JosmRuntimeException(setupException);
-                } finally {
-                    monitor.close();
-                }
-            }
-            if (!monitor.isCanceled()) {
-                this.setTrip(valhallaServer.generateRoute(MainApplication.getLayerManager().getActiveDataLayer(),
-                        this.start, this.end));
-            }
-        });
+    public void commandAdded(UndoRedoHandler.CommandAddedEvent e) {
+        rerouteIfRelevant(e.getCommand());
+    }
+
+    @Override
+    public void cleaned(UndoRedoHandler.CommandQueueCleanedEvent e) {
+        // Clearing the queue does not change any data
+    }
+
+    @Override
+    public void commandUndone(UndoRedoHandler.CommandUndoneEvent e) {
+        rerouteIfRelevant(e.getCommand());
+    }
+
+    @Override
+    public void commandRedone(UndoRedoHandler.CommandRedoneEvent e) {
+        rerouteIfRelevant(e.getCommand());
+    }
+
+    /**
+     * Calculate the route again if a command could have changed it
+     * @param command The command that was added, undone or redone
+     */
+    private void rerouteIfRelevant(Command command) {
+        final double buffer = Config.getPref().getDouble("routing2.reroute.buffer", 1000);
+        final RerouteFilter filter = new RerouteFilter(this.dataLayer == null ? null : this.dataLayer.getDataSet(),
+                this.trip, buffer, this.start, this.end);
+        if (filter.isRelevant(command)) {
+            RouteScheduler.getInstance().schedule(this);
+        }
     }
 
     @Override
     public synchronized void destroy() {
         super.destroy();
-        UndoRedoHandler.getInstance().removeCommandQueueListener(this);
+        UndoRedoHandler.getInstance().removeCommandQueuePreciseListener(this);
+        RouteScheduler.getInstance().remove(this);
     }
 
     /**
@@ -258,12 +356,20 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
      * @param maneuver The maneuver to highlight
      */
     public void setHighlightedManeuver(Maneuver maneuver) {
-        if (this.trip != null && maneuver != null
-                && Stream.of(this.trip.legs()).flatMap(l -> Arrays.stream(l.maneuvers())).anyMatch(maneuver::equals)) {
+        if (maneuver == this.maneuver) {
+            return;
+        }
+        final RouteGeometry current = this.geometry.get();
+        final RouteGeometry.Range range = current != null && maneuver != null ? current.highlight(maneuver) : null;
+        if (range != null) {
             this.maneuver = maneuver;
+            this.highlightRange = range;
+            this.maneuverListeners.fireEvent(l -> l.maneuverHighlighted(range.leg(), range.maneuver(), maneuver));
             this.invalidate();
         } else if (maneuver == null) {
             this.maneuver = null;
+            this.highlightRange = null;
+            this.maneuverListeners.fireEvent(l -> l.maneuverHighlighted(-1, -1, null));
             this.invalidate();
         }
     }
@@ -275,4 +381,18 @@ public class RoutingLayer extends Layer implements UndoRedoHandler.CommandQueueL
     public Maneuver getHighlightedManeuver() {
         return this.maneuver;
     }
+
+    /**
+     * A listener for highlighted maneuver changes
+     */
+    @FunctionalInterface
+    public interface ManeuverListener {
+        /**
+         * Called when the highlighted maneuver changes
+         * @param leg The index of the leg with the maneuver, or {@code -1} if no maneuver is highlighted
+         * @param index The index of the maneuver in the leg, or {@code -1} if no maneuver is highlighted
+         * @param maneuver The highlighted maneuver, may be {@code null}
+         */
+        void maneuverHighlighted(int leg, int index, Maneuver maneuver);
+    }
 }
@@ -0,0 +1,87 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Select maneuvers by clicking on a route, and show maneuver tooltips when hovering over a route
+ */
+final class RoutingMouseListener extends MouseAdapter {
+    private final MapView mapView;
+    private Maneuver hovered;
+
+    /**
+     * Create a new listener
+     * @param mapView The map view to listen to
+     */
+    RoutingMouseListener(MapView mapView) {
+        this.mapView = mapView;
+    }
+
+    /**
+     * Start listening to the map view
+     */
+    void install() {
+        this.mapView.addMouseListener(this);
+        this.mapView.addMouseMotionListener(this);
+    }
+
+    /**
+     * Stop listening to the map view
+     */
+    void uninstall() {
+        this.mapView.removeMouseListener(this);
+        this.mapView.removeMouseMotionListener(this);
+        if (this.hovered != null) {
+            this.mapView.setToolTipText(null);
+            this.hovered = null;
+        }
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        if (e.getButton() != MouseEvent.BUTTON1) {
+            return;
+        }
+        for (RoutingLayer layer : this.mapView.getLayerManager().getLayersOfType(RoutingLayer.class)) {
+            if (layer.isVisible()) {
+                final Maneuver maneuver = layer.getManeuverAt(this.mapView, e.getPoint());
+                if (maneuver != null) {
+                    layer.setHighlightedManeuver(maneuver);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        Maneuver maneuver = null;
+        for (RoutingLayer layer : this.mapView.getLayerManager().getLayersOfType(RoutingLayer.class)) {
+            if (layer.isVisible()) {
+                maneuver = layer.getManeuverAt(this.mapView, e.getPoint());
+                if (maneuver != null) {
+                    break;
+                }
+            }
+        }
+        if (maneuver == this.hovered) {
+            return;
+        }
+        this.hovered = maneuver;
+        if (maneuver == null) {
+            this.mapView.setToolTipText(null);
+        } else {
+            this.mapView.setToolTipText("<html>" + Utils.escapeReservedCharactersHTML(maneuver.instruction())
+                    + "<br>" + tr("Length: {0}", maneuver.length()) + "<br>" + tr("Time: {0}", maneuver.time())
+                    + "</html>");
+        }
+    }
+}
@@ -0,0 +1,177 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.dataset;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Costing;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.IRouter;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Matrix;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Route directly on the data of a layer, without an external router.
+ * <p>
+ * The routable ways are turned into a {@link RoutingGraph} that is kept in memory until a routable edit, so there is
+ * no setup, no export and no process to start. Turn restrictions are not used, and the travel times come from
+ * simple per-mode speeds, so routes may differ from the valhalla routes.
+ */
+public final class DataSetRouter implements IRouter {
+    /* Guarded by DataSetRouter.class */
+    private static GraphCache graphCache;
+    private final Costing costing;
+
+    /**
+     * Create a router for cars
+     */
+    public DataSetRouter() {
+        this(Costing.AUTO);
+    }
+
+    /**
+     * Create a router
+     * @param costing The costing to route with
+     */
+    public DataSetRouter(Costing costing) {
+        this.costing = costing;
+    }
+
+    @Override
+    public boolean shouldPerformSetup() {
+        return false;
+    }
+
+    @Override
+    public void performSetup(ProgressMonitor progressMonitor) {
+        // Nothing to set up
+    }
+
+    @Override
+    public void prepare(CancellationToken token, OsmDataLayer layer) {
+        token.throwIfCancelled();
+        graph(token, layer.getDataSet()).costs(this.costing);
+    }
+
+    @Override
+    public Trip generateRoute(CancellationToken token, OsmDataLayer layer, ILatLon... locations) {
+        final RoutingGraph graph = graph(token, layer.getDataSet());
+        final Trip trip = route(token, graph, graph.costs(this.costing), locations);
+        if (trip == null) {
+            GuiHelper.runInEDTAndWait(
+                    () -> new Notification(tr("No route found")).setIcon(JOptionPane.WARNING_MESSAGE).show());
+        }
+        return trip;
+    }
+
+    @Override
+    public Trip[] generateRoutes(CancellationToken token, OsmDataLayer layer, List<ILatLon[]> requests) {
+        final long start = System.nanoTime();
+        final RoutingGraph graph = graph(token, layer.getDataSet());
+        final RoutingGraph.Costs costs = graph.costs(this.costing);
+        final Trip[] trips = new Trip[requests.size()];
+        for (int i = 0; i < trips.length; i++) {
+            trips[i] = route(token, graph, costs, requests.get(i));
+        }
+        Logging.debug("Calculated {0} routes in {1} ms", trips.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return trips;
+    }
+
+    @Override
+    public Matrix generateMatrix(CancellationToken token, OsmDataLayer layer, ILatLon[] sources,
+            ILatLon[] targets) {
+        final long start = System.nanoTime();
+        final RoutingGraph graph = graph(token, layer.getDataSet());
+        final RoutingGraph.Costs costs = graph.costs(this.costing);
+        final RoutingGraph.Snap[] targetSnaps = new RoutingGraph.Snap[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            targetSnaps[i] = graph.snap(targets[i], costs);
+        }
+        final Matrix matrix = Matrix.unreachable(sources.length, targets.length);
+        final double[] times = new double[targets.length];
+        final double[] lengths = new double[targets.length];
+        // One search per source finds the routes to all targets
+        for (int source = 0; source < sources.length; source++) {
+            token.throwIfCancelled();
+            final RoutingGraph.Snap from = graph.snap(sources[source], costs);
+            if (from == null) {
+                continue;
+            }
+            graph.routeToMany(costs, from, targetSnaps, token, times, lengths);
+            for (int target = 0; target < targets.length; target++) {
+                matrix.set(source, target, times[target], lengths[target] / TripBuilder.METERS_PER_MILE);
+            }
+        }
+        Logging.debug("Calculated a {0}x{1} matrix in {2} ms", sources.length, targets.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return matrix;
+    }
+
+    /**
+     * Route on a graph
+     * @param token The token for cancelling the route
+     * @param graph The graph
+     * @param costs The costs to use
+     * @param locations The locations
+     * @return The trip, or {@code null} if there is no route
+     */
+    private Trip route(CancellationToken token, RoutingGraph graph, RoutingGraph.Costs costs,
+            ILatLon... locations) {
+        if (locations.length < 2) {
+            throw new IllegalArgumentException("A route needs at least two locations");
+        }
+        final long start = System.nanoTime();
+        final RoutingGraph.Snap[] snaps = new RoutingGraph.Snap[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            snaps[i] = graph.snap(locations[i], costs);
+            if (snaps[i] == null) {
+                return null;
+            }
+        }
+        final Legs[] legs = new Legs[locations.length - 1];
+        for (int i = 0; i < legs.length; i++) {
+            final RoutingGraph.Path path = graph.route(costs, snaps[i], snaps[i + 1], token);
+            if (path == null) {
+                return null;
+            }
+            legs[i] = TripBuilder.leg(graph, costs, this.costing, path);
+        }
+        Logging.trace("Routed on {0} nodes and {1} edges in {2} ms", graph.nodeCount(), graph.edgeCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return TripBuilder.trip(locations, legs);
+    }
+
+    /**
+     * Get the graph for a data set. Only the graph of the data set that was last routed on is kept.
+     * @param token The token for cancelling the graph build
+     * @param dataSet The data set to route on
+     * @return The graph
+     */
+    private static RoutingGraph graph(CancellationToken token, DataSet dataSet) {
+        final GraphCache cache;
+        synchronized (DataSetRouter.class) {
+            if (graphCache == null || !graphCache.isTracking(dataSet)) {
+                if (graphCache != null) {
+                    graphCache.unregister();
+                }
+                graphCache = new GraphCache(dataSet);
+                graphCache.register();
+            }
+            cache = graphCache;
+        }
+        return cache.graph(token);
+    }
+}
@@ -0,0 +1,156 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.dataset;
+
+import java.lang.ref.WeakReference;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RoutablePrimitives;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RouterExecutors;
+
+/**
+ * Keep the routing graph of a data set until a routable edit makes it stale. Edits that don't touch routable
+ * primitives keep the graph, so routing after unrelated edits does not rebuild it.
+ */
+final class GraphCache implements DataSetListener {
+    /* Weak, so that a data set from a removed layer can be collected */
+    private final WeakReference<DataSet> dataSet;
+    /* Guarded by this */
+    private RoutingGraph graph;
+    /* Guarded by this; counts the routable changes, so a graph built during a change is not kept */
+    private long changes;
+
+    GraphCache(DataSet dataSet) {
+        this.dataSet = new WeakReference<>(dataSet);
+    }
+
+    /**
+     * Start tracking the data set
+     */
+    void register() {
+        final DataSet tracked = this.dataSet.get();
+        if (tracked != null) {
+            tracked.addDataSetListener(this);
+        }
+    }
+
+    /**
+     * Stop tracking the data set
+     */
+    void unregister() {
+        final DataSet tracked = this.dataSet.get();
+        if (tracked != null) {
+            tracked.removeDataSetListener(this);
+        }
+    }
+
+    /**
+     * Check if this tracks a data set
+     * @param other The data set to check
+     * @return {@code true} if this tracks the data set
+     */
+    boolean isTracking(DataSet other) {
+        return this.dataSet.get() == other;
+    }
+
+    /**
+     * Get the graph for the current data, building it if needed
+     * @param token The token for cancelling the wait for a build slot
+     * @return The graph
+     * @throws IllegalStateException if the data set was collected
+     */
+    RoutingGraph graph(CancellationToken token) {
+        final long builtChanges;
+        synchronized (this) {
+            if (this.graph != null) {
+                return this.graph;
+            }
+            builtChanges = this.changes;
+        }
+        final DataSet tracked = this.dataSet.get();
+        if (tracked == null) {
+            throw new IllegalStateException("The data set is no longer available");
+        }
+        // Don't hold the lock while building, since the listener methods need it
+        final RoutingGraph built = RouterExecutors.build(token, () -> RoutingGraph.build(tracked));
+        synchronized (this) {
+            if (this.changes == builtChanges) {
+                this.graph = built;
+            }
+        }
+        return built;
+    }
+
+    private synchronized void invalidate() {
+        this.changes++;
+        this.graph = null;
+    }
+
+    private void invalidate(Iterable<? extends OsmPrimitive> primitives) {
+        for (OsmPrimitive primitive : primitives) {
+            if (RoutablePrimitives.isRoutable(primitive)) {
+                invalidate();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        invalidate(event.getPrimitives());
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        invalidate(event.getPrimitives());
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        // Removing a routing key makes a primitive unroutable, but the graph still changes
+        if (event.getOriginalKeys().keySet().stream().anyMatch(RoutablePrimitives::isRoutingKey)) {
+            invalidate();
+        } else {
+            invalidate(event.getPrimitives());
+        }
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        if (RoutablePrimitives.isRoutable(event.getNode())) {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        if (RoutablePrimitives.isRoutable(event.getChangedWay())) {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        // Turn restrictions are not used by the graph
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+        // Changeset ids, conflicts and the like don't change the graph
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        invalidate();
+    }
+}
@@ -0,0 +1,874 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.dataset;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Costing;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.PackedRTree;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RoutablePrimitives;
+
+/**
+ * A routing graph for the routable ways of a data set, stored in compressed sparse row form.
+ * <p>
+ * Every way node is a graph node, and every way segment is an edge for each direction that it can be travelled in.
+ * Edges are sorted by their source, so the outgoing edges of node {@code n} are {@code firstEdge[n]} up to
+ * {@code firstEdge[n + 1]}; {@link #incoming} lists the incoming edges the same way. Travel costs are calculated per
+ * {@link Costing} when they are first needed. Turn restrictions are not used.
+ */
+final class RoutingGraph {
+    /** The way can be travelled in the direction of its nodes */
+    static final int FORWARD = 1;
+    /** The way can be travelled against the direction of its nodes */
+    static final int BACKWARD = 2;
+    /** Flags for {@link #wayFlags} */
+    static final byte FERRY = 1;
+    static final byte TOLL = 2;
+    static final byte HIGHWAY = 4;
+    static final byte ROUNDABOUT = 8;
+
+    private static final double EARTH_RADIUS = 6_378_137;
+    private static final Set<String> DRIVE_HIGHWAYS = Set.of("motorway", "motorway_link", "trunk", "trunk_link",
+            "primary", "primary_link", "secondary", "secondary_link", "tertiary", "tertiary_link", "unclassified",
+            "residential", "service", "living_street", "road", "track");
+    private static final Set<String> NO_BICYCLE_HIGHWAYS = Set.of("motorway", "motorway_link", "steps", "footway",
+            "pedestrian", "bridleway", "corridor", "elevator", "platform");
+    private static final Set<String> NO_FOOT_HIGHWAYS = Set.of("motorway", "motorway_link", "bus_guideway",
+            "busway", "raceway");
+    private static final Set<String> ALLOWED = Set.of("yes", "designated", "permissive", "destination", "customers",
+            "delivery", "official", "dismount");
+    private static final Set<String> DENIED = Set.of("no", "private", "agricultural", "forestry", "use_sidepath");
+    /** Default car speeds in km/h */
+    private static final Map<String, Double> DRIVE_SPEEDS = Map.ofEntries(Map.entry("motorway", 105d),
+            Map.entry("motorway_link", 60d), Map.entry("trunk", 90d), Map.entry("trunk_link", 50d),
+            Map.entry("primary", 65d), Map.entry("primary_link", 45d), Map.entry("secondary", 55d),
+            Map.entry("secondary_link", 40d), Map.entry("tertiary", 45d), Map.entry("tertiary_link", 35d),
+            Map.entry("unclassified", 35d), Map.entry("residential", 30d), Map.entry("service", 15d),
+            Map.entry("living_street", 10d), Map.entry("track", 15d), Map.entry("road", 30d));
+    private static final double BICYCLE_SPEED = 18;
+    private static final double FOOT_SPEED = 5.1;
+    private static final double FERRY_SPEED = 20;
+    /** The largest search box around a location, in degrees */
+    private static final double MAX_SNAP_RADIUS = 0.5;
+
+    /**
+     * The ways that people travel
+     */
+    enum Mode {
+        DRIVE(List.of("motorcar", "motor_vehicle", "vehicle", "access")),
+        BICYCLE(List.of("bicycle", "vehicle", "access")),
+        FOOT(List.of("foot", "access"));
+
+        /** The access keys, most specific first */
+        private final List<String> accessKeys;
+
+        Mode(List<String> accessKeys) {
+            this.accessKeys = accessKeys;
+        }
+
+        /**
+         * Get the travel mode for a costing
+         * @param costing The costing
+         * @return The travel mode
+         */
+        static Mode of(Costing costing) {
+            return switch (costing) {
+                case BICYCLE, BIKESHARE -> BICYCLE;
+                case PEDESTRIAN, MULTIMODAL -> FOOT;
+                default -> DRIVE;
+            };
+        }
+    }
+
+    /**
+     * The travel costs for a costing
+     * @param edgeCosts The time to travel each edge in seconds, or infinity if the edge can't be used
+     * @param maxSpeed The highest speed on any edge in meters per second, for the search heuristic
+     */
+    record Costs(double[] edgeCosts, double maxSpeed) {
+    }
+
+    /**
+     * A location on an edge
+     * @param edge The edge; if the edge can be travelled both ways, this is the lower index of the two edges
+     * @param fraction How far along the edge the location is, from its source
+     * @param lat The latitude of the location on the edge
+     * @param lon The longitude of the location on the edge
+     * @param distance The distance from the requested location in meters
+     */
+    record Snap(int edge, double fraction, double lat, double lon, double distance) {
+    }
+
+    /**
+     * A route between two snapped locations
+     * @param from The start
+     * @param to The end
+     * @param nodes The graph nodes along the route; empty if the route stays on one segment
+     * @param edges The edges between the nodes
+     * @param cost The travel time in seconds
+     */
+    record Path(Snap from, Snap to, int[] nodes, int[] edges, double cost) {
+    }
+
+    final double[] lats;
+    final double[] lons;
+    final int[] firstEdge;
+    final int[] edgeSource;
+    final int[] edgeTarget;
+    final double[] edgeLength;
+    final int[] edgeWay;
+    /** The modes that can use each edge, one bit per {@link Mode} */
+    final byte[] edgeAccess;
+    /** The edge in the opposite direction, or {@code -1} */
+    final int[] edgeTwin;
+    final int[] firstIncoming;
+    final int[] incoming;
+    final long[] wayIds;
+    final String[] wayNames;
+    final byte[] wayFlags;
+    /** The speed on each way in meters per second, by {@link Mode} */
+    final double[][] waySpeeds;
+    private final PackedRTree segments;
+    /* Guarded by this */
+    private final Map<Costing, Costs> costs = new EnumMap<>(Costing.class);
+
+    private RoutingGraph(double[] lats, double[] lons, int[] edgeSource, int[] edgeTarget, double[] edgeLength,
+            int[] edgeWay, byte[] edgeAccess, int[] edgeTwin, long[] wayIds, String[] wayNames, byte[] wayFlags,
+            double[][] waySpeeds) {
+        final int nodeCount = lats.length;
+        final int edgeCount = edgeSource.length;
+        this.lats = lats;
+        this.lons = lons;
+        this.wayIds = wayIds;
+        this.wayNames = wayNames;
+        this.wayFlags = wayFlags;
+        this.waySpeeds = waySpeeds;
+        // Sort the edges by source with a counting sort
+        this.firstEdge = new int[nodeCount + 1];
+        for (int source : edgeSource) {
+            this.firstEdge[source + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            this.firstEdge[i + 1] += this.firstEdge[i];
+        }
+        final int[] next = Arrays.copyOf(this.firstEdge, nodeCount);
+        final int[] position = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            position[e] = next[edgeSource[e]]++;
+        }
+        this.edgeSource = new int[edgeCount];
+        this.edgeTarget = new int[edgeCount];
+        this.edgeLength = new double[edgeCount];
+        this.edgeWay = new int[edgeCount];
+        this.edgeAccess = new byte[edgeCount];
+        this.edgeTwin = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            final int p = position[e];
+            this.edgeSource[p] = edgeSource[e];
+            this.edgeTarget[p] = edgeTarget[e];
+            this.edgeLength[p] = edgeLength[e];
+            this.edgeWay[p] = edgeWay[e];
+            this.edgeAccess[p] = edgeAccess[e];
+            this.edgeTwin[p] = edgeTwin[e] < 0 ? -1 : position[edgeTwin[e]];
+        }
+        this.firstIncoming = new int[nodeCount + 1];
+        for (int target : this.edgeTarget) {
+            this.firstIncoming[target + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            this.firstIncoming[i + 1] += this.firstIncoming[i];
+        }
+        this.incoming = new int[edgeCount];
+        final int[] nextIncoming = Arrays.copyOf(this.firstIncoming, nodeCount);
+        for (int e = 0; e < edgeCount; e++) {
+            this.incoming[nextIncoming[this.edgeTarget[e]]++] = e;
+        }
+        final double[] boxes = new double[4 * edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            final int a = this.edgeSource[e];
+            final int b = this.edgeTarget[e];
+            boxes[4 * e] = Math.min(lons[a], lons[b]);
+            boxes[4 * e + 1] = Math.min(lats[a], lats[b]);
+            boxes[4 * e + 2] = Math.max(lons[a], lons[b]);
+            boxes[4 * e + 3] = Math.max(lats[a], lats[b]);
+        }
+        this.segments = new PackedRTree(boxes);
+    }
+
+    /**
+     * Build the graph for a data set
+     * @param dataSet The data set; its read lock is held while the graph is built
+     * @return The graph
+     */
+    static RoutingGraph build(DataSet dataSet) {
+        dataSet.getReadLock().lock();
+        try {
+            return buildLocked(dataSet);
+        } finally {
+            dataSet.getReadLock().unlock();
+        }
+    }
+
+    private static RoutingGraph buildLocked(DataSet dataSet) {
+        final List<Way> ways = dataSet.getWays().stream()
+                .filter(way -> way.isUsable() && way.getNodesCount() > 1 && RoutablePrimitives.isRoutable(way))
+                .toList();
+        int maxEdges = 0;
+        for (Way way : ways) {
+            maxEdges += 2 * (way.getNodesCount() - 1);
+        }
+        final Map<Node, Integer> nodeIndex = new IdentityHashMap<>();
+        double[] lats = new double[Math.max(16, maxEdges / 2)];
+        double[] lons = new double[lats.length];
+        final int[] edgeSource = new int[maxEdges];
+        final int[] edgeTarget = new int[maxEdges];
+        final double[] edgeLength = new double[maxEdges];
+        final int[] edgeWay = new int[maxEdges];
+        final byte[] edgeAccess = new byte[maxEdges];
+        final int[] edgeTwin = new int[maxEdges];
+        final long[] wayIds = new long[ways.size()];
+        final String[] wayNames = new String[ways.size()];
+        final byte[] wayFlags = new byte[ways.size()];
+        final Mode[] modes = Mode.values();
+        final double[][] waySpeeds = new double[modes.length][ways.size()];
+        final int[] directions = new int[modes.length];
+        int edges = 0;
+        for (int w = 0; w < ways.size(); w++) {
+            final Way way = ways.get(w);
+            wayIds[w] = way.getUniqueId();
+            wayNames[w] = way.hasKey("name") ? way.get("name") : way.get("ref");
+            wayFlags[w] = flags(way);
+            int forwardAccess = 0;
+            int backwardAccess = 0;
+            for (Mode mode : modes) {
+                directions[mode.ordinal()] = direction(way, mode);
+                waySpeeds[mode.ordinal()][w] = speed(way, mode);
+                if ((directions[mode.ordinal()] & FORWARD) != 0) {
+                    forwardAccess |= 1 << mode.ordinal();
+                }
+                if ((directions[mode.ordinal()] & BACKWARD) != 0) {
+                    backwardAccess |= 1 << mode.ordinal();
+                }
+            }
+            if (forwardAccess == 0 && backwardAccess == 0) {
+                continue;
+            }
+            Node previous = null;
+            for (Node node : way.getNodes()) {
+                if (!node.isLatLonKnown()) {
+                    previous = null;
+                    continue;
+                }
+                if (previous != null && previous != node) {
+                    final int a = index(nodeIndex, previous);
+                    final int b = index(nodeIndex, node);
+                    if (nodeIndex.size() > lats.length) {
+                        lats = Arrays.copyOf(lats, 2 * lats.length);
+                        lons = Arrays.copyOf(lons, lats.length);
+                    }
+                    lats[a] = previous.lat();
+                    lons[a] = previous.lon();
+                    lats[b] = node.lat();
+                    lons[b] = node.lon();
+                    final double length = distance(previous.lat(), previous.lon(), node.lat(), node.lon());
+                    final int forward = forwardAccess != 0 ? edges++ : -1;
+                    final int backward = backwardAccess != 0 ? edges++ : -1;
+                    if (forward >= 0) {
+                        edgeSource[forward] = a;
+                        edgeTarget[forward] = b;
+                        edgeLength[forward] = length;
+                        edgeWay[forward] = w;
+                        edgeAccess[forward] = (byte) forwardAccess;
+                        edgeTwin[forward] = backward;
+                    }
+                    if (backward >= 0) {
+                        edgeSource[backward] = b;
+                        edgeTarget[backward] = a;
+                        edgeLength[backward] = length;
+                        edgeWay[backward] = w;
+                        edgeAccess[backward] = (byte) backwardAccess;
+                        edgeTwin[backward] = forward;
+                    }
+                }
+                previous = node;
+            }
+        }
+        final int nodeCount = nodeIndex.size();
+        return new RoutingGraph(Arrays.copyOf(lats, nodeCount), Arrays.copyOf(lons, nodeCount),
+                Arrays.copyOf(edgeSource, edges), Arrays.copyOf(edgeTarget, edges), Arrays.copyOf(edgeLength, edges),
+                Arrays.copyOf(edgeWay, edges), Arrays.copyOf(edgeAccess, edges), Arrays.copyOf(edgeTwin, edges),
+                wayIds, wayNames, wayFlags, waySpeeds);
+    }
+
+    private static int index(Map<Node, Integer> nodeIndex, Node node) {
+        return nodeIndex.computeIfAbsent(node, ignored -> nodeIndex.size());
+    }
+
+    private static byte flags(Way way) {
+        byte flags = 0;
+        if (!way.hasKey("highway")) {
+            flags |= FERRY;
+        }
+        if ("yes".equals(way.get("toll"))) {
+            flags |= TOLL;
+        }
+        if ("motorway".equals(way.get("highway")) || "trunk".equals(way.get("highway"))) {
+            flags |= HIGHWAY;
+        }
+        if ("roundabout".equals(way.get("junction")) || "circular".equals(way.get("junction"))) {
+            flags |= ROUNDABOUT;
+        }
+        return flags;
+    }
+
+    /**
+     * Check if a mode may use a way
+     * @param way The way
+     * @param mode The travel mode
+     * @return {@code true} if the way is open to the mode
+     */
+    static boolean isAllowed(Way way, Mode mode) {
+        for (String key : mode.accessKeys) {
+            final String value = way.get(key);
+            if (value != null) {
+                if (ALLOWED.contains(value)) {
+                    return true;
+                } else if (DENIED.contains(value)) {
+                    return false;
+                }
+            }
+        }
+        final String highway = way.get("highway");
+        if (highway == null) {
+            return true; // Ferries
+        }
+        return switch (mode) {
+            case DRIVE -> DRIVE_HIGHWAYS.contains(highway);
+            case BICYCLE -> !NO_BICYCLE_HIGHWAYS.contains(highway);
+            case FOOT -> !NO_FOOT_HIGHWAYS.contains(highway);
+        };
+    }
+
+    /**
+     * Get the directions that a mode may travel on a way
+     * @param way The way
+     * @param mode The travel mode
+     * @return {@link #FORWARD} and/or {@link #BACKWARD}, or {@code 0} if the mode may not use the way
+     */
+    static int direction(Way way, Mode mode) {
+        if (!isAllowed(way, mode)) {
+            return 0;
+        }
+        final String oneway;
+        if (mode == Mode.FOOT) {
+            oneway = way.hasKey("oneway:foot") ? way.get("oneway:foot") : "no";
+        } else if (mode == Mode.BICYCLE && way.hasKey("oneway:bicycle")) {
+            oneway = way.get("oneway:bicycle");
+        } else if (way.hasKey("oneway")) {
+            oneway = way.get("oneway");
+        } else {
+            final boolean implied = (flags(way) & ROUNDABOUT) != 0 || "motorway".equals(way.get("highway"));
+            oneway = implied ? "yes" : "no";
+        }
+        return switch (oneway) {
+            case "yes", "true", "1" -> FORWARD;
+            case "-1", "reverse" -> BACKWARD;
+            default -> FORWARD | BACKWARD;
+        };
+    }
+
+    /**
+     * Get the travel speed of a mode on a way
+     * @param way The way
+     * @param mode The travel mode
+     * @return The speed in meters per second
+     */
+    static double speed(Way way, Mode mode) {
+        final String highway = way.get("highway");
+        final double maxspeed = parseMaxspeed(way.get("maxspeed"));
+        final double kmh;
+        if (highway == null) {
+            kmh = FERRY_SPEED;
+        } else if (mode == Mode.DRIVE) {
+            kmh = Double.isNaN(maxspeed) ? DRIVE_SPEEDS.getOrDefault(highway, 30d) : maxspeed;
+        } else if (mode == Mode.BICYCLE) {
+            kmh = Double.isNaN(maxspeed) ? BICYCLE_SPEED : Math.min(BICYCLE_SPEED, maxspeed);
+        } else {
+            kmh = FOOT_SPEED;
+        }
+        return kmh / 3.6;
+    }
+
+    /**
+     * Parse a maxspeed value
+     * @param maxspeed The value, like {@code 50} or {@code 30 mph}
+     * @return The speed in km/h, or {@link Double#NaN} if it could not be parsed
+     */
+    static double parseMaxspeed(String maxspeed) {
+        if (maxspeed == null) {
+            return Double.NaN;
+        }
+        final String value = maxspeed.trim().toLowerCase(Locale.ROOT);
+        if ("none".equals(value)) {
+            return 130;
+        }
+        final boolean mph = value.endsWith("mph");
+        try {
+            final double speed = Double.parseDouble((mph ? value.substring(0, value.length() - 3) : value).trim());
+            return speed > 0 ? (mph ? speed * 1.609344 : speed) : Double.NaN;
+        } catch (NumberFormatException numberFormatException) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Get the number of graph nodes
+     * @return The node count
+     */
+    int nodeCount() {
+        return this.lats.length;
+    }
+
+    /**
+     * Get the number of edges
+     * @return The edge count
+     */
+    int edgeCount() {
+        return this.edgeSource.length;
+    }
+
+    /**
+     * Get the travel costs for a costing
+     * @param costing The costing
+     * @return The costs
+     */
+    synchronized Costs costs(Costing costing) {
+        return this.costs.computeIfAbsent(costing, this::calculateCosts);
+    }
+
+    private Costs calculateCosts(Costing costing) {
+        final Mode mode = Mode.of(costing);
+        final double limit = switch (costing) {
+            case TRUCK -> 90 / 3.6;
+            case BUS -> 100 / 3.6;
+            case MOTOR_SCOOTER -> 45 / 3.6;
+            default -> Double.POSITIVE_INFINITY;
+        };
+        final double[] edgeCosts = new double[edgeCount()];
+        double maxSpeed = 0;
+        for (int e = 0; e < edgeCosts.length; e++) {
+            if ((this.edgeAccess[e] & (1 << mode.ordinal())) == 0) {
+                edgeCosts[e] = Double.POSITIVE_INFINITY;
+            } else {
+                final double speed = Math.min(limit, this.waySpeeds[mode.ordinal()][this.edgeWay[e]]);
+                edgeCosts[e] = this.edgeLength[e] / speed;
+                maxSpeed = Math.max(maxSpeed, speed);
+            }
+        }
+        return new Costs(edgeCosts, maxSpeed > 0 ? maxSpeed : 1);
+    }
+
+    /**
+     * Find the closest usable edge to a location
+     * @param location The location
+     * @param costs The costs, which decide which edges can be used
+     * @return The location on the closest edge, or {@code null} if there is no usable edge nearby
+     */
+    Snap snap(ILatLon location, Costs costs) {
+        final double lat = location.lat();
+        final double lon = location.lon();
+        final double metersPerLon = Math.cos(Math.toRadians(lat)) * Math.toRadians(EARTH_RADIUS);
+        final double metersPerLat = Math.toRadians(EARTH_RADIUS);
+        for (double radius = 0.0005; radius <= MAX_SNAP_RADIUS; radius *= 4) {
+            Snap best = null;
+            for (int e : this.segments.search(lon - radius, lat - radius, lon + radius, lat + radius)) {
+                final int twin = this.edgeTwin[e];
+                if (twin >= 0 && twin < e || Double.isInfinite(costs.edgeCosts()[e])
+                        && (twin < 0 || Double.isInfinite(costs.edgeCosts()[twin]))) {
+                    continue; // Each segment is checked once, through its lowest edge
+                }
+                final int a = this.edgeSource[e];
+                final int b = this.edgeTarget[e];
+                final double ax = (this.lons[a] - lon) * metersPerLon;
+                final double ay = (this.lats[a] - lat) * metersPerLat;
+                final double dx = (this.lons[b] - this.lons[a]) * metersPerLon;
+                final double dy = (this.lats[b] - this.lats[a]) * metersPerLat;
+                final double lengthSquared = dx * dx + dy * dy;
+                final double t = lengthSquared == 0 ? 0
+                        : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared));
+                final double distance = Math.hypot(ax + t * dx, ay + t * dy);
+                if (best == null || distance < best.distance()) {
+                    best = new Snap(e, t, this.lats[a] + t * (this.lats[b] - this.lats[a]),
+                            this.lons[a] + t * (this.lons[b] - this.lons[a]), distance);
+                }
+            }
+            // Only edges within the box are certain to have been seen
+            if (best != null && best.distance() <= radius * Math.min(metersPerLat, metersPerLon)) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the fastest route between two locations with a bidirectional A* search
+     * @param costs The costs to use
+     * @param from The start
+     * @param to The end
+     * @param token The token for cancelling the search
+     * @return The route, or {@code null} if the end can't be reached
+     */
+    Path route(Costs costs, Snap from, Snap to, CancellationToken token) {
+        final double[] cost = costs.edgeCosts();
+        final Search search = new Search(costs, from, to);
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        // Both locations may be on the same segment
+        if (from.edge() == to.edge()) {
+            if (to.fraction() >= from.fraction()) {
+                best = Math.min(best, (to.fraction() - from.fraction()) * cost[from.edge()]);
+            }
+            final int twin = this.edgeTwin[from.edge()];
+            if (twin >= 0 && to.fraction() <= from.fraction()) {
+                best = Math.min(best, (from.fraction() - to.fraction()) * cost[twin]);
+            }
+        }
+        final int fromTwin = this.edgeTwin[from.edge()];
+        search.seedForward(this.edgeTarget[from.edge()], (1 - from.fraction()) * cost[from.edge()]);
+        if (fromTwin >= 0) {
+            search.seedForward(this.edgeSource[from.edge()], from.fraction() * cost[fromTwin]);
+        }
+        final int toTwin = this.edgeTwin[to.edge()];
+        search.seedReverse(this.edgeSource[to.edge()], to.fraction() * cost[to.edge()]);
+        if (toTwin >= 0) {
+            search.seedReverse(this.edgeTarget[to.edge()], (1 - to.fraction()) * cost[toTwin]);
+        }
+        for (int i = 0; i < search.seedCount; i++) {
+            final int node = search.seeds[i];
+            if (search.forward[node] + search.reverse[node] < best) {
+                best = search.forward[node] + search.reverse[node];
+                meet = node;
+            }
+        }
+        int steps = 0;
+        while (true) {
+            if ((++steps & 0xFFF) == 0) {
+                token.throwIfCancelled();
+            }
+            final double topForward = search.forwardQueue.peekKey();
+            final double topReverse = search.reverseQueue.peekKey();
+            if (topForward + topReverse >= best) {
+                break;
+            }
+            if (topForward <= topReverse) {
+                final double key = topForward;
+                final int u = search.forwardQueue.poll();
+                if (key > search.forward[u] + search.potential(u) + 1e-9) {
+                    continue; // Stale entry
+                }
+                for (int e = this.firstEdge[u]; e < this.firstEdge[u + 1]; e++) {
+                    final int v = this.edgeTarget[e];
+                    final double distance = search.forward[u] + cost[e];
+                    if (distance < search.forward[v]) {
+                        search.forward[v] = distance;
+                        search.forwardParent[v] = e;
+                        search.forwardQueue.add(v, distance + search.potential(v));
+                        if (distance + search.reverse[v] < best) {
+                            best = distance + search.reverse[v];
+                            meet = v;
+                        }
+                    }
+                }
+            } else {
+                final double key = topReverse;
+                final int v = search.reverseQueue.poll();
+                if (key > search.reverse[v] - search.potential(v) + 1e-9) {
+                    continue;
+                }
+                for (int i = this.firstIncoming[v]; i < this.firstIncoming[v + 1]; i++) {
+                    final int e = this.incoming[i];
+                    final int u = this.edgeSource[e];
+                    final double distance = search.reverse[v] + cost[e];
+                    if (distance < search.reverse[u]) {
+                        search.reverse[u] = distance;
+                        search.reverseParent[u] = e;
+                        search.reverseQueue.add(u, distance - search.potential(u));
+                        if (distance + search.forward[u] < best) {
+                            best = distance + search.forward[u];
+                            meet = u;
+                        }
+                    }
+                }
+            }
+        }
+        if (Double.isInfinite(best)) {
+            return null;
+        }
+        if (meet < 0) {
+            return new Path(from, to, new int[0], new int[0], best);
+        }
+        return search.path(meet, best);
+    }
+
+    /**
+     * Find the fastest routes from one location to many others with a single Dijkstra search, which stops once the
+     * ends of every target segment are settled
+     * @param costs The costs to use
+     * @param from The start
+     * @param targets The ends; {@code null} ends are skipped
+     * @param token The token for cancelling the search
+     * @param times Receives the travel time to each target in seconds, or {@link Double#NaN} if it can't be reached
+     * @param lengths Receives the length of the route to each target in meters, or {@link Double#NaN}
+     */
+    void routeToMany(Costs costs, Snap from, Snap[] targets, CancellationToken token, double[] times,
+            double[] lengths) {
+        final double[] cost = costs.edgeCosts();
+        final int nodes = nodeCount();
+        final double[] distance = new double[nodes];
+        final double[] length = new double[nodes];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        final boolean[] settled = new boolean[nodes];
+        // The number of target segment ends at each node
+        final int[] waiting = new int[nodes];
+        int remaining = 0;
+        for (Snap to : targets) {
+            if (to != null) {
+                waiting[this.edgeSource[to.edge()]]++;
+                waiting[this.edgeTarget[to.edge()]]++;
+                remaining += 2;
+            }
+        }
+        final Heap queue = new Heap();
+        final int fromEdge = from.edge();
+        final int fromTwin = this.edgeTwin[fromEdge];
+        final int fromTarget = this.edgeTarget[fromEdge];
+        distance[fromTarget] = (1 - from.fraction()) * cost[fromEdge];
+        length[fromTarget] = (1 - from.fraction()) * this.edgeLength[fromEdge];
+        queue.add(fromTarget, distance[fromTarget]);
+        if (fromTwin >= 0) {
+            final int fromSource = this.edgeSource[fromEdge];
+            distance[fromSource] = from.fraction() * cost[fromTwin];
+            length[fromSource] = from.fraction() * this.edgeLength[fromEdge];
+            queue.add(fromSource, distance[fromSource]);
+        }
+        int steps = 0;
+        while (remaining > 0 && !queue.isEmpty()) {
+            if ((++steps & 0xFFF) == 0) {
+                token.throwIfCancelled();
+            }
+            final int u = queue.poll();
+            if (settled[u] || Double.isInfinite(distance[u])) {
+                continue;
+            }
+            settled[u] = true;
+            remaining -= waiting[u];
+            for (int e = this.firstEdge[u]; e < this.firstEdge[u + 1]; e++) {
+                final int v = this.edgeTarget[e];
+                final double d = distance[u] + cost[e];
+                if (!settled[v] && d < distance[v]) {
+                    distance[v] = d;
+                    length[v] = length[u] + this.edgeLength[e];
+                    queue.add(v, d);
+                }
+            }
+        }
+        for (int i = 0; i < targets.length; i++) {
+            final Snap to = targets[i];
+            double bestTime = Double.POSITIVE_INFINITY;
+            double bestLength = Double.NaN;
+            if (to != null) {
+                final int e = to.edge();
+                final int twin = this.edgeTwin[e];
+                final double t = to.fraction();
+                final double viaSource = distance[this.edgeSource[e]] + t * cost[e];
+                if (viaSource < bestTime) {
+                    bestTime = viaSource;
+                    bestLength = length[this.edgeSource[e]] + t * this.edgeLength[e];
+                }
+                if (twin >= 0 && distance[this.edgeTarget[e]] + (1 - t) * cost[twin] < bestTime) {
+                    bestTime = distance[this.edgeTarget[e]] + (1 - t) * cost[twin];
+                    bestLength = length[this.edgeTarget[e]] + (1 - t) * this.edgeLength[e];
+                }
+                // Both locations may be on the same segment
+                if (e == fromEdge && t >= from.fraction() && (t - from.fraction()) * cost[e] < bestTime) {
+                    bestTime = (t - from.fraction()) * cost[e];
+                    bestLength = (t - from.fraction()) * this.edgeLength[e];
+                }
+                if (e == fromEdge && twin >= 0 && t <= from.fraction()
+                        && (from.fraction() - t) * cost[twin] < bestTime) {
+                    bestTime = (from.fraction() - t) * cost[twin];
+                    bestLength = (from.fraction() - t) * this.edgeLength[e];
+                }
+            }
+            times[i] = Double.isInfinite(bestTime) ? Double.NaN : bestTime;
+            lengths[i] = Double.isInfinite(bestTime) ? Double.NaN : bestLength;
+        }
+    }
+
+    /**
+     * Get the distance between two points
+     * @return The great circle distance in meters
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        final double dLat = Math.toRadians(lat2 - lat1);
+        final double dLon = Math.toRadians(lon2 - lon1);
+        final double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * The state of one search. The potential is the average of the forward and reverse heuristics, which keeps the
+     * reduced edge costs the same in both directions, so the searches can stop as soon as their queues meet.
+     */
+    private final class Search {
+        final double[] forward;
+        final double[] reverse;
+        final int[] forwardParent;
+        final int[] reverseParent;
+        final Heap forwardQueue = new Heap();
+        final Heap reverseQueue = new Heap();
+        /** The nodes next to the start and end, where the searches may already meet */
+        final int[] seeds = new int[4];
+        int seedCount;
+        private final Snap from;
+        private final Snap to;
+        private final double speed;
+
+        Search(Costs costs, Snap from, Snap to) {
+            final int nodes = nodeCount();
+            this.forward = new double[nodes];
+            this.reverse = new double[nodes];
+            Arrays.fill(this.forward, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.reverse, Double.POSITIVE_INFINITY);
+            this.forwardParent = new int[nodes];
+            this.reverseParent = new int[nodes];
+            Arrays.fill(this.forwardParent, -1);
+            Arrays.fill(this.reverseParent, -1);
+            this.from = from;
+            this.to = to;
+            this.speed = costs.maxSpeed();
+        }
+
+        double potential(int node) {
+            final double toEnd = distance(lats[node], lons[node], this.to.lat(), this.to.lon());
+            final double fromStart = distance(this.from.lat(), this.from.lon(), lats[node], lons[node]);
+            return (toEnd - fromStart) / (2 * this.speed);
+        }
+
+        void seedForward(int node, double distance) {
+            if (distance < this.forward[node]) {
+                this.forward[node] = distance;
+                this.forwardQueue.add(node, distance + potential(node));
+                this.seeds[this.seedCount++] = node;
+            }
+        }
+
+        void seedReverse(int node, double distance) {
+            if (distance < this.reverse[node]) {
+                this.reverse[node] = distance;
+                this.reverseQueue.add(node, distance - potential(node));
+                this.seeds[this.seedCount++] = node;
+            }
+        }
+
+        Path path(int meet, double cost) {
+            int count = 0;
+            for (int node = meet; this.forwardParent[node] >= 0; node = edgeSource[this.forwardParent[node]]) {
+                count++;
+            }
+            for (int node = meet; this.reverseParent[node] >= 0; node = edgeTarget[this.reverseParent[node]]) {
+                count++;
+            }
+            final int[] edges = new int[count];
+            final int[] nodes = new int[count + 1];
+            int index = 0;
+            for (int node = meet; this.forwardParent[node] >= 0; node = edgeSource[this.forwardParent[node]]) {
+                index++;
+            }
+            int i = index;
+            nodes[i] = meet;
+            for (int node = meet; this.forwardParent[node] >= 0; node = edgeSource[this.forwardParent[node]]) {
+                edges[--i] = this.forwardParent[node];
+                nodes[i] = edgeSource[edges[i]];
+            }
+            i = index;
+            for (int node = meet; this.reverseParent[node] >= 0; node = edgeTarget[this.reverseParent[node]]) {
+                edges[i] = this.reverseParent[node];
+                nodes[++i] = edgeTarget[edges[i - 1]];
+            }
+            return new Path(this.from, this.to, nodes, edges, cost);
+        }
+    }
+
+    /**
+     * A binary min-heap of nodes by key. Decreasing a key adds another entry; stale entries are skipped by the search.
+     */
+    private static final class Heap {
+        private int[] nodes = new int[64];
+        private double[] keys = new double[64];
+        private int size;
+
+        void add(int node, double key) {
+            if (this.size == this.nodes.length) {
+                this.nodes = Arrays.copyOf(this.nodes, 2 * this.size);
+                this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+            }
+            int i = this.size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (this.keys[parent] <= key) {
+                    break;
+                }
+                this.nodes[i] = this.nodes[parent];
+                this.keys[i] = this.keys[parent];
+                i = parent;
+            }
+            this.nodes[i] = node;
+            this.keys[i] = key;
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        double peekKey() {
+            return this.size == 0 ? Double.POSITIVE_INFINITY : this.keys[0];
+        }
+
+        int poll() {
+            final int top = this.nodes[0];
+            final int lastNode = this.nodes[--this.size];
+            final double lastKey = this.keys[this.size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if (child + 1 < this.size && this.keys[child + 1] < this.keys[child]) {
+                    child++;
+                }
+                if (this.keys[child] >= lastKey) {
+                    break;
+                }
+                this.nodes[i] = this.nodes[child];
+                this.keys[i] = this.keys[child];
+                i = child;
+            }
+            this.nodes[i] = lastNode;
+            this.keys[i] = lastKey;
+            return top;
+        }
+    }
+}
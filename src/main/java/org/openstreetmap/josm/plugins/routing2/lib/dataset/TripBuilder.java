@@ -0,0 +1,292 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.dataset;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Costing;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Locations;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+/**
+ * Convert {@link RoutingGraph.Path}s into the {@link Trip} records that valhalla routes are parsed into. Lengths are
+ * in miles, since the valhalla router asks for miles.
+ */
+final class TripBuilder {
+    static final double METERS_PER_MILE = 1609.344;
+    private static final String[] DIRECTIONS = {marktr("north"), marktr("northeast"), marktr("east"),
+            marktr("southeast"), marktr("south"), marktr("southwest"), marktr("west"), marktr("northwest")};
+
+    private TripBuilder() {
+        // Hide constructor
+    }
+
+    /**
+     * Build a trip from its legs
+     * @param locations The requested locations
+     * @param legs The legs between the locations
+     * @return The trip
+     */
+    static Trip trip(ILatLon[] locations, Legs[] legs) {
+        final Locations[] tripLocations = new Locations[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            tripLocations[i] = new Locations(locations[i].lat(), locations[i].lon(), null, Double.NaN, Double.NaN,
+                    null, 0L, 0, Double.NaN, false, null, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN,
+                    null, null, null, null, null, null, null, null, null, null, null);
+        }
+        boolean hasToll = false;
+        boolean hasHighway = false;
+        boolean hasFerry = false;
+        double minLat = Double.POSITIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double time = 0;
+        double length = 0;
+        double cost = 0;
+        for (Legs leg : legs) {
+            final Trip.Summary summary = leg.summary();
+            hasToll |= summary.has_toll();
+            hasHighway |= summary.has_highway();
+            hasFerry |= summary.has_ferry();
+            minLat = Math.min(minLat, summary.min_lat());
+            minLon = Math.min(minLon, summary.min_lon());
+            maxLat = Math.max(maxLat, summary.max_lat());
+            maxLon = Math.max(maxLon, summary.max_lon());
+            time += summary.time();
+            length += summary.length();
+            cost += summary.cost();
+        }
+        return new Trip(tripLocations, legs, new Trip.Summary(false, hasToll, hasHighway, hasFerry, minLat, minLon,
+                maxLat, maxLon, time, length, cost));
+    }
+
+    /**
+     * Build the leg for a path
+     * @param graph The graph the path was found in
+     * @param costs The costs the path was found with
+     * @param costing The costing the path was found with
+     * @param path The path
+     * @return The leg
+     */
+    static Legs leg(RoutingGraph graph, RoutingGraph.Costs costs, Costing costing, RoutingGraph.Path path) {
+        final double[] edgeCosts = costs.edgeCosts();
+        final RoutingGraph.Snap from = path.from();
+        final RoutingGraph.Snap to = path.to();
+        final int[] nodes = path.nodes();
+        final int points = nodes.length + 2;
+        final double[] shape = new double[2 * points];
+        shape[0] = from.lat();
+        shape[1] = from.lon();
+        for (int i = 0; i < nodes.length; i++) {
+            shape[2 * i + 2] = graph.lats[nodes[i]];
+            shape[2 * i + 3] = graph.lons[nodes[i]];
+        }
+        shape[2 * points - 2] = to.lat();
+        shape[2 * points - 1] = to.lon();
+        // Segment i goes from shape point i to shape point i + 1
+        final int segments = points - 1;
+        final int[] segmentWay = new int[segments];
+        final double[] segmentCost = new double[segments];
+        if (nodes.length == 0) {
+            segmentWay[0] = graph.edgeWay[from.edge()];
+            segmentCost[0] = path.cost();
+        } else {
+            final int last = segments - 1;
+            segmentWay[0] = graph.edgeWay[from.edge()];
+            segmentCost[0] = nodes[0] == graph.edgeTarget[from.edge()]
+                    ? (1 - from.fraction()) * edgeCosts[from.edge()]
+                    : from.fraction() * edgeCosts[graph.edgeTwin[from.edge()]];
+            for (int i = 0; i < path.edges().length; i++) {
+                segmentWay[i + 1] = graph.edgeWay[path.edges()[i]];
+                segmentCost[i + 1] = edgeCosts[path.edges()[i]];
+            }
+            segmentWay[last] = graph.edgeWay[to.edge()];
+            segmentCost[last] = nodes[nodes.length - 1] == graph.edgeSource[to.edge()]
+                    ? to.fraction() * edgeCosts[to.edge()]
+                    : (1 - to.fraction()) * edgeCosts[graph.edgeTwin[to.edge()]];
+        }
+        final double[] segmentLength = new double[segments];
+        for (int i = 0; i < segments; i++) {
+            segmentLength[i] = RoutingGraph.distance(shape[2 * i], shape[2 * i + 1], shape[2 * i + 2],
+                    shape[2 * i + 3]);
+        }
+
+        final RoutingGraph.Mode mode = RoutingGraph.Mode.of(costing);
+        final String travelMode = switch (mode) {
+            case DRIVE -> "drive";
+            case BICYCLE -> "bicycle";
+            case FOOT -> "pedestrian";
+        };
+        final String travelType = switch (mode) {
+            case DRIVE -> costing == Costing.AUTO ? "car" : costing.name().toLowerCase(Locale.ROOT);
+            case BICYCLE -> "road";
+            case FOOT -> "foot";
+        };
+        final List<Maneuver> maneuvers = new ArrayList<>();
+        double totalTime = 0;
+        double totalLength = 0;
+        byte flags = 0;
+        int start = 0;
+        while (start < segments) {
+            int end = start + 1;
+            while (end < segments && sameStreet(graph, segmentWay[start], segmentWay[end])) {
+                end++;
+            }
+            double time = 0;
+            double length = 0;
+            for (int i = start; i < end; i++) {
+                time += segmentCost[i];
+                length += segmentLength[i];
+                flags |= graph.wayFlags[segmentWay[i]];
+            }
+            final int way = segmentWay[start];
+            final String name = graph.wayNames[way];
+            final double outgoing = bearing(shape, segmentLength, start, end, true);
+            final Maneuver.Type type;
+            final String instruction;
+            if (start == 0) {
+                type = Maneuver.Type.START;
+                final String direction = Double.isNaN(outgoing) ? null : tr(DIRECTIONS[direction(outgoing)]);
+                instruction = startInstruction(mode, direction, name);
+            } else if ((graph.wayFlags[way] & RoutingGraph.FERRY) != 0
+                    && (graph.wayFlags[segmentWay[start - 1]] & RoutingGraph.FERRY) == 0) {
+                type = Maneuver.Type.FERRY_ENTER;
+                instruction = name == null ? tr("Take the ferry.") : tr("Take the {0}.", name);
+            } else {
+                type = turn(bearing(shape, segmentLength, 0, start, false), outgoing);
+                instruction = turnInstruction(type, name);
+            }
+            maneuvers.add(new Maneuver(type, instruction, null, null, null, time, length / METERS_PER_MILE, time,
+                    start, end, false, travelMode, travelType));
+            totalTime += time;
+            totalLength += length;
+            start = end;
+        }
+        maneuvers.add(new Maneuver(Maneuver.Type.DESTINATION, tr("You have arrived at your destination."), null,
+                null, null, 0, 0, 0, segments, segments, false, travelMode, travelType));
+
+        double minLat = Double.POSITIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < shape.length; i += 2) {
+            minLat = Math.min(minLat, shape[i]);
+            minLon = Math.min(minLon, shape[i + 1]);
+            maxLat = Math.max(maxLat, shape[i]);
+            maxLon = Math.max(maxLon, shape[i + 1]);
+        }
+        final Trip.Summary summary = new Trip.Summary(false, (flags & RoutingGraph.TOLL) != 0,
+                (flags & RoutingGraph.HIGHWAY) != 0, (flags & RoutingGraph.FERRY) != 0, minLat, minLon, maxLat, maxLon,
+                totalTime, totalLength / METERS_PER_MILE, totalTime);
+        return new Legs(maneuvers.toArray(new Maneuver[0]), summary, shape);
+    }
+
+    private static boolean sameStreet(RoutingGraph graph, int way, int other) {
+        if (way == other) {
+            return true;
+        }
+        final String name = graph.wayNames[way];
+        return name != null && name.equals(graph.wayNames[other])
+                && ((graph.wayFlags[way] ^ graph.wayFlags[other]) & RoutingGraph.FERRY) == 0;
+    }
+
+    /**
+     * Get the bearing at one end of a run of segments, ignoring segments without length
+     * @param shape The shape
+     * @param segmentLength The segment lengths
+     * @param start The first segment of the run
+     * @param end The segment after the run
+     * @param first {@code true} for the bearing at the start of the run, {@code false} for the bearing at its end
+     * @return The bearing in degrees, or {@link Double#NaN} if all segments are empty
+     */
+    private static double bearing(double[] shape, double[] segmentLength, int start, int end, boolean first) {
+        for (int n = 0; n < end - start; n++) {
+            final int i = first ? start + n : end - 1 - n;
+            if (segmentLength[i] > 0) {
+                final double lat1 = Math.toRadians(shape[2 * i]);
+                final double lat2 = Math.toRadians(shape[2 * i + 2]);
+                final double dLon = Math.toRadians(shape[2 * i + 3] - shape[2 * i + 1]);
+                final double y = Math.sin(dLon) * Math.cos(lat2);
+                final double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+                return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static int direction(double bearing) {
+        return (int) Math.round(bearing / 45) % DIRECTIONS.length;
+    }
+
+    /**
+     * Classify the turn between two bearings
+     * @param incoming The bearing before the turn
+     * @param outgoing The bearing after the turn
+     * @return The maneuver type
+     */
+    static Maneuver.Type turn(double incoming, double outgoing) {
+        if (Double.isNaN(incoming) || Double.isNaN(outgoing)) {
+            return Maneuver.Type.CONTINUE;
+        }
+        // Positive angles turn clockwise, to the right
+        final double angle = ((outgoing - incoming) % 360 + 540) % 360 - 180;
+        final double magnitude = Math.abs(angle);
+        final boolean right = angle > 0;
+        if (magnitude < 20) {
+            return Maneuver.Type.CONTINUE;
+        } else if (magnitude < 45) {
+            return right ? Maneuver.Type.SLIGHT_RIGHT : Maneuver.Type.SLIGHT_LEFT;
+        } else if (magnitude < 135) {
+            return right ? Maneuver.Type.RIGHT : Maneuver.Type.LEFT;
+        } else if (magnitude < 170) {
+            return right ? Maneuver.Type.SHARP_RIGHT : Maneuver.Type.SHARP_LEFT;
+        }
+        return right ? Maneuver.Type.U_TURN_RIGHT : Maneuver.Type.U_TURN_LEFT;
+    }
+
+    private static String startInstruction(RoutingGraph.Mode mode, String direction, String name) {
+        if (direction == null) {
+            return name == null ? "" : tr("Start on {0}.", name);
+        }
+        return switch (mode) {
+            case DRIVE -> name == null ? tr("Drive {0}.", direction) : tr("Drive {0} on {1}.", direction, name);
+            case BICYCLE -> name == null ? tr("Bike {0}.", direction) : tr("Bike {0} on {1}.", direction, name);
+            case FOOT -> name == null ? tr("Walk {0}.", direction) : tr("Walk {0} on {1}.", direction, name);
+        };
+    }
+
+    private static String turnInstruction(Maneuver.Type type, String name) {
+        if (name == null) {
+            return switch (type) {
+                case SLIGHT_RIGHT -> tr("Bear right.");
+                case SLIGHT_LEFT -> tr("Bear left.");
+                case RIGHT -> tr("Turn right.");
+                case LEFT -> tr("Turn left.");
+                case SHARP_RIGHT -> tr("Make a sharp right.");
+                case SHARP_LEFT -> tr("Make a sharp left.");
+                case U_TURN_RIGHT -> tr("Make a right U-turn.");
+                case U_TURN_LEFT -> tr("Make a left U-turn.");
+                default -> tr("Continue.");
+            };
+        }
+        return switch (type) {
+            case SLIGHT_RIGHT -> tr("Bear right onto {0}.", name);
+            case SLIGHT_LEFT -> tr("Bear left onto {0}.", name);
+            case RIGHT -> tr("Turn right onto {0}.", name);
+            case LEFT -> tr("Turn left onto {0}.", name);
+            case SHARP_RIGHT -> tr("Make a sharp right onto {0}.", name);
+            case SHARP_LEFT -> tr("Make a sharp left onto {0}.", name);
+            case U_TURN_RIGHT -> tr("Make a right U-turn onto {0}.", name);
+            case U_TURN_LEFT -> tr("Make a left U-turn onto {0}.", name);
+            default -> tr("Continue on {0}.", name);
+        };
+    }
+}
@@ -0,0 +1,128 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A token for cancelling work, like routing or setup. Cancellation callbacks are used to stop work that does not
+ * check the token itself, like external processes or http requests.
+ */
+public final class CancellationToken {
+    /** A token that is never cancelled */
+    public static final CancellationToken NONE = new CancellationToken();
+
+    /* Guarded by this */
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    /**
+     * A registered cancellation callback
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+        /**
+         * Remove the callback; it will not be called if the token is cancelled later
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Create a token that is cancelled when the progress monitor is cancelled
+     * @param progressMonitor The monitor to follow
+     * @return The new token
+     */
+    public static CancellationToken of(ProgressMonitor progressMonitor) {
+        final CancellationToken token = new CancellationToken();
+        progressMonitor.addCancelListener(token::cancel);
+        if (progressMonitor.isCanceled()) {
+            token.cancel();
+        }
+        return token;
+    }
+
+    /**
+     * Create a token that is cancelled when this token is cancelled, but which can also be cancelled on its own.
+     * Cancel the child once its work is done, so that this token no longer refers to it.
+     * @return The new token
+     */
+    public CancellationToken child() {
+        final CancellationToken child = new CancellationToken();
+        if (this != NONE) {
+            final Registration registration = onCancel(child::cancel);
+            child.onCancel(registration::close);
+        }
+        return child;
+    }
+
+    /**
+     * Cancel the work. Callbacks are run on the calling thread.
+     */
+    public void cancel() {
+        if (this == NONE) {
+            return;
+        }
+        final List<Runnable> toRun;
+        synchronized (this) {
+            if (this.cancelled) {
+                return;
+            }
+            this.cancelled = true;
+            toRun = new ArrayList<>(this.callbacks);
+            this.callbacks.clear();
+        }
+        for (Runnable callback : toRun) {
+            try {
+                callback.run();
+            } catch (RuntimeException runtimeException) {
+                Logging.error(runtimeException);
+            }
+        }
+    }
+
+    /**
+     * Check if the work has been cancelled
+     * @return {@code true} if {@link #cancel()} has been called
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Stop if the work has been cancelled
+     * @throws CancellationException if the work has been cancelled
+     */
+    public void throwIfCancelled() {
+        if (this.cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Run a callback when the work is cancelled. If the work has already been cancelled, the callback is run now.
+     * @param callback The callback to run
+     * @return The registration, which should be closed when the callback is no longer needed
+     */
+    public Registration onCancel(Runnable callback) {
+        if (this == NONE) {
+            return () -> { };
+        }
+        synchronized (this) {
+            if (!this.cancelled) {
+                this.callbacks.add(callback);
+                return () -> {
+                    synchronized (this) {
+                        this.callbacks.remove(callback);
+                    }
+                };
+            }
+        }
+        callback.run();
+        return () -> { };
+    }
+}
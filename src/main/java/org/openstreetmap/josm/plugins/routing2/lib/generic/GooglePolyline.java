@@ -1,13 +1,20 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.routing2.lib.generic;
 
-import java.util.Arrays;
-
 /**
  * A java implementation of Google's encoded
  * <a href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm">polyline</a>.
+ * <p>
+ * Each value is a zig-zag encoded delta from the previous value of the same coordinate, split into 5 bit chunks
+ * (least significant first). Every chunk except the last has {@code 0x20} set, and {@code 63} is added to each chunk
+ * to make it a printable character.
  */
 public final class GooglePolyline {
+    private static final int CHUNK_BITS = 5;
+    private static final int CHUNK_MASK = 0x1f;
+    private static final int CONTINUATION = 0x20;
+    private static final int OFFSET = 63;
+
     private GooglePolyline() {
         // Hide constructor
     }
@@ -28,42 +35,27 @@ public final class GooglePolyline {
             // Get the 1e5 value
             final int e5lat = Math.toIntExact(Math.round(1e5 * doubles[i]));
             final int e5lon = Math.toIntExact(Math.round(1e5 * doubles[i + 1]));
-            sb.append(convertE5(e5lat - lastLat1e5));
-            sb.append(convertE5(e5lon - lastLon1e5));
+            encodeValue(sb, e5lat - lastLat1e5);
+            encodeValue(sb, e5lon - lastLon1e5);
             lastLat1e5 = e5lat;
             lastLon1e5 = e5lon;
         }
-        // Finally, convert the chunks to a string
         return sb.toString();
     }
 
     /**
-     * Perform the encoding of a 1e5 value
-     * @param e5 The value to encode
-     * @return The encoded value as a char array
+     * Perform the encoding of a single delta
+     * @param sb The builder to append the encoded value to
+     * @param value The value to encode
      */
-    private static char[] convertE5(int e5) {
-        // Java is already 2 complement, so we don't have to specially handle negative numbers here.
-        int shift = e5 << 1; // we do lose the leading binary
-        if (e5 < 0) { // If original was negative, invert the encoding
-            shift = ~shift;
-        }
-        // Convert to binary
-        final String binary = Integer.toBinaryString(shift);
-        // Split into 5 bit chunks, starting from right side (reverse order)
-        final byte overflow = (byte) (binary.length() % 5 > 0 ? 1 : 0);
-        final char[] chunks = new char[binary.length() / 5 + overflow];
-        final String[] cc = new String[chunks.length];
-        for (int i = binary.length(); i > 0; i -= 5) {
-            int j = chunks.length - i / 5 - overflow;
-            cc[j] = binary.substring(Math.max(0, i - 5), i);
-            chunks[j] = (char) Short.parseShort(cc[j], 2);
-            if (j != chunks.length - 1) {
-                chunks[j] |= 0x20; // If not the last chunk or it with 0x20
-            }
-            chunks[j] += 63; // Add 63 to each chunk
+    private static void encodeValue(StringBuilder sb, int value) {
+        // Zig-zag encoding: move the sign to the lowest bit
+        int shift = value < 0 ? ~(value << 1) : value << 1;
+        while ((shift & ~CHUNK_MASK) != 0) {
+            sb.append((char) (((shift & CHUNK_MASK) | CONTINUATION) + OFFSET));
+            shift >>>= CHUNK_BITS;
         }
-        return chunks;
+        sb.append((char) (shift + OFFSET));
     }
 
     /**
@@ -81,45 +73,122 @@ public final class GooglePolyline {
      * @param precision The precision to use
      * @return The decoded polyline
      */
-    public static double[] decode(String polyline, double precision) {
-        // This is the absolute "maximum" number of points. Could be optimized, probably not high traffic code path.
-        double[] points = new double[polyline.length()];
-        // Start performing char operations
-        char[] chars = polyline.toCharArray();
-        int point = 0;
-        int current = 0;
-        char[] chunks = new char[8]; // 8 * 4 = 32 bits
-        int lastLat1e5 = 0;
-        int lastLon1e5 = 0;
-        for (int i = 0; i < chars.length; i++) {
-            // First, remove 63 from each char value
-            chars[i] -= 63;
-            // Check if this is the last one
-            boolean isLast = (chars[i] & 0x20) == 0;
-            chars[i] &= (char) (~0x20 & chars[i]);
-            chunks[current++] = chars[i];
-            if (isLast) {
-                int value = 0;
-                while (current > 0) {
-                    value = (value << 5) + chunks[--current];
-                }
-                if ((chunks[0] & 1) != 0) {
-                    // Assume it was negative
-                    value = ~value;
+    public static double[] decode(CharSequence polyline, double precision) {
+        final double[] points = new double[count(polyline, 0, polyline.length())];
+        decode(polyline, 0, polyline.length(), precision, points, 0);
+        return points;
+    }
+
+    /**
+     * Decode part of a polyline into an existing buffer
+     * @param polyline The polyline to decode
+     * @param start The index of the first character to decode (inclusive)
+     * @param end The index of the last character to decode (exclusive)
+     * @param precision The precision to use
+     * @param destination The buffer to write to; this must have room for {@link #count(CharSequence, int, int)}
+     *                    values after {@code offset}
+     * @param offset The index in {@code destination} to start writing at
+     * @return The number of values written
+     */
+    public static int decode(CharSequence polyline, int start, int end, double precision, double[] destination,
+            int offset) {
+        int lat = 0;
+        int lon = 0;
+        int written = 0;
+        int result = 0;
+        int shift = 0;
+        for (int i = start; i < end; i++) {
+            final int chunk = polyline.charAt(i) - OFFSET;
+            result |= (chunk & CHUNK_MASK) << shift;
+            shift += CHUNK_BITS;
+            if ((chunk & CONTINUATION) == 0) {
+                final int delta = (result & 1) != 0 ? ~(result >>> 1) : result >>> 1;
+                final int value;
+                if ((written & 1) == 0) {
+                    lat += delta;
+                    value = lat;
+                } else {
+                    lon += delta;
+                    value = lon;
                 }
-                value = value >> 1;
-                if (point % 2 == 0) {
-                    value += lastLat1e5;
-                    lastLat1e5 = value;
+                destination[offset + written++] = value / precision;
+                result = 0;
+                shift = 0;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Decode to integer coordinates with 6 decimal places (E6), avoiding floating point math where possible
+     * @param polyline The polyline to decode
+     * @param precision The precision the polyline was encoded with
+     * @return The decoded polyline, in E6 lat/lon pairs
+     */
+    public static int[] decodeE6(CharSequence polyline, double precision) {
+        final int[] points = new int[count(polyline, 0, polyline.length())];
+        decodeE6(polyline, 0, polyline.length(), precision, points, 0);
+        return points;
+    }
+
+    /**
+     * Decode part of a polyline to integer coordinates with 6 decimal places (E6)
+     * @param polyline The polyline to decode
+     * @param start The index of the first character to decode (inclusive)
+     * @param end The index of the last character to decode (exclusive)
+     * @param precision The precision the polyline was encoded with
+     * @param destination The buffer to write to; this must have room for {@link #count(CharSequence, int, int)}
+     *                    values after {@code offset}
+     * @param offset The index in {@code destination} to start writing at
+     * @return The number of values written
+     */
+    public static int decodeE6(CharSequence polyline, int start, int end, double precision, int[] destination,
+            int offset) {
+        // Most polylines are 1e5 or 1e6, which can be converted with integer math
+        final double scale = 1e6 / precision;
+        final int multiplier = scale >= 1 && scale == Math.rint(scale) ? (int) scale : 0;
+        int lat = 0;
+        int lon = 0;
+        int written = 0;
+        int result = 0;
+        int shift = 0;
+        for (int i = start; i < end; i++) {
+            final int chunk = polyline.charAt(i) - OFFSET;
+            result |= (chunk & CHUNK_MASK) << shift;
+            shift += CHUNK_BITS;
+            if ((chunk & CONTINUATION) == 0) {
+                final int delta = (result & 1) != 0 ? ~(result >>> 1) : result >>> 1;
+                final int value;
+                if ((written & 1) == 0) {
+                    lat += delta;
+                    value = lat;
                 } else {
-                    value += lastLon1e5;
-                    lastLon1e5 = value;
+                    lon += delta;
+                    value = lon;
                 }
-                points[point++] = value / precision;
-                current = 0;
+                destination[offset + written++] = multiplier != 0 ? value * multiplier
+                        : (int) Math.round(value * scale);
+                result = 0;
+                shift = 0;
             }
         }
+        return written;
+    }
 
-        return Arrays.copyOf(points, point);
+    /**
+     * Count the number of values in part of a polyline. Two values make up a single coordinate.
+     * @param polyline The polyline
+     * @param start The index of the first character to count (inclusive)
+     * @param end The index of the last character to count (exclusive)
+     * @return The number of values that {@link #decode(CharSequence, int, int, double, double[], int)} will write
+     */
+    public static int count(CharSequence polyline, int start, int end) {
+        int values = 0;
+        for (int i = start; i < end; i++) {
+            if (((polyline.charAt(i) - OFFSET) & CONTINUATION) == 0) {
+                values++;
+            }
+        }
+        return values;
     }
 }
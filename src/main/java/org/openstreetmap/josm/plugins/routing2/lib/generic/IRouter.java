@@ -1,6 +1,10 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.routing2.lib.generic;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.openstreetmap.josm.data.coor.ILatLon;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
@@ -22,11 +26,97 @@ public interface IRouter {
      */
     void performSetup(ProgressMonitor progressMonitor) throws SetupException;
 
+    /**
+     * Prepare routing on a layer ahead of the first route, for example by performing setup and building the routing
+     * graph. This may take a long time, and is meant to be called in the background.
+     * @param token The token for cancelling the preparation
+     * @param layer The layer that will be routed on
+     * @throws java.util.concurrent.CancellationException if the token was cancelled
+     */
+    default void prepare(CancellationToken token, OsmDataLayer layer) {
+        // Most routers have nothing to prepare
+    }
+
     /**
      * Generate a route
      * @param layer The layer to do routing on
      * @param locations The locations (at least two locations must be specified; the start and end points)
      * @throws TripException when trip calculations fail
      */
-    Trip generateRoute(OsmDataLayer layer, ILatLon... locations) throws TripException;
+    default Trip generateRoute(OsmDataLayer layer, ILatLon... locations) throws TripException {
+        return generateRoute(CancellationToken.NONE, layer, locations);
+    }
+
+    /**
+     * Generate a route
+     * @param token The token for cancelling the route; routers should stop any external work when it is cancelled
+     * @param layer The layer to do routing on
+     * @param locations The locations (at least two locations must be specified; the start and end points)
+     * @throws TripException when trip calculations fail
+     * @throws java.util.concurrent.CancellationException if the token was cancelled
+     */
+    Trip generateRoute(CancellationToken token, OsmDataLayer layer, ILatLon... locations) throws TripException;
+
+    /**
+     * Generate a route without blocking the calling thread. The route is calculated on a virtual thread, so routes
+     * for different layers are calculated at the same time.
+     * @param token The token for cancelling the route
+     * @param layer The layer to do routing on
+     * @param locations The locations (at least two locations must be specified; the start and end points)
+     * @return The trip, or {@code null} if there is no route. Cancelling the future cancels the route, like cancelling
+     * the token does. It completes exceptionally with a {@link TripException} when trip calculations fail.
+     */
+    default CompletableFuture<Trip> generateRouteAsync(CancellationToken token, OsmDataLayer layer,
+            ILatLon... locations) {
+        return RouterExecutors.supplyAsync(token, routeToken -> generateRoute(routeToken, layer, locations));
+    }
+
+    /**
+     * Generate many routes at once. Routers should pay their setup costs once for the whole batch, instead of once
+     * per route.
+     * @param token The token for cancelling the routes
+     * @param layer The layer to do routing on
+     * @param requests The locations of each route (each with at least two locations)
+     * @return The trips, in the order of the requests; a trip is {@code null} if there is no route for its request
+     * @throws TripException when trip calculations fail
+     * @throws java.util.concurrent.CancellationException if the token was cancelled
+     */
+    default Trip[] generateRoutes(CancellationToken token, OsmDataLayer layer, List<ILatLon[]> requests)
+            throws TripException {
+        final Trip[] trips = new Trip[requests.size()];
+        for (int i = 0; i < trips.length; i++) {
+            token.throwIfCancelled();
+            trips[i] = generateRoute(token, layer, requests.get(i));
+        }
+        return trips;
+    }
+
+    /**
+     * Get the travel times and lengths from every source to every target
+     * @param token The token for cancelling the calculation
+     * @param layer The layer to do routing on
+     * @param sources The start locations
+     * @param targets The end locations
+     * @return The matrix
+     * @throws TripException when the calculations fail
+     * @throws java.util.concurrent.CancellationException if the token was cancelled
+     */
+    default Matrix generateMatrix(CancellationToken token, OsmDataLayer layer, ILatLon[] sources, ILatLon[] targets)
+            throws TripException {
+        final List<ILatLon[]> requests = new ArrayList<>(sources.length * targets.length);
+        for (ILatLon source : sources) {
+            for (ILatLon target : targets) {
+                requests.add(new ILatLon[] {source, target});
+            }
+        }
+        final Trip[] trips = generateRoutes(token, layer, requests);
+        final Matrix matrix = Matrix.unreachable(sources.length, targets.length);
+        for (int i = 0; i < trips.length; i++) {
+            if (trips[i] != null) {
+                matrix.set(i / targets.length, i % targets.length, trips[i].summary().time(),
+                        trips[i].summary().length());
+            }
+        }
+        return matrix;
+    }
 }
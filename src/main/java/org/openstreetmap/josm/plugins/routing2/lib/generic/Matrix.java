@@ -0,0 +1,69 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.Arrays;
+
+/**
+ * The travel times and lengths from every source to every target. The values are stored row by row, one row per
+ * source, so the value for a pair is at {@code source * targets + target}.
+ * @param sources The number of sources
+ * @param targets The number of targets
+ * @param times The travel times in seconds, or {@link Double#NaN} where there is no route
+ * @param lengths The travel lengths in miles, like the route lengths, or {@link Double#NaN} where there is no route
+ */
+public record Matrix(int sources, int targets, double[] times, double[] lengths) {
+    /**
+     * Create a matrix without any routes
+     * @param sources The number of sources
+     * @param targets The number of targets
+     * @return The matrix, filled with {@link Double#NaN}
+     */
+    public static Matrix unreachable(int sources, int targets) {
+        final double[] times = new double[Math.multiplyExact(sources, targets)];
+        final double[] lengths = new double[times.length];
+        Arrays.fill(times, Double.NaN);
+        Arrays.fill(lengths, Double.NaN);
+        return new Matrix(sources, targets, times, lengths);
+    }
+
+    /**
+     * Get the travel time between a source and a target
+     * @param source The source index
+     * @param target The target index
+     * @return The time in seconds, or {@link Double#NaN} if there is no route
+     */
+    public double time(int source, int target) {
+        return this.times[index(source, target)];
+    }
+
+    /**
+     * Get the travel length between a source and a target
+     * @param source The source index
+     * @param target The target index
+     * @return The length in miles, or {@link Double#NaN} if there is no route
+     */
+    public double length(int source, int target) {
+        return this.lengths[index(source, target)];
+    }
+
+    /**
+     * Set the values for a pair
+     * @param source The source index
+     * @param target The target index
+     * @param time The time in seconds
+     * @param length The length in miles
+     */
+    public void set(int source, int target, double time, double length) {
+        final int index = index(source, target);
+        this.times[index] = time;
+        this.lengths[index] = length;
+    }
+
+    private int index(int source, int target) {
+        if (source < 0 || source >= this.sources || target < 0 || target >= this.targets) {
+            throw new IndexOutOfBoundsException("No pair " + source + " -> " + target + " in a " + this.sources
+                    + 'x' + this.targets + " matrix");
+        }
+        return source * this.targets + target;
+    }
+}
@@ -0,0 +1,429 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * Write OSM PBF files. The data is copied into a {@link Snapshot} while the data set is locked, and the file is
+ * written from the snapshot afterwards, so the data set can be edited while the file is being written.
+ * <p>
+ * Primitive blocks are encoded and compressed in parallel, and written in order. Only a few blocks per thread are
+ * kept in memory at a time.
+ * See <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a> for the message definitions.
+ */
+public final class OsmPbfWriter {
+    /** The number of primitives in a block; this is what most other writers use */
+    static final int BLOCK_SIZE = 8000;
+    /** The coordinate resolution; this is the default PBF granularity of 100 nanodegrees */
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final String[] NO_TAGS = new String[0];
+
+    // fileformat.proto: BlobHeader, Blob
+    private static final int BLOB_HEADER_TYPE = 1;
+    private static final int BLOB_HEADER_DATASIZE = 3;
+    private static final int BLOB_RAW_SIZE = 2;
+    private static final int BLOB_ZLIB_DATA = 3;
+    // osmformat.proto: HeaderBlock
+    private static final int HEADER_REQUIRED_FEATURES = 4;
+    private static final int HEADER_OPTIONAL_FEATURES = 5;
+    private static final int HEADER_WRITING_PROGRAM = 16;
+    // osmformat.proto: PrimitiveBlock, StringTable, PrimitiveGroup
+    private static final int BLOCK_STRING_TABLE = 1;
+    private static final int BLOCK_PRIMITIVE_GROUP = 2;
+    private static final int STRING_TABLE_S = 1;
+    private static final int GROUP_DENSE = 2;
+    private static final int GROUP_WAYS = 3;
+    private static final int GROUP_RELATIONS = 4;
+    // osmformat.proto: DenseNodes
+    private static final int DENSE_ID = 1;
+    private static final int DENSE_LAT = 8;
+    private static final int DENSE_LON = 9;
+    private static final int DENSE_KEYS_VALS = 10;
+    // osmformat.proto: Way, Relation
+    private static final int PRIMITIVE_ID = 1;
+    private static final int PRIMITIVE_KEYS = 2;
+    private static final int PRIMITIVE_VALS = 3;
+    private static final int WAY_REFS = 8;
+    private static final int RELATION_ROLES_SID = 8;
+    private static final int RELATION_MEMIDS = 9;
+    private static final int RELATION_TYPES = 10;
+    // osmformat.proto: Relation.MemberType
+    static final byte MEMBER_NODE = 0;
+    static final byte MEMBER_WAY = 1;
+    static final byte MEMBER_RELATION = 2;
+
+    private final Snapshot snapshot;
+    private final FileChannel channel;
+    private final ForkJoinPool pool;
+    private final int window;
+    private final Deque<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<>();
+
+    /**
+     * An immutable copy of the primitives to write. Primitives are sorted by type and then id, and tags are stored as
+     * alternating keys and values.
+     */
+    public static final class Snapshot {
+        final long[] nodeIds;
+        final int[] nodeLats;
+        final int[] nodeLons;
+        final String[][] nodeTags;
+        final long[] wayIds;
+        final long[][] wayNodes;
+        final String[][] wayTags;
+        final long[] relationIds;
+        final long[][] memberIds;
+        final byte[][] memberTypes;
+        final String[][] memberRoles;
+        final String[][] relationTags;
+
+        Snapshot(long[] nodeIds, int[] nodeLats, int[] nodeLons, String[][] nodeTags, long[] wayIds,
+                long[][] wayNodes, String[][] wayTags, long[] relationIds, long[][] memberIds, byte[][] memberTypes,
+                String[][] memberRoles, String[][] relationTags) {
+            this.nodeIds = nodeIds;
+            this.nodeLats = nodeLats;
+            this.nodeLons = nodeLons;
+            this.nodeTags = nodeTags;
+            this.wayIds = wayIds;
+            this.wayNodes = wayNodes;
+            this.wayTags = wayTags;
+            this.relationIds = relationIds;
+            this.memberIds = memberIds;
+            this.memberTypes = memberTypes;
+            this.memberRoles = memberRoles;
+            this.relationTags = relationTags;
+        }
+
+        /**
+         * Copy primitives for writing. This only copies ids, coordinates and tags, so it is cheap compared to
+         * writing the file.
+         * @param selection The primitives to copy. The caller should hold the read lock of their data set.
+         * @return The snapshot
+         */
+        public static Snapshot of(RoutablePrimitives.Selection selection) {
+            final Comparator<OsmPrimitive> byId = Comparator.comparingLong(OsmPrimitive::getUniqueId);
+            final Node[] nodes = selection.nodes().toArray(new Node[0]);
+            Arrays.sort(nodes, byId);
+            final long[] nodeIds = new long[nodes.length];
+            final int[] nodeLats = new int[nodes.length];
+            final int[] nodeLons = new int[nodes.length];
+            final String[][] nodeTags = new String[nodes.length][];
+            for (int i = 0; i < nodes.length; i++) {
+                nodeIds[i] = nodes[i].getUniqueId();
+                nodeLats[i] = (int) Math.round(nodes[i].lat() * COORDINATE_SCALE);
+                nodeLons[i] = (int) Math.round(nodes[i].lon() * COORDINATE_SCALE);
+                nodeTags[i] = tags(nodes[i]);
+            }
+            final Way[] ways = selection.ways().toArray(new Way[0]);
+            Arrays.sort(ways, byId);
+            final long[] wayIds = new long[ways.length];
+            final long[][] wayNodes = new long[ways.length][];
+            final String[][] wayTags = new String[ways.length][];
+            for (int i = 0; i < ways.length; i++) {
+                wayIds[i] = ways[i].getUniqueId();
+                wayNodes[i] = new long[ways[i].getNodesCount()];
+                for (int j = 0; j < wayNodes[i].length; j++) {
+                    wayNodes[i][j] = ways[i].getNode(j).getUniqueId();
+                }
+                wayTags[i] = tags(ways[i]);
+            }
+            final Relation[] relations = selection.relations().toArray(new Relation[0]);
+            Arrays.sort(relations, byId);
+            final long[] relationIds = new long[relations.length];
+            final long[][] memberIds = new long[relations.length][];
+            final byte[][] memberTypes = new byte[relations.length][];
+            final String[][] memberRoles = new String[relations.length][];
+            final String[][] relationTags = new String[relations.length][];
+            for (int i = 0; i < relations.length; i++) {
+                final List<RelationMember> members = relations[i].getMembers();
+                relationIds[i] = relations[i].getUniqueId();
+                memberIds[i] = new long[members.size()];
+                memberTypes[i] = new byte[members.size()];
+                memberRoles[i] = new String[members.size()];
+                for (int j = 0; j < members.size(); j++) {
+                    final RelationMember member = members.get(j);
+                    memberIds[i][j] = member.getUniqueId();
+                    memberTypes[i][j] = member.isNode() ? MEMBER_NODE : member.isWay() ? MEMBER_WAY : MEMBER_RELATION;
+                    memberRoles[i][j] = member.getRole();
+                }
+                relationTags[i] = tags(relations[i]);
+            }
+            return new Snapshot(nodeIds, nodeLats, nodeLons, nodeTags, wayIds, wayNodes, wayTags, relationIds,
+                    memberIds, memberTypes, memberRoles, relationTags);
+        }
+
+        private static String[] tags(OsmPrimitive primitive) {
+            if (!primitive.hasKeys()) {
+                return NO_TAGS;
+            }
+            final Map<String, String> keys = primitive.getKeys();
+            final String[] tags = new String[2 * keys.size()];
+            int i = 0;
+            for (Map.Entry<String, String> tag : keys.entrySet()) {
+                tags[i++] = tag.getKey();
+                tags[i++] = tag.getValue();
+            }
+            return tags;
+        }
+    }
+
+    /**
+     * A block encoder for a range of primitives of one type
+     */
+    @FunctionalInterface
+    private interface BlockEncoder {
+        ProtobufOutput encode(int from, int to);
+    }
+
+    private OsmPbfWriter(Snapshot snapshot, FileChannel channel, ForkJoinPool pool) {
+        this.snapshot = snapshot;
+        this.channel = channel;
+        this.pool = pool;
+        this.window = 2 * pool.getParallelism();
+    }
+
+    /**
+     * Write a snapshot to a file, using the common pool for encoding
+     * @param snapshot The primitives to write
+     * @param path The file to write
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Snapshot snapshot, Path path) throws IOException {
+        write(snapshot, path, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Write a snapshot to a file
+     * @param snapshot The primitives to write
+     * @param path The file to write
+     * @param pool The pool used for encoding blocks
+     * @throws IOException if the file could not be written
+     */
+    static void write(Snapshot snapshot, Path path, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final OsmPbfWriter writer = new OsmPbfWriter(snapshot, channel, pool);
+            try {
+                writer.writeFully(blob("OSMHeader", header()));
+                writer.writeBlocks(snapshot.nodeIds.length, writer::encodeNodes);
+                writer.writeBlocks(snapshot.wayIds.length, writer::encodeWays);
+                writer.writeBlocks(snapshot.relationIds.length, writer::encodeRelations);
+                while (!writer.pending.isEmpty()) {
+                    writer.writeFully(writer.pending.removeFirst().join());
+                }
+            } finally {
+                writer.pending.forEach(task -> task.cancel(true));
+            }
+        }
+    }
+
+    private void writeBlocks(int count, BlockEncoder encoder) throws IOException {
+        for (int start = 0; start < count; start += BLOCK_SIZE) {
+            if (this.pending.size() >= this.window) {
+                writeFully(this.pending.removeFirst().join());
+            }
+            final int from = start;
+            final int to = Math.min(count, start + BLOCK_SIZE);
+            this.pending.addLast(this.pool.submit(() -> blob("OSMData", encoder.encode(from, to))));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    private static ProtobufOutput header() {
+        final ProtobufOutput header = new ProtobufOutput(64);
+        header.writeString(HEADER_REQUIRED_FEATURES, "OsmSchema-V0.6");
+        header.writeString(HEADER_REQUIRED_FEATURES, "DenseNodes");
+        header.writeString(HEADER_OPTIONAL_FEATURES, "Sort.Type_then_ID");
+        header.writeString(HEADER_WRITING_PROGRAM, "JOSM routing2");
+        return header;
+    }
+
+    /**
+     * Compress a block and frame it with its blob header
+     * @param type The blob type
+     * @param block The encoded block
+     * @return The bytes to write to the file
+     */
+    private static ByteBuffer blob(String type, ProtobufOutput block) {
+        final Deflater deflater = new Deflater();
+        byte[] compressed = new byte[block.size() + block.size() / 100 + 64];
+        int length = 0;
+        try {
+            deflater.setInput(block.buffer(), 0, block.size());
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+        } finally {
+            deflater.end();
+        }
+        final ProtobufOutput blob = new ProtobufOutput(length + 16);
+        blob.writeVarint(BLOB_RAW_SIZE, block.size());
+        blob.writeBytes(BLOB_ZLIB_DATA, compressed, 0, length);
+        final ProtobufOutput header = new ProtobufOutput(32);
+        header.writeString(BLOB_HEADER_TYPE, type);
+        header.writeVarint(BLOB_HEADER_DATASIZE, blob.size());
+        final ByteBuffer framed = ByteBuffer.allocate(4 + header.size() + blob.size());
+        framed.putInt(header.size()).put(header.buffer(), 0, header.size()).put(blob.buffer(), 0, blob.size());
+        return framed.flip();
+    }
+
+    private ProtobufOutput encodeNodes(int from, int to) {
+        final StringTable strings = new StringTable();
+        final int count = to - from;
+        final ProtobufOutput ids = new ProtobufOutput(2 * count);
+        final ProtobufOutput lats = new ProtobufOutput(3 * count);
+        final ProtobufOutput lons = new ProtobufOutput(3 * count);
+        final ProtobufOutput keysVals = new ProtobufOutput(count);
+        long lastId = 0;
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = from; i < to; i++) {
+            ids.writeRawSignedVarint(this.snapshot.nodeIds[i] - lastId);
+            lats.writeRawSignedVarint(this.snapshot.nodeLats[i] - lastLat);
+            lons.writeRawSignedVarint(this.snapshot.nodeLons[i] - lastLon);
+            lastId = this.snapshot.nodeIds[i];
+            lastLat = this.snapshot.nodeLats[i];
+            lastLon = this.snapshot.nodeLons[i];
+            for (String string : this.snapshot.nodeTags[i]) {
+                keysVals.writeRawVarint(strings.index(string));
+            }
+            keysVals.writeRawVarint(0);
+        }
+        final ProtobufOutput dense = new ProtobufOutput(ids.size() + lats.size() + lons.size() + keysVals.size() + 32);
+        dense.writeMessage(DENSE_ID, ids);
+        dense.writeMessage(DENSE_LAT, lats);
+        dense.writeMessage(DENSE_LON, lons);
+        dense.writeMessage(DENSE_KEYS_VALS, keysVals);
+        final ProtobufOutput group = new ProtobufOutput(dense.size() + 8);
+        group.writeMessage(GROUP_DENSE, dense);
+        return block(strings, group);
+    }
+
+    private ProtobufOutput encodeWays(int from, int to) {
+        final StringTable strings = new StringTable();
+        final ProtobufOutput group = new ProtobufOutput(64 * (to - from));
+        final ProtobufOutput way = new ProtobufOutput(256);
+        final ProtobufOutput keys = new ProtobufOutput(16);
+        final ProtobufOutput vals = new ProtobufOutput(16);
+        final ProtobufOutput refs = new ProtobufOutput(256);
+        for (int i = from; i < to; i++) {
+            way.reset();
+            way.writeVarint(PRIMITIVE_ID, this.snapshot.wayIds[i]);
+            writeTags(strings, this.snapshot.wayTags[i], way, keys, vals);
+            refs.reset();
+            long last = 0;
+            for (long node : this.snapshot.wayNodes[i]) {
+                refs.writeRawSignedVarint(node - last);
+                last = node;
+            }
+            way.writeMessage(WAY_REFS, refs);
+            group.writeMessage(GROUP_WAYS, way);
+        }
+        return block(strings, group);
+    }
+
+    private ProtobufOutput encodeRelations(int from, int to) {
+        final StringTable strings = new StringTable();
+        final ProtobufOutput group = new ProtobufOutput(64 * (to - from));
+        final ProtobufOutput relation = new ProtobufOutput(256);
+        final ProtobufOutput keys = new ProtobufOutput(16);
+        final ProtobufOutput vals = new ProtobufOutput(16);
+        final ProtobufOutput roles = new ProtobufOutput(16);
+        final ProtobufOutput members = new ProtobufOutput(64);
+        final ProtobufOutput types = new ProtobufOutput(16);
+        for (int i = from; i < to; i++) {
+            relation.reset();
+            relation.writeVarint(PRIMITIVE_ID, this.snapshot.relationIds[i]);
+            writeTags(strings, this.snapshot.relationTags[i], relation, keys, vals);
+            roles.reset();
+            members.reset();
+            types.reset();
+            long last = 0;
+            for (int j = 0; j < this.snapshot.memberIds[i].length; j++) {
+                roles.writeRawVarint(strings.index(this.snapshot.memberRoles[i][j]));
+                members.writeRawSignedVarint(this.snapshot.memberIds[i][j] - last);
+                last = this.snapshot.memberIds[i][j];
+                types.writeRawVarint(this.snapshot.memberTypes[i][j]);
+            }
+            relation.writeMessage(RELATION_ROLES_SID, roles);
+            relation.writeMessage(RELATION_MEMIDS, members);
+            relation.writeMessage(RELATION_TYPES, types);
+            group.writeMessage(GROUP_RELATIONS, relation);
+        }
+        return block(strings, group);
+    }
+
+    private static void writeTags(StringTable strings, String[] tags, ProtobufOutput primitive, ProtobufOutput keys,
+            ProtobufOutput vals) {
+        if (tags.length == 0) {
+            return;
+        }
+        keys.reset();
+        vals.reset();
+        for (int i = 0; i < tags.length; i += 2) {
+            keys.writeRawVarint(strings.index(tags[i]));
+            vals.writeRawVarint(strings.index(tags[i + 1]));
+        }
+        primitive.writeMessage(PRIMITIVE_KEYS, keys);
+        primitive.writeMessage(PRIMITIVE_VALS, vals);
+    }
+
+    private static ProtobufOutput block(StringTable strings, ProtobufOutput group) {
+        final ProtobufOutput table = new ProtobufOutput(16 * strings.strings.size());
+        for (String string : strings.strings) {
+            table.writeString(STRING_TABLE_S, string);
+        }
+        final ProtobufOutput block = new ProtobufOutput(table.size() + group.size() + 16);
+        block.writeMessage(BLOCK_STRING_TABLE, table);
+        block.writeMessage(BLOCK_PRIMITIVE_GROUP, group);
+        return block;
+    }
+
+    /**
+     * The strings of a block. Index 0 is reserved, since it is the delimiter in dense node tags.
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        StringTable() {
+            this.strings.add("");
+        }
+
+        int index(String string) {
+            return this.indexes.computeIfAbsent(string, key -> {
+                this.strings.add(key);
+                return this.strings.size() - 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,189 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.Arrays;
+
+/**
+ * A static R-tree, bulk loaded with the Sort-Tile-Recursive algorithm and stored in primitive arrays.
+ * <p>
+ * Nodes are stored level by level, leaves first. Each node has a bounding box in {@link #boxes} (four values per
+ * node) and an entry in {@link #children}: the item id for leaves, or the index of the first child for other nodes.
+ * The children of a node are stored next to each other.
+ */
+public final class PackedRTree {
+    private static final int NODE_SIZE = 16;
+    private static final int[] EMPTY = new int[0];
+
+    private final double[] boxes;
+    private final int[] children;
+    /** The index of the first node of each level, with the total node count at the end */
+    private final int[] levels;
+
+    /**
+     * Build a tree
+     * @param items The bounding boxes of the items as {@code minX, minY, maxX, maxY} values. Item ids are the index
+     *              of the box.
+     */
+    public PackedRTree(double[] items) {
+        if (items.length % 4 != 0) {
+            throw new IllegalArgumentException("Bounding boxes must have four values");
+        }
+        final int count = items.length / 4;
+        int nodes = count;
+        int levelCount = 1;
+        for (int n = count; n > 1; n = (n + NODE_SIZE - 1) / NODE_SIZE) {
+            nodes += (n + NODE_SIZE - 1) / NODE_SIZE;
+            levelCount++;
+        }
+        this.boxes = new double[4 * nodes];
+        this.children = new int[nodes];
+        this.levels = new int[levelCount + 1];
+
+        final int[] order = sortTileRecursive(items, count);
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(items, 4 * order[i], this.boxes, 4 * i, 4);
+            this.children[i] = order[i];
+        }
+        int start = 0;
+        int end = count;
+        int level = 0;
+        this.levels[0] = 0;
+        while (end - start > 1) {
+            this.levels[++level] = end;
+            int parent = end;
+            for (int child = start; child < end; child += NODE_SIZE, parent++) {
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int i = child; i < Math.min(end, child + NODE_SIZE); i++) {
+                    minX = Math.min(minX, this.boxes[4 * i]);
+                    minY = Math.min(minY, this.boxes[4 * i + 1]);
+                    maxX = Math.max(maxX, this.boxes[4 * i + 2]);
+                    maxY = Math.max(maxY, this.boxes[4 * i + 3]);
+                }
+                this.boxes[4 * parent] = minX;
+                this.boxes[4 * parent + 1] = minY;
+                this.boxes[4 * parent + 2] = maxX;
+                this.boxes[4 * parent + 3] = maxY;
+                this.children[parent] = child;
+            }
+            start = end;
+            end = parent;
+        }
+        this.levels[++level] = end;
+    }
+
+    /**
+     * Order the items so that each run of {@link #NODE_SIZE} items is spatially compact
+     * @param items The item boxes
+     * @param count The number of items
+     * @return The item ids in tree order
+     */
+    private static int[] sortTileRecursive(double[] items, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, items[4 * i] + items[4 * i + 2]);
+            maxX = Math.max(maxX, items[4 * i] + items[4 * i + 2]);
+            minY = Math.min(minY, items[4 * i + 1] + items[4 * i + 3]);
+            maxY = Math.max(maxY, items[4 * i + 1] + items[4 * i + 3]);
+        }
+        // Sort on quantized centers, with the item id in the low bits, to avoid boxing
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = quantize(items[4 * i] + items[4 * i + 2], minX, maxX) << 32 | i;
+        }
+        Arrays.sort(keys);
+        final int leaves = (count + NODE_SIZE - 1) / NODE_SIZE;
+        final int sliceSize = NODE_SIZE * (int) Math.ceil(Math.sqrt(leaves));
+        for (int slice = 0; slice < count; slice += sliceSize) {
+            final int sliceEnd = Math.min(count, slice + sliceSize);
+            for (int i = slice; i < sliceEnd; i++) {
+                final int item = (int) keys[i];
+                keys[i] = quantize(items[4 * item + 1] + items[4 * item + 3], minY, maxY) << 32 | item;
+            }
+            Arrays.sort(keys, slice, sliceEnd);
+        }
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    private static long quantize(double value, double min, double max) {
+        return max > min ? (long) ((value - min) / (max - min) * Integer.MAX_VALUE) : 0;
+    }
+
+    /**
+     * Get the number of items in the tree
+     * @return The item count
+     */
+    public int size() {
+        return this.levels[1];
+    }
+
+    /**
+     * Find the items whose bounding boxes intersect a box
+     * @param minX The minimum x of the box
+     * @param minY The minimum y of the box
+     * @param maxX The maximum x of the box
+     * @param maxY The maximum y of the box
+     * @return The ids of the intersecting items, in no particular order
+     */
+    public int[] search(double minX, double minY, double maxX, double maxY) {
+        final int root = this.levels[this.levels.length - 1] - 1;
+        if (root < 0) {
+            return EMPTY;
+        }
+        int[] found = new int[16];
+        int foundCount = 0;
+        int[] stack = new int[16];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        final int leaves = this.levels[1];
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            if (this.boxes[4 * node] > maxX || this.boxes[4 * node + 1] > maxY || this.boxes[4 * node + 2] < minX
+                    || this.boxes[4 * node + 3] < minY) {
+                continue;
+            }
+            if (node < leaves) {
+                if (foundCount == found.length) {
+                    found = Arrays.copyOf(found, 2 * found.length);
+                }
+                found[foundCount++] = this.children[node];
+            } else {
+                final int first = this.children[node];
+                final int last = Math.min(first + NODE_SIZE, levelEnd(first));
+                if (stackSize + NODE_SIZE > stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * stack.length + NODE_SIZE);
+                }
+                for (int child = first; child < last; child++) {
+                    stack[stackSize++] = child;
+                }
+            }
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    /**
+     * Get the end of the level a node is in
+     * @param node The node
+     * @return The index after the last node of the level
+     */
+    private int levelEnd(int node) {
+        for (int level = 1; level < this.levels.length; level++) {
+            if (node < this.levels[level]) {
+                return this.levels[level];
+            }
+        }
+        return this.levels[this.levels.length - 1];
+    }
+}
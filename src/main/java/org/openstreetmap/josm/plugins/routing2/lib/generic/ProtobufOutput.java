@@ -0,0 +1,120 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal protobuf encoder that writes into a growable buffer. Nested and packed fields are written by encoding
+ * them into a separate output first, and then writing that output as a length delimited field.
+ */
+final class ProtobufOutput {
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private byte[] buffer;
+    private int size;
+
+    ProtobufOutput(int capacity) {
+        this.buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Remove everything written so far, keeping the buffer
+     */
+    void reset() {
+        this.size = 0;
+    }
+
+    /**
+     * Get the number of bytes written
+     * @return The size of the encoded data
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the underlying buffer; only the first {@link #size()} bytes are valid
+     * @return The buffer
+     */
+    byte[] buffer() {
+        return this.buffer;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (this.size + additional > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.size + additional));
+        }
+    }
+
+    /**
+     * Write a varint without a tag, as used in packed fields
+     * @param value The value
+     */
+    void writeRawVarint(long value) {
+        ensureCapacity(10);
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            this.buffer[this.size++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        this.buffer[this.size++] = (byte) remaining;
+    }
+
+    /**
+     * Write a zig-zag encoded varint without a tag, as used in packed {@code sint64} fields
+     * @param value The value
+     */
+    void writeRawSignedVarint(long value) {
+        writeRawVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeTag(int field, int wireType) {
+        writeRawVarint(((long) field << 3) | wireType);
+    }
+
+    /**
+     * Write a varint field ({@code int32}, {@code int64}, {@code uint32}, {@code uint64} or {@code enum})
+     * @param field The field number
+     * @param value The value
+     */
+    void writeVarint(int field, long value) {
+        writeTag(field, WIRE_VARINT);
+        writeRawVarint(value);
+    }
+
+    /**
+     * Write a length delimited field
+     * @param field The field number
+     * @param bytes The source of the bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     */
+    void writeBytes(int field, byte[] bytes, int offset, int length) {
+        writeTag(field, WIRE_LENGTH_DELIMITED);
+        writeRawVarint(length);
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, this.buffer, this.size, length);
+        this.size += length;
+    }
+
+    /**
+     * Write a string field
+     * @param field The field number
+     * @param value The string
+     */
+    void writeString(int field, String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeBytes(field, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write a nested message or packed field
+     * @param field The field number
+     * @param message The encoded message
+     */
+    void writeMessage(int field, ProtobufOutput message) {
+        writeBytes(field, message.buffer, 0, message.size);
+    }
+}
@@ -0,0 +1,198 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.IPrimitive;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * Decide which primitives a router can use. This mirrors the input that valhalla reads when building tiles: ways that
+ * can be travelled, the nodes on them, and turn restrictions.
+ */
+public final class RoutablePrimitives {
+    /** Keys that make a way usable for routing */
+    private static final Set<String> ROUTING_KEYS = Set.of("highway", "route");
+    /** Highway values for ways that do not exist (yet) */
+    private static final Set<String> UNBUILT_HIGHWAYS = Set.of("proposed", "construction", "abandoned", "disused",
+            "razed", "no");
+    /** Route values that are travelled on */
+    private static final Set<String> ROUTES = Set.of("ferry", "shuttle_train");
+    /** Meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private RoutablePrimitives() {
+        // Hide constructor
+    }
+
+    /**
+     * Check if a key can change whether a primitive is routable
+     * @param key The key
+     * @return {@code true} if adding, changing or removing the key may make a primitive (un)routable
+     */
+    public static boolean isRoutingKey(String key) {
+        return ROUTING_KEYS.contains(key) || "type".equals(key) || key.startsWith("restriction");
+    }
+
+    /**
+     * Check if a primitive is used for routing
+     * @param primitive The primitive to check
+     * @return {@code true} if the primitive is a routable way, a node on one, or a turn restriction
+     */
+    public static boolean isRoutable(OsmPrimitive primitive) {
+        if (primitive instanceof Way way) {
+            return isRoutable(way);
+        } else if (primitive instanceof Node node) {
+            for (OsmPrimitive referrer : node.getReferrers()) {
+                if (referrer instanceof Way way && isRoutable(way)) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (primitive instanceof Relation relation) {
+            return isRestriction(relation);
+        }
+        return false;
+    }
+
+    /**
+     * Check if a way can be travelled on
+     * @param way The way to check
+     * @return {@code true} if the way is a road, path or ferry
+     */
+    public static boolean isRoutable(Way way) {
+        final String highway = way.get("highway");
+        if (highway != null) {
+            return !UNBUILT_HIGHWAYS.contains(highway);
+        }
+        return ROUTES.contains(way.get("route"));
+    }
+
+    /**
+     * Check if a relation is a turn restriction
+     * @param relation The relation to check
+     * @return {@code true} if the relation restricts turns
+     */
+    public static boolean isRestriction(IPrimitive relation) {
+        final String type = relation.get("type");
+        return type != null && (type.equals("restriction") || type.startsWith("restriction:"));
+    }
+
+    /**
+     * Check if a relation is an administrative boundary. Valhalla uses these for country specific defaults, like the
+     * driving side and access rules.
+     * @param relation The relation to check
+     * @return {@code true} if the relation is an administrative boundary
+     */
+    public static boolean isAdminBoundary(IPrimitive relation) {
+        final String type = relation.get("type");
+        return ("boundary".equals(type) || "multipolygon".equals(type))
+                && "administrative".equals(relation.get("boundary")) && relation.hasKey("admin_level");
+    }
+
+    /**
+     * Grow an area by a distance
+     * @param minLat The minimum latitude
+     * @param minLon The minimum longitude
+     * @param maxLat The maximum latitude
+     * @param maxLon The maximum longitude
+     * @param meters The distance to add on every side
+     * @return The grown area
+     */
+    public static BBox buffered(double minLat, double minLon, double maxLat, double maxLon, double meters) {
+        final double dLat = meters / METERS_PER_DEGREE;
+        final double widest = Math.max(Math.abs(minLat), Math.abs(maxLat));
+        final double dLon = Math.min(180, dLat / Math.max(Math.cos(Math.toRadians(widest)), 1e-6));
+        return new BBox(Math.max(-180, minLon - dLon), Math.max(-90, minLat - dLat), Math.min(180, maxLon + dLon),
+                Math.min(90, maxLat + dLat));
+    }
+
+    /**
+     * Get the area around some locations
+     * @param meters The distance to add around the locations
+     * @param locations The locations
+     * @return The area containing all locations, grown by the distance
+     */
+    public static BBox buffered(double meters, ILatLon... locations) {
+        double minLat = Double.POSITIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (ILatLon location : locations) {
+            minLat = Math.min(minLat, location.lat());
+            minLon = Math.min(minLon, location.lon());
+            maxLat = Math.max(maxLat, location.lat());
+            maxLon = Math.max(maxLon, location.lon());
+        }
+        return buffered(minLat, minLon, maxLat, maxLon, meters);
+    }
+
+    /**
+     * The routable primitives of a data set
+     * @param nodes The nodes of the selected ways
+     * @param ways The selected ways
+     * @param relations The turn restrictions whose members were all selected
+     */
+    public record Selection(Set<Node> nodes, List<Way> ways, List<Relation> relations) {
+    }
+
+    /**
+     * Select the routable primitives of a data set.
+     * <p>
+     * Ways are selected with all of their nodes, even if some of them are outside of the clip area, so that the road
+     * network stays connected. Turn restrictions are only selected if all of their members are selected.
+     * @param source The data set to select from. The caller should hold its read lock.
+     * @param clip The area to select, or {@code null} to select everything
+     * @return The selected primitives; these are the primitives of the data set, not copies
+     */
+    public static Selection select(DataSet source, BBox clip) {
+        final Set<Node> nodes = new LinkedHashSet<>();
+        final Set<Way> ways = new LinkedHashSet<>();
+        for (Way way : source.getWays()) {
+            if (way.isUsable() && isRoutable(way) && (clip == null || clip.intersects(way.getBBox()))) {
+                ways.add(way);
+                nodes.addAll(way.getNodes());
+            }
+        }
+        final List<Relation> relations = new ArrayList<>();
+        for (Relation relation : source.getRelations()) {
+            if (relation.isUsable() && isRestriction(relation) && !relation.getMembers().isEmpty()
+                    && relation.getMembers().stream().allMatch(member -> member.isWay() ? ways.contains(member.getWay())
+                            : member.isNode() && nodes.contains(member.getNode()))) {
+                relations.add(relation);
+            }
+        }
+        return new Selection(nodes, new ArrayList<>(ways), relations);
+    }
+
+    /**
+     * Select the administrative boundaries of a data set, with the ways that outline them.
+     * @param source The data set to select from. The caller should hold its read lock.
+     * @return The selected primitives; these are the primitives of the data set, not copies
+     */
+    public static Selection selectAdminBoundaries(DataSet source) {
+        final Set<Node> nodes = new LinkedHashSet<>();
+        final Set<Way> ways = new LinkedHashSet<>();
+        final List<Relation> relations = new ArrayList<>();
+        for (Relation relation : source.getRelations()) {
+            if (relation.isUsable() && isAdminBoundary(relation)) {
+                relations.add(relation);
+                for (Way way : relation.getMemberPrimitives(Way.class)) {
+                    if (way.isUsable() && ways.add(way)) {
+                        nodes.addAll(way.getNodes());
+                    }
+                }
+            }
+        }
+        return new Selection(nodes, new ArrayList<>(ways), relations);
+    }
+}
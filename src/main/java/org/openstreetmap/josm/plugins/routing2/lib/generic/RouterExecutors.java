@@ -0,0 +1,131 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * The threads that routing work runs on.
+ * <p>
+ * Most of the time spent routing is spent waiting, for a router process, its output, or a download. That work runs on
+ * virtual threads, so routes for different layers don't queue up behind each other. CPU-heavy builds, like valhalla
+ * tiles or routing graphs, are limited to {@code routing2.build.parallelism} at a time instead, since running more
+ * of them at once only makes each of them slower.
+ */
+public final class RouterExecutors {
+    private static final ExecutorService IO = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("routing2-io-", 0).factory());
+    /** How often a build waiting for its turn checks for cancellation */
+    private static final long BUILD_POLL_MILLIS = 100;
+    /* Guarded by RouterExecutors.class; created on first use, so that the preferences are loaded */
+    private static Semaphore builds;
+
+    /**
+     * Work that can be cancelled
+     * @param <T> The result type
+     */
+    @FunctionalInterface
+    public interface CancellableTask<T> {
+        /**
+         * Do the work
+         * @param token The token for cancelling the work
+         * @return The result
+         * @throws Exception if the work failed
+         */
+        T call(CancellationToken token) throws Exception;
+    }
+
+    private RouterExecutors() {
+        // Hide constructor
+    }
+
+    /**
+     * Get the executor for work that mostly waits, like pumping the output of a process
+     * @return The executor, which starts a new virtual thread for every task
+     */
+    public static Executor io() {
+        return IO;
+    }
+
+    /**
+     * Start work on a virtual thread
+     * @param token The token for cancelling the work
+     * @param task The work
+     * @param <T> The result type
+     * @return The result. Cancelling it cancels the token passed to the task, which stops the processes and requests
+     * that the task started. When {@code token} is cancelled instead, the result completes once the task has stopped.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(CancellationToken token, CancellableTask<T> task) {
+        final CancellationToken taskToken = token.child();
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // CompletableFuture#cancel does not interrupt anything, so the task is told through its token. Once the task
+        // has finished, nothing uses its token anymore, and cancelling it removes it from the parent token.
+        future.whenComplete((result, throwable) -> taskToken.cancel());
+        IO.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(task.call(taskToken));
+            } catch (Exception | Error throwable) {
+                future.completeExceptionally(throwable);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Run a CPU-heavy build once there are fewer than {@code routing2.build.parallelism} builds running
+     * @param token The token for cancelling the build; it is checked while waiting for a turn
+     * @param build The build
+     * @param <T> The result type
+     * @return The result of the build
+     * @throws CancellationException if the token was cancelled while waiting
+     */
+    public static <T> T build(CancellationToken token, Supplier<T> build) {
+        final Semaphore permits = builds();
+        try {
+            while (!permits.tryAcquire(BUILD_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                token.throwIfCancelled();
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw (CancellationException) new CancellationException().initCause(interruptedException);
+        }
+        try {
+            token.throwIfCancelled();
+            return build.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Run a CPU-heavy build without a result
+     * @param token The token for cancelling the build
+     * @param build The build
+     * @see #build(CancellationToken, Supplier)
+     */
+    public static void build(CancellationToken token, Runnable build) {
+        build(token, () -> {
+            build.run();
+            return null;
+        });
+    }
+
+    private static synchronized Semaphore builds() {
+        if (builds == null) {
+            // The valhalla tile builder already uses every core, so only a couple of builds overlap by default
+            builds = new Semaphore(Math.max(1, Config.getPref().getInt("routing2.build.parallelism", 2)));
+        }
+        return builds;
+    }
+}
@@ -0,0 +1,410 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.josm.plugins.routing2.lib.generic.GooglePolyline;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Locations;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Matrix;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParsingException;
+
+/**
+ * Parse valhalla json responses in a single pass, without building an intermediate object tree
+ */
+final class JsonResponseParser {
+    /** Cached, since {@link Maneuver.Type#values()} copies the array on every call */
+    private static final Maneuver.Type[] MANEUVER_TYPES = Maneuver.Type.values();
+    private static final Maneuver[] NO_MANEUVERS = new Maneuver[0];
+    private static final double[] NO_SHAPE = new double[0];
+
+    private JsonResponseParser() {
+        // Hide constructor
+    }
+
+    /**
+     * Parse a route response
+     * @param parser The parser to read from, positioned before the start of the response
+     * @return The trip
+     * @throws ValhallaException if valhalla returned an error
+     */
+    static Trip parseRoute(JsonParser parser) throws ValhallaException {
+        expect(parser, JsonParser.Event.START_OBJECT);
+        Trip trip = null;
+        int errorCode = -1;
+        int statusCode = 200;
+        String error = null;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "trip" -> trip = parseTrip(parser, event);
+            case "error_code" -> errorCode = parser.getInt();
+            case "status_code" -> statusCode = parser.getInt();
+            case "error" -> error = parser.getString();
+            default -> skip(parser, event);
+            }
+        }
+        if (statusCode != 200 || errorCode >= 0) {
+            throw new ValhallaException(errorCode, statusCode, error);
+        }
+        if (trip == null) {
+            throw new ValhallaException(errorCode, statusCode, "No trip in response");
+        }
+        return trip;
+    }
+
+    /**
+     * Parse a matrix response into a part of a matrix. Both the verbose and the concise valhalla formats are read.
+     * @param parser The parser to read from, positioned before the start of the response
+     * @param matrix The matrix to fill
+     * @param sourceOffset The index of the first source of the request in the matrix
+     * @param targetOffset The index of the first target of the request in the matrix
+     * @throws ValhallaException if valhalla returned an error
+     */
+    static void parseMatrix(JsonParser parser, Matrix matrix, int sourceOffset, int targetOffset)
+            throws ValhallaException {
+        expect(parser, JsonParser.Event.START_OBJECT);
+        boolean found = false;
+        int errorCode = -1;
+        int statusCode = 200;
+        String error = null;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "sources_to_targets" -> {
+                found = true;
+                if (event == JsonParser.Event.START_OBJECT) {
+                    parseConciseMatrix(parser, matrix, sourceOffset, targetOffset);
+                } else {
+                    parseVerboseMatrix(parser, event, matrix, sourceOffset, targetOffset);
+                }
+            }
+            case "error_code" -> errorCode = parser.getInt();
+            case "status_code" -> statusCode = parser.getInt();
+            case "error" -> error = parser.getString();
+            default -> skip(parser, event);
+            }
+        }
+        if (statusCode != 200 || errorCode >= 0) {
+            throw new ValhallaException(errorCode, statusCode, error);
+        }
+        if (!found) {
+            throw new ValhallaException(errorCode, statusCode, "No matrix in response");
+        }
+    }
+
+    /**
+     * Parse {@code [[{"from_index": 0, "to_index": 0, "time": 1, "distance": 2}, ...], ...]}
+     */
+    private static void parseVerboseMatrix(JsonParser parser, JsonParser.Event start, Matrix matrix,
+            int sourceOffset, int targetOffset) {
+        checkArray(parser, start);
+        int row = 0;
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+            checkArray(parser, event);
+            int column = 0;
+            while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                checkObject(parser, event);
+                int from = row;
+                int to = column;
+                double time = Double.NaN;
+                double distance = Double.NaN;
+                while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+                    final String key = parser.getString();
+                    event = parser.next();
+                    switch (key) {
+                    case "from_index" -> from = parser.getInt();
+                    case "to_index" -> to = parser.getInt();
+                    case "time" -> time = event == JsonParser.Event.VALUE_NULL ? Double.NaN : getDouble(parser);
+                    case "distance" -> distance = event == JsonParser.Event.VALUE_NULL ? Double.NaN
+                            : getDouble(parser);
+                    default -> skip(parser, event);
+                    }
+                }
+                matrix.set(sourceOffset + from, targetOffset + to, time, distance);
+                column++;
+            }
+            row++;
+        }
+    }
+
+    /**
+     * Parse {@code {"durations": [[1, ...], ...], "distances": [[2, ...], ...]}}
+     */
+    private static void parseConciseMatrix(JsonParser parser, Matrix matrix, int sourceOffset, int targetOffset) {
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            final double[] values;
+            if ("durations".equals(key)) {
+                values = matrix.times();
+            } else if ("distances".equals(key)) {
+                values = matrix.lengths();
+            } else {
+                skip(parser, event);
+                continue;
+            }
+            checkArray(parser, event);
+            int row = 0;
+            while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                checkArray(parser, event);
+                int column = 0;
+                while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                    values[(sourceOffset + row) * matrix.targets() + targetOffset + column] =
+                            event == JsonParser.Event.VALUE_NULL ? Double.NaN : getDouble(parser);
+                    column++;
+                }
+                row++;
+            }
+        }
+    }
+
+    private static Trip parseTrip(JsonParser parser, JsonParser.Event start) {
+        checkObject(parser, start);
+        Locations[] locations = null;
+        Legs[] legs = null;
+        Trip.Summary summary = null;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "locations" -> locations = parseLocations(parser, event);
+            case "legs" -> legs = parseLegs(parser, event);
+            case "summary" -> summary = parseSummary(parser, event);
+            default -> skip(parser, event);
+            }
+        }
+        return new Trip(locations, legs, summary);
+    }
+
+    private static Locations[] parseLocations(JsonParser parser, JsonParser.Event start) {
+        checkArray(parser, start);
+        final List<Locations> locations = new ArrayList<>();
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+            if (event == JsonParser.Event.START_OBJECT) {
+                locations.add(parseLocation(parser));
+            } else {
+                skip(parser, event);
+            }
+        }
+        return locations.toArray(new Locations[0]);
+    }
+
+    private static Locations parseLocation(JsonParser parser) {
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "lat" -> lat = getDouble(parser);
+            case "lon" -> lon = getDouble(parser);
+            default -> skip(parser, event);
+            }
+        }
+        return new Locations(lat, lon, null, Double.NaN, Double.NaN, null, 0L, 0, Double.NaN, // FIXME
+                false, null, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, null, null, null, null, null,
+                null, null, null, null, null, null);
+    }
+
+    private static Legs[] parseLegs(JsonParser parser, JsonParser.Event start) {
+        checkArray(parser, start);
+        final List<Legs> legs = new ArrayList<>();
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+            if (event == JsonParser.Event.START_OBJECT) {
+                legs.add(parseLeg(parser));
+            } else {
+                skip(parser, event);
+                legs.add(new Legs(NO_MANEUVERS, null, NO_SHAPE));
+            }
+        }
+        return legs.toArray(new Legs[0]);
+    }
+
+    private static Legs parseLeg(JsonParser parser) {
+        Maneuver[] maneuvers = NO_MANEUVERS;
+        Trip.Summary summary = null;
+        double[] shape = NO_SHAPE;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "maneuvers" -> maneuvers = parseManeuvers(parser, event);
+            case "summary" -> summary = parseSummary(parser, event);
+            case "shape" -> shape = GooglePolyline.decode(parser.getString(), 1e6);
+            default -> skip(parser, event);
+            }
+        }
+        return new Legs(maneuvers, summary, shape);
+    }
+
+    private static Maneuver[] parseManeuvers(JsonParser parser, JsonParser.Event start) {
+        checkArray(parser, start);
+        final List<Maneuver> maneuvers = new ArrayList<>();
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+            if (event == JsonParser.Event.START_OBJECT) {
+                maneuvers.add(parseManeuver(parser));
+            } else {
+                skip(parser, event);
+            }
+        }
+        return maneuvers.toArray(NO_MANEUVERS);
+    }
+
+    private static Maneuver parseManeuver(JsonParser parser) {
+        Maneuver.Type type = Maneuver.Type.NONE;
+        String instruction = "";
+        String verbalTransitionInstruction = "";
+        String preVerbalTransitionInstruction = "";
+        String postVerbalTransitionInstruction = "";
+        double time = 0;
+        double length = 0;
+        double cost = 0;
+        int startShape = 0;
+        int endShape = 0;
+        boolean multiVerbalCue = false;
+        String travelMode = "";
+        String travelType = "";
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "type" -> type = maneuverType(parser.getInt());
+            case "instruction" -> instruction = parser.getString();
+            case "verbal_succinct_transition_instruction" -> verbalTransitionInstruction = parser.getString();
+            case "verbal_pre_transition_instruction" -> preVerbalTransitionInstruction = parser.getString();
+            case "verbal_post_transition_instruction" -> postVerbalTransitionInstruction = parser.getString();
+            case "time" -> time = getDouble(parser);
+            case "length" -> length = getDouble(parser);
+            case "cost" -> cost = getDouble(parser);
+            case "begin_shape_index" -> startShape = parser.getInt();
+            case "end_shape_index" -> endShape = parser.getInt();
+            case "verbal_multi_cue" -> multiVerbalCue = event == JsonParser.Event.VALUE_TRUE;
+            case "travel_mode" -> travelMode = parser.getString();
+            case "travel_type" -> travelType = parser.getString();
+            default -> skip(parser, event);
+            }
+        }
+        return new Maneuver(type, instruction, verbalTransitionInstruction, preVerbalTransitionInstruction,
+                postVerbalTransitionInstruction, time, length, cost, startShape, endShape, multiVerbalCue,
+                travelMode, travelType);
+    }
+
+    private static Trip.Summary parseSummary(JsonParser parser, JsonParser.Event start) {
+        checkObject(parser, start);
+        boolean hasTimeRestrictions = false;
+        boolean hasToll = false;
+        boolean hasHighway = false;
+        boolean hasFerry = false;
+        double minLat = Double.NaN;
+        double minLon = Double.NaN;
+        double maxLat = Double.NaN;
+        double maxLon = Double.NaN;
+        double time = 0;
+        double length = 0;
+        double cost = 0;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            final String key = parser.getString();
+            event = parser.next();
+            switch (key) {
+            case "has_time_restrictions" -> hasTimeRestrictions = event == JsonParser.Event.VALUE_TRUE;
+            case "has_toll" -> hasToll = event == JsonParser.Event.VALUE_TRUE;
+            case "has_highway" -> hasHighway = event == JsonParser.Event.VALUE_TRUE;
+            case "has_ferry" -> hasFerry = event == JsonParser.Event.VALUE_TRUE;
+            case "min_lat" -> minLat = getDouble(parser);
+            case "min_lon" -> minLon = getDouble(parser);
+            case "max_lat" -> maxLat = getDouble(parser);
+            case "max_lon" -> maxLon = getDouble(parser);
+            case "time" -> time = getDouble(parser);
+            case "length" -> length = getDouble(parser);
+            case "cost" -> cost = getDouble(parser);
+            default -> skip(parser, event);
+            }
+        }
+        return new Trip.Summary(hasTimeRestrictions, hasToll, hasHighway, hasFerry, minLat, minLon, maxLat, maxLon,
+                time, length, cost);
+    }
+
+    /**
+     * Get a maneuver type from its valhalla ordinal
+     * @param type The valhalla type
+     * @return The maneuver type, or {@link Maneuver.Type#NONE} if the type is unknown
+     */
+    static Maneuver.Type maneuverType(int type) {
+        return type >= 0 && type < MANEUVER_TYPES.length ? MANEUVER_TYPES[type] : Maneuver.Type.NONE;
+    }
+
+    /**
+     * Get the current number as a double. {@link JsonParser} only offers {@link java.math.BigDecimal}, which is
+     * considerably more expensive.
+     * @param parser The parser positioned on a number
+     * @return The double value
+     */
+    static double getDouble(JsonParser parser) {
+        if (parser.isIntegralNumber()) {
+            return parser.getLong();
+        }
+        return Double.parseDouble(parser.getString());
+    }
+
+    /**
+     * Skip the current value, including any nested values
+     * @param parser The parser
+     * @param event The event for the value to skip
+     */
+    static void skip(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY) {
+            int depth = 1;
+            while (depth > 0) {
+                switch (parser.next()) {
+                case START_OBJECT, START_ARRAY -> depth++;
+                case END_OBJECT, END_ARRAY -> depth--;
+                default -> {
+                    // Scalar values don't change the depth
+                }
+                }
+            }
+        }
+    }
+
+    static void expect(JsonParser parser, JsonParser.Event expected) {
+        if (!parser.hasNext()) {
+            throw new JsonParsingException("Empty valhalla response", parser.getLocation());
+        }
+        final JsonParser.Event event = parser.next();
+        if (event != expected) {
+            throw new JsonParsingException("Expected " + expected + " but got " + event, parser.getLocation());
+        }
+    }
+
+    static void checkObject(JsonParser parser, JsonParser.Event event) {
+        if (event != JsonParser.Event.START_OBJECT) {
+            throw new JsonParsingException("Expected an object but got " + event, parser.getLocation());
+        }
+    }
+
+    static void checkArray(JsonParser parser, JsonParser.Event event) {
+        if (event != JsonParser.Event.START_ARRAY) {
+            throw new JsonParsingException("Expected an array but got " + event, parser.getLocation());
+        }
+    }
+}
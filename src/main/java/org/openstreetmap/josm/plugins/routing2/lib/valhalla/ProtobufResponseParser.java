@@ -0,0 +1,386 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.josm.data.protobuf.ProtobufParser;
+import org.openstreetmap.josm.data.protobuf.ProtobufRecord;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.GooglePolyline;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Locations;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+/**
+ * Parse valhalla protobuf ({@code "format": "pbf"}) responses.
+ * See <a href="https://github.com/valhalla/valhalla/tree/master/proto">the valhalla proto files</a> for the message
+ * definitions; only the fields we map onto our records are read, everything else is skipped.
+ */
+final class ProtobufResponseParser {
+    // api.proto: Api
+    private static final int API_DIRECTIONS = 3;
+    private static final int API_INFO = 20;
+    // info.proto: Info, CodedDescription
+    private static final int INFO_ERRORS = 2;
+    private static final int CODED_DESCRIPTION_DESCRIPTION = 1;
+    private static final int CODED_DESCRIPTION_CODE = 2;
+    // directions.proto: Directions, DirectionsRoute
+    private static final int DIRECTIONS_ROUTES = 1;
+    private static final int ROUTE_LEGS = 1;
+    // directions.proto: DirectionsLeg
+    private static final int LEG_LOCATION = 4;
+    private static final int LEG_SUMMARY = 5;
+    private static final int LEG_MANEUVER = 6;
+    private static final int LEG_SHAPE = 7;
+    // directions.proto: DirectionsLeg.Summary
+    private static final int SUMMARY_LENGTH = 1;
+    private static final int SUMMARY_TIME = 2;
+    private static final int SUMMARY_BBOX = 3;
+    private static final int SUMMARY_HAS_TIME_RESTRICTIONS = 4;
+    private static final int SUMMARY_HAS_TOLL = 5;
+    private static final int SUMMARY_HAS_FERRY = 6;
+    private static final int SUMMARY_HAS_HIGHWAY = 7;
+    // common.proto: BoundingBox, LatLng, Location
+    private static final int BBOX_MIN = 1;
+    private static final int BBOX_MAX = 2;
+    private static final int LAT_LNG_LAT = 1;
+    private static final int LAT_LNG_LNG = 2;
+    private static final int LOCATION_LL = 1;
+    // directions.proto: DirectionsLeg.Maneuver
+    private static final int MANEUVER_TYPE = 1;
+    private static final int MANEUVER_TEXT_INSTRUCTION = 2;
+    private static final int MANEUVER_LENGTH = 4;
+    private static final int MANEUVER_TIME = 5;
+    private static final int MANEUVER_BEGIN_SHAPE_INDEX = 8;
+    private static final int MANEUVER_END_SHAPE_INDEX = 9;
+    private static final int MANEUVER_VERBAL_PRE_TRANSITION_INSTRUCTION = 13;
+    private static final int MANEUVER_VERBAL_POST_TRANSITION_INSTRUCTION = 14;
+    private static final int MANEUVER_VERBAL_MULTI_CUE = 17;
+    private static final int MANEUVER_TRAVEL_MODE = 18;
+    private static final int MANEUVER_VEHICLE_TYPE = 19;
+    private static final int MANEUVER_PEDESTRIAN_TYPE = 20;
+    private static final int MANEUVER_BICYCLE_TYPE = 21;
+    private static final int MANEUVER_TRANSIT_TYPE = 22;
+    private static final int MANEUVER_VERBAL_SUCCINCT_TRANSITION_INSTRUCTION = 31;
+
+    /* The strings valhalla uses for the travel mode and types in json responses, indexed by the protobuf enum value */
+    private static final String[] TRAVEL_MODES = {"drive", "pedestrian", "bicycle", "transit"};
+    private static final String[] VEHICLE_TYPES = {"car", "motorcycle", "bus", "tractor_trailer", "motor_scooter"};
+    private static final String[] PEDESTRIAN_TYPES = {"foot", "wheelchair", "segway"};
+    private static final String[] BICYCLE_TYPES = {"road", "cross", "hybrid", "mountain"};
+    private static final String[] TRANSIT_TYPES = {"tram", "metro", "rail", "bus", "ferry", "cable_car", "gondola",
+            "funicular"};
+
+    private ProtobufResponseParser() {
+        // Hide constructor
+    }
+
+    /**
+     * Iterate over the fields of a message
+     */
+    private static final class Message implements AutoCloseable {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final ProtobufParser parser;
+
+        Message(byte[] bytes) {
+            this.parser = new ProtobufParser(bytes);
+        }
+
+        /**
+         * Get the next field
+         * @return The next field, or {@code null} if there are no more fields
+         * @throws IOException if the message is malformed
+         */
+        ProtobufRecord next() throws IOException {
+            return this.parser.hasNext() ? new ProtobufRecord(this.buffer, this.parser) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.parser.close();
+        }
+    }
+
+    /**
+     * Parse a route response
+     * @param response The response bytes
+     * @return The trip
+     * @throws IOException if the response is not a valid protobuf message
+     * @throws ValhallaException if valhalla returned an error
+     */
+    static Trip parseRoute(byte[] response) throws IOException, ValhallaException {
+        final List<Legs> legs = new ArrayList<>();
+        final List<Locations> locations = new ArrayList<>();
+        ValhallaException error = null;
+        try (Message api = new Message(response)) {
+            ProtobufRecord field;
+            while ((field = api.next()) != null) {
+                if (field.getField() == API_DIRECTIONS) {
+                    parseDirections(field.getBytes(), legs, locations);
+                } else if (field.getField() == API_INFO && error == null) {
+                    error = parseError(field.getBytes());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (legs.isEmpty()) {
+            throw new ValhallaException(-1, 200, "No trip in response");
+        }
+        return new Trip(locations.toArray(new Locations[0]), legs.toArray(new Legs[0]), summarize(legs));
+    }
+
+    private static void parseDirections(byte[] directions, List<Legs> legs, List<Locations> locations)
+            throws IOException {
+        byte[] route = null;
+        try (Message message = new Message(directions)) {
+            ProtobufRecord field;
+            // Only the first route is used; the others are alternates
+            while (route == null && (field = message.next()) != null) {
+                if (field.getField() == DIRECTIONS_ROUTES) {
+                    route = field.getBytes();
+                }
+            }
+        }
+        if (route != null) {
+            try (Message message = new Message(route)) {
+                ProtobufRecord field;
+                while ((field = message.next()) != null) {
+                    if (field.getField() == ROUTE_LEGS) {
+                        legs.add(parseLeg(field.getBytes(), locations));
+                    }
+                }
+            }
+        }
+    }
+
+    private static ValhallaException parseError(byte[] info) throws IOException {
+        try (Message message = new Message(info)) {
+            ProtobufRecord field;
+            while ((field = message.next()) != null) {
+                if (field.getField() == INFO_ERRORS) {
+                    String description = "";
+                    int code = -1;
+                    try (Message codedDescription = new Message(field.getBytes())) {
+                        ProtobufRecord descriptionField;
+                        while ((descriptionField = codedDescription.next()) != null) {
+                            if (descriptionField.getField() == CODED_DESCRIPTION_DESCRIPTION) {
+                                description = descriptionField.asString();
+                            } else if (descriptionField.getField() == CODED_DESCRIPTION_CODE) {
+                                code = descriptionField.asUnsignedVarInt().intValue();
+                            }
+                        }
+                    }
+                    // The http status is not part of the message; valhalla uses 400 for all input errors
+                    return new ValhallaException(code, 400, description);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Legs parseLeg(byte[] leg, List<Locations> tripLocations) throws IOException {
+        final List<Maneuver> maneuvers = new ArrayList<>();
+        final List<Locations> legLocations = new ArrayList<>(2);
+        Trip.Summary summary = null;
+        double[] shape = new double[0];
+        try (Message message = new Message(leg)) {
+            ProtobufRecord field;
+            while ((field = message.next()) != null) {
+                switch (field.getField()) {
+                case LEG_LOCATION -> legLocations.add(parseLocation(field.getBytes()));
+                case LEG_SUMMARY -> summary = parseSummary(field.getBytes());
+                case LEG_MANEUVER -> maneuvers.add(parseManeuver(field.getBytes()));
+                case LEG_SHAPE -> shape = GooglePolyline.decode(field.asString(), 1e6);
+                default -> { /* Not used */ }
+                }
+            }
+        }
+        // Each leg repeats the previous leg's destination as its origin
+        tripLocations.addAll(tripLocations.isEmpty() ? legLocations
+                : legLocations.subList(Math.min(1, legLocations.size()), legLocations.size()));
+        return new Legs(maneuvers.toArray(new Maneuver[0]), summary, shape);
+    }
+
+    private static Locations parseLocation(byte[] location) throws IOException {
+        double[] latLon = {Double.NaN, Double.NaN};
+        try (Message message = new Message(location)) {
+            ProtobufRecord field;
+            while ((field = message.next()) != null) {
+                if (field.getField() == LOCATION_LL) {
+                    latLon = parseLatLng(field.getBytes());
+                }
+            }
+        }
+        return new Locations(latLon[0], latLon[1], null, Double.NaN, Double.NaN, null, 0L, 0, Double.NaN, // FIXME
+                false, null, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, null, null, null, null, null,
+                null, null, null, null, null, null);
+    }
+
+    /**
+     * Parse a LatLng message
+     * @param latLng The message
+     * @return The latitude and longitude, in that order
+     * @throws IOException if the message is malformed
+     */
+    private static double[] parseLatLng(byte[] latLng) throws IOException {
+        final double[] latLon = {Double.NaN, Double.NaN};
+        try (Message message = new Message(latLng)) {
+            ProtobufRecord field;
+            while ((field = message.next()) != null) {
+                if (field.getField() == LAT_LNG_LAT) {
+                    latLon[0] = field.asDouble();
+                } else if (field.getField() == LAT_LNG_LNG) {
+                    latLon[1] = field.asDouble();
+                }
+            }
+        }
+        return latLon;
+    }
+
+    private static Trip.Summary parseSummary(byte[] summary) throws IOException {
+        boolean hasTimeRestrictions = false;
+        boolean hasToll = false;
+        boolean hasHighway = false;
+        boolean hasFerry = false;
+        double length = 0;
+        double time = 0;
+        double[] min = {Double.NaN, Double.NaN};
+        double[] max = {Double.NaN, Double.NaN};
+        try (Message message = new Message(summary)) {
+            ProtobufRecord field;
+            while ((field = message.next()) != null) {
+                switch (field.getField()) {
+                case SUMMARY_LENGTH -> length = field.asFloat();
+                case SUMMARY_TIME -> time = field.asDouble();
+                case SUMMARY_BBOX -> {
+                    try (Message bbox = new Message(field.getBytes())) {
+                        ProtobufRecord corner;
+                        while ((corner = bbox.next()) != null) {
+                            if (corner.getField() == BBOX_MIN) {
+                                min = parseLatLng(corner.getBytes());
+                            } else if (corner.getField() == BBOX_MAX) {
+                                max = parseLatLng(corner.getBytes());
+                            }
+                        }
+                    }
+                }
+                case SUMMARY_HAS_TIME_RESTRICTIONS -> hasTimeRestrictions = asBoolean(field);
+                case SUMMARY_HAS_TOLL -> hasToll = asBoolean(field);
+                case SUMMARY_HAS_HIGHWAY -> hasHighway = asBoolean(field);
+                case SUMMARY_HAS_FERRY -> hasFerry = asBoolean(field);
+                default -> { /* Not used */ }
+                }
+            }
+        }
+        // Cost is not part of the protobuf summary
+        return new Trip.Summary(hasTimeRestrictions, hasToll, hasHighway, hasFerry, min[0], min[1], max[0], max[1],
+                time, length, 0);
+    }
+
+    private static Maneuver parseManeuver(byte[] maneuver) throws IOException {
+        int type = 0;
+        String instruction = "";
+        String verbalTransitionInstruction = "";
+        String preVerbalTransitionInstruction = "";
+        String postVerbalTransitionInstruction = "";
+        double length = 0;
+        double time = 0;
+        int startShape = 0;
+        int endShape = 0;
+        boolean multiVerbalCue = false;
+        int travelMode = 0;
+        int travelType = 0;
+        try (Message message = new Message(maneuver)) {
+            ProtobufRecord field;
+            while ((field = message.next()) != null) {
+                switch (field.getField()) {
+                case MANEUVER_TYPE -> type = field.asUnsignedVarInt().intValue();
+                case MANEUVER_TEXT_INSTRUCTION -> instruction = field.asString();
+                case MANEUVER_LENGTH -> length = field.asFloat();
+                case MANEUVER_TIME -> time = field.asDouble();
+                case MANEUVER_BEGIN_SHAPE_INDEX -> startShape = field.asUnsignedVarInt().intValue();
+                case MANEUVER_END_SHAPE_INDEX -> endShape = field.asUnsignedVarInt().intValue();
+                case MANEUVER_VERBAL_SUCCINCT_TRANSITION_INSTRUCTION -> verbalTransitionInstruction = field.asString();
+                case MANEUVER_VERBAL_PRE_TRANSITION_INSTRUCTION -> preVerbalTransitionInstruction = field.asString();
+                case MANEUVER_VERBAL_POST_TRANSITION_INSTRUCTION -> postVerbalTransitionInstruction = field.asString();
+                case MANEUVER_VERBAL_MULTI_CUE -> multiVerbalCue = asBoolean(field);
+                case MANEUVER_TRAVEL_MODE -> travelMode = field.asUnsignedVarInt().intValue();
+                // Only the type matching the travel mode is set
+                case MANEUVER_VEHICLE_TYPE, MANEUVER_PEDESTRIAN_TYPE, MANEUVER_BICYCLE_TYPE, MANEUVER_TRANSIT_TYPE ->
+                    travelType = field.asUnsignedVarInt().intValue();
+                default -> { /* Not used */ }
+                }
+            }
+        }
+        // Cost is not part of the protobuf maneuver
+        return new Maneuver(JsonResponseParser.maneuverType(type), instruction, verbalTransitionInstruction,
+                preVerbalTransitionInstruction, postVerbalTransitionInstruction, time, length, 0, startShape, endShape,
+                multiVerbalCue, lookup(TRAVEL_MODES, travelMode), travelType(travelMode, travelType));
+    }
+
+    /**
+     * Get the json name for a travel type. proto3 does not write default values, so a missing type is the first
+     * entry for the travel mode.
+     * @param travelMode The travel mode
+     * @param travelType The travel type for the travel mode
+     * @return The json name of the travel type
+     */
+    private static String travelType(int travelMode, int travelType) {
+        return switch (travelMode) {
+        case 0 -> lookup(VEHICLE_TYPES, travelType);
+        case 1 -> lookup(PEDESTRIAN_TYPES, travelType);
+        case 2 -> lookup(BICYCLE_TYPES, travelType);
+        case 3 -> lookup(TRANSIT_TYPES, travelType);
+        default -> "";
+        };
+    }
+
+    private static String lookup(String[] values, int index) {
+        return index >= 0 && index < values.length ? values[index] : "";
+    }
+
+    private static boolean asBoolean(ProtobufRecord field) {
+        return field.asUnsignedVarInt().longValue() != 0;
+    }
+
+    /**
+     * Build the trip summary, since protobuf responses only have summaries for the individual legs
+     * @param legs The legs of the trip
+     * @return The trip summary
+     */
+    private static Trip.Summary summarize(List<Legs> legs) {
+        boolean hasTimeRestrictions = false;
+        boolean hasToll = false;
+        boolean hasHighway = false;
+        boolean hasFerry = false;
+        double minLat = Double.NaN;
+        double minLon = Double.NaN;
+        double maxLat = Double.NaN;
+        double maxLon = Double.NaN;
+        double time = 0;
+        double length = 0;
+        for (Legs leg : legs) {
+            final Trip.Summary summary = leg.summary();
+            if (summary != null) {
+                hasTimeRestrictions |= summary.has_time_restrictions();
+                hasToll |= summary.has_toll();
+                hasHighway |= summary.has_highway();
+                hasFerry |= summary.has_ferry();
+                // Math.min/max return NaN if either is NaN, so the first leg initializes the bounds
+                minLat = Double.isNaN(minLat) ? summary.min_lat() : Math.min(minLat, summary.min_lat());
+                minLon = Double.isNaN(minLon) ? summary.min_lon() : Math.min(minLon, summary.min_lon());
+                maxLat = Double.isNaN(maxLat) ? summary.max_lat() : Math.max(maxLat, summary.max_lat());
+                maxLon = Double.isNaN(maxLon) ? summary.max_lon() : Math.max(maxLon, summary.max_lon());
+                time += summary.time();
+                length += summary.length();
+            }
+        }
+        return new Trip.Summary(hasTimeRestrictions, hasToll, hasHighway, hasFerry, minLat, minLon, maxLat, maxLon,
+                time, length, 0);
+    }
+}
@@ -0,0 +1,302 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.IRouter;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Matrix;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RouterExecutors;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Make calls to a Valhalla server over http, instead of a local install. The server routes on its own data, so edits
+ * in the layer don't change the routes until the server has them.
+ * <p>
+ * Connections are kept alive and reused, responses are compressed, and batches keep up to
+ * {@code routing2.valhalla.remote.window} requests in flight. Requests that the server turns away because it is busy
+ * are retried with an exponential back-off, up to {@code routing2.valhalla.remote.attempts} times.
+ */
+public final class RemoteValhallaRouter implements IRouter {
+    /* Shared by all routers, so that a new router for every route still reuses the open connections */
+    private static final HttpClient CLIENT = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10)).executor(RouterExecutors.io()).build();
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(2);
+    /** The delay before the first retry; it doubles with every attempt */
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    /** The longest delay between two attempts, even if the server asks for a longer one */
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    /** The status codes of a server that is overloaded or restarting */
+    private static final Set<Integer> RETRY_STATUS = Set.of(429, 502, 503, 504);
+
+    private final URI endpoint;
+
+    /**
+     * Create a new router
+     * @param endpoint The base url of the server, like {@code https://valhalla.example.org/}
+     */
+    public RemoteValhallaRouter(URI endpoint) {
+        // The actions are resolved against the endpoint, which drops the last path segment without a slash
+        this.endpoint = endpoint.getPath().endsWith("/") ? endpoint : URI.create(endpoint + "/");
+    }
+
+    @Override
+    public boolean shouldPerformSetup() {
+        return false;
+    }
+
+    @Override
+    public void performSetup(ProgressMonitor progressMonitor) {
+        // Nothing to download
+    }
+
+    @Override
+    public Trip generateRoute(CancellationToken token, OsmDataLayer layer, ILatLon... locations) {
+        try {
+            final byte[] response = request(token, "route", ValhallaServer.routeRequest(true, locations));
+            return ValhallaServer.parseRouteResponse(new ByteArrayInputStream(response));
+        } catch (ValhallaException valhallaException) {
+            if (valhallaException.getErrorCode() == ValhallaException.NO_PATH) {
+                GuiHelper.runInEDTAndWait(
+                        () -> new Notification(tr("No route found")).setIcon(JOptionPane.WARNING_MESSAGE).show());
+                return null;
+            }
+            throw new JosmRuntimeException(valhallaException);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    @Override
+    public Trip[] generateRoutes(CancellationToken token, OsmDataLayer layer, List<ILatLon[]> requests) {
+        final Trip[] trips = new Trip[requests.size()];
+        final long start = System.nanoTime();
+        ValhallaServer.pipeline(token, this::requestAsync, window(), "route", trips.length,
+                index -> ValhallaServer.routeRequest(true, requests.get(index)), ValhallaServer.routesHandler(trips));
+        Logging.info("Calculated " + trips.length + " routes on " + this.endpoint + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return trips;
+    }
+
+    @Override
+    public Matrix generateMatrix(CancellationToken token, OsmDataLayer layer, ILatLon[] sources,
+            ILatLon[] targets) {
+        final Matrix matrix = Matrix.unreachable(sources.length, targets.length);
+        if (sources.length == 0 || targets.length == 0) {
+            return matrix;
+        }
+        // The service limits of the server are not known, so they are configured
+        final List<int[]> blocks = ValhallaServer.matrixBlocks(sources.length, targets.length, Math.max(1,
+                Config.getPref().getInt("routing2.valhalla.remote.matrix_pairs", ValhallaServer.DEFAULT_MATRIX_PAIRS)));
+        ValhallaServer.pipeline(token, this::requestAsync, window(), "sources_to_targets", blocks.size(),
+                index -> ValhallaServer.matrixRequest(sources, targets, blocks.get(index)),
+                ValhallaServer.matrixHandler(matrix, blocks));
+        return matrix;
+    }
+
+    /**
+     * Get the number of requests that are kept in flight
+     * @return The window size
+     */
+    private static int window() {
+        return Math.max(1, Config.getPref().getInt("routing2.valhalla.remote.window", 8));
+    }
+
+    /**
+     * Send a request and wait for the response
+     * @param token The token for cancelling the request
+     * @param action The valhalla action
+     * @param json The request body
+     * @return The response body
+     * @throws IOException if the request failed
+     */
+    private byte[] request(CancellationToken token, String action, String json) throws IOException {
+        try {
+            return requestAsync(token, action, json).join();
+        } catch (CompletionException completionException) {
+            if (completionException.getCause() instanceof IOException ioException) {
+                throw ioException;
+            } else if (completionException.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw completionException;
+        }
+    }
+
+    /**
+     * Send a request without waiting for the response, retrying it while the server is overloaded
+     * @param token The token for cancelling the request; this also stops the retries
+     * @param action The valhalla action
+     * @param json The request body
+     * @return The decompressed response body. Valhalla errors are returned as json, so the body of an error response
+     * is returned as well, if it is json.
+     */
+    CompletableFuture<byte[]> requestAsync(CancellationToken token, String action, String json) {
+        token.throwIfCancelled();
+        final HttpRequest request = HttpRequest.newBuilder(this.endpoint.resolve(action)).timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json").header("Accept-Encoding", "gzip")
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8)).build();
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final CancellationToken.Registration registration = token.onCancel(() -> result.cancel(true));
+        result.whenComplete((body, throwable) -> registration.close());
+        send(result, request, 1);
+        return result;
+    }
+
+    /**
+     * Make one attempt at a request
+     * @param result The result of the request
+     * @param request The request
+     * @param attempt The number of this attempt, starting at 1
+     */
+    private static void send(CompletableFuture<byte[]> result, HttpRequest request, int attempt) {
+        if (result.isDone()) {
+            return; // Cancelled while waiting for the retry
+        }
+        final CompletableFuture<HttpResponse<byte[]>> response = CLIENT.sendAsync(request,
+                HttpResponse.BodyHandlers.ofByteArray());
+        // Cancelling the future aborts the exchange, so the connection is not kept busy with an obsolete route
+        result.whenComplete((body, throwable) -> response.cancel(true));
+        response.whenComplete((httpResponse, throwable) -> {
+            if (result.isDone()) {
+                return;
+            }
+            final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            final long delay = cause == null ? retryDelay(httpResponse, attempt) : retryDelay(cause, attempt);
+            if (delay >= 0) {
+                Logging.debug("Retrying " + request.uri() + " in " + delay + " ms, attempt " + (attempt + 1));
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, RouterExecutors.io())
+                        .execute(() -> send(result, request, attempt + 1));
+            } else if (cause != null) {
+                result.completeExceptionally(cause);
+            } else {
+                try {
+                    result.complete(body(httpResponse));
+                } catch (IOException ioException) {
+                    result.completeExceptionally(ioException);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the delay before retrying a request that got a response
+     * @param response The response
+     * @param attempt The number of the attempt that got the response
+     * @return The delay in milliseconds, or {@code -1} if the request should not be retried
+     */
+    private static long retryDelay(HttpResponse<?> response, int attempt) {
+        if (!RETRY_STATUS.contains(response.statusCode()) || attempt >= maxAttempts()) {
+            return -1;
+        }
+        final long retryAfter = response.headers().firstValue("Retry-After").map(RemoteValhallaRouter::parseRetryAfter)
+                .orElse(0L);
+        return Math.min(MAX_BACKOFF_MILLIS, Math.max(retryAfter, backoff(attempt)));
+    }
+
+    /**
+     * Get the delay before retrying a request that failed without a response
+     * @param cause The failure
+     * @param attempt The number of the attempt that failed
+     * @return The delay in milliseconds, or {@code -1} if the request should not be retried
+     */
+    private static long retryDelay(Throwable cause, int attempt) {
+        // Route requests don't change anything on the server, so they are safe to repeat. A request that timed out
+        // is not repeated though, since it would most likely time out again.
+        final boolean retry = cause instanceof IOException
+                && (!(cause instanceof HttpTimeoutException) || cause instanceof HttpConnectTimeoutException);
+        if (!retry || attempt >= maxAttempts()) {
+            return -1;
+        }
+        return backoff(attempt);
+    }
+
+    /**
+     * Get the exponential back-off for an attempt. Part of the delay is random, so that the requests in flight don't
+     * all come back at the same time.
+     * @param attempt The number of the attempt that failed
+     * @return The delay in milliseconds
+     */
+    private static long backoff(int attempt) {
+        final long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private static int maxAttempts() {
+        return Math.max(1, Config.getPref().getInt("routing2.valhalla.remote.attempts", 5));
+    }
+
+    /**
+     * Parse a {@code Retry-After} header
+     * @param value The header value, in seconds or as an http date
+     * @return The delay in milliseconds
+     */
+    static long parseRetryAfter(String value) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException numberFormatException) {
+            Logging.trace(numberFormatException);
+        }
+        try {
+            final ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+        } catch (DateTimeParseException dateTimeParseException) {
+            Logging.trace(dateTimeParseException);
+            return 0;
+        }
+    }
+
+    /**
+     * Get the body of a response
+     * @param response The response
+     * @return The decompressed body
+     * @throws IOException if the body could not be decompressed, or the server answered with an error that is not
+     * from valhalla
+     */
+    private static byte[] body(HttpResponse<byte[]> response) throws IOException {
+        byte[] body = response.body();
+        if (response.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent()) {
+            try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = inputStream.readAllBytes();
+            }
+        }
+        // Valhalla errors are json, which the parsers turn into a ValhallaException; anything else is from a proxy
+        if (response.statusCode() >= 400 && (body.length == 0 || body[0] != '{')) {
+            throw new IOException("Valhalla server " + response.uri() + " answered with HTTP " + response.statusCode());
+        }
+        return body;
+    }
+}
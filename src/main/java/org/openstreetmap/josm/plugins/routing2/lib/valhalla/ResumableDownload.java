@@ -0,0 +1,187 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.io.ProgressInputStream;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.tools.HttpClient;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Download a file into a cache, resuming an interrupted download where it stopped.
+ * <p>
+ * The file is downloaded to {@code name.part} and only moved to its final name once its checksum was verified
+ * against the {@code name.sha256} file next to it on the server. The verified checksum is kept next to the cached
+ * file, so a cached file is only downloaded again if the server publishes a different checksum.
+ */
+final class ResumableDownload {
+    /** The number of bytes to copy at once */
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+
+    private ResumableDownload() {
+        // Hide constructor
+    }
+
+    /**
+     * Download a file, unless it is already cached
+     * @param token The token for cancelling the download
+     * @param source The file to download
+     * @param cacheDirectory The directory to download to; it is created if needed
+     * @param monitor The monitor for progress updates
+     * @return The downloaded file
+     * @throws IOException if the file could not be downloaded, or did not match its checksum
+     */
+    static Path download(CancellationToken token, URI source, Path cacheDirectory, ProgressMonitor monitor)
+            throws IOException {
+        final String path = source.getPath();
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        final Path target = cacheDirectory.resolve(name);
+        final Path partial = cacheDirectory.resolve(name + ".part");
+        final Path checksumFile = cacheDirectory.resolve(name + CHECKSUM_SUFFIX);
+        Files.createDirectories(cacheDirectory);
+        final boolean cached = Files.isRegularFile(target) && Files.isRegularFile(checksumFile);
+        final String expected;
+        try {
+            expected = fetchChecksum(URI.create(source + CHECKSUM_SUFFIX));
+        } catch (IOException ioException) {
+            if (!cached) {
+                throw ioException;
+            }
+            Logging.warn("Could not check " + source + " for updates, using the cached download");
+            Logging.trace(ioException);
+            return target;
+        }
+        if (cached && (expected == null || expected.equals(Files.readString(checksumFile).trim()))) {
+            Logging.info("Using cached download " + target);
+            return target;
+        }
+        token.throwIfCancelled();
+        fetch(token, source, partial, monitor);
+        final String actual = checksum(partial);
+        if (expected != null && !expected.equals(actual)) {
+            // Don't resume from a corrupt file
+            Files.deleteIfExists(partial);
+            throw new IOException(source + " has checksum " + actual + ", expected " + expected);
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.writeString(checksumFile, actual);
+        return target;
+    }
+
+    /**
+     * Get the published checksum of a file
+     * @param checksumSource The checksum file, in {@code sha256sum} format
+     * @return The checksum, or {@code null} if the server does not publish one
+     * @throws IOException if the checksum file could not be read
+     */
+    private static String fetchChecksum(URI checksumSource) throws IOException {
+        final HttpClient client = HttpClient.create(checksumSource.toURL());
+        try {
+            final HttpClient.Response response = client.connect();
+            if (response.getResponseCode() != 200) {
+                Logging.warn("No checksum at " + checksumSource + " (HTTP " + response.getResponseCode()
+                        + "), the download will not be verified");
+                return null;
+            }
+            final String content = response.fetchContent().trim();
+            final int end = content.indexOf(' ');
+            return (end < 0 ? content : content.substring(0, end)).toLowerCase(Locale.ROOT);
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Download a file, continuing from the end of the partial file if the server supports range requests
+     * @param token The token for cancelling the download
+     * @param source The file to download
+     * @param partial The partial file
+     * @param monitor The monitor for progress updates
+     * @throws IOException if the file could not be downloaded
+     */
+    private static void fetch(CancellationToken token, URI source, Path partial, ProgressMonitor monitor)
+            throws IOException {
+        final long existing = Files.isRegularFile(partial) ? Files.size(partial) : 0;
+        final HttpClient client = HttpClient.create(source.toURL());
+        if (existing > 0) {
+            client.setHeader("Range", "bytes=" + existing + '-');
+        }
+        try {
+            final HttpClient.Response response = client.connect();
+            final int code = response.getResponseCode();
+            if (code == 416 && existing > 0) {
+                // The partial file is complete; the checksum decides if it is any good
+                return;
+            }
+            if (code != 200 && code != 206) {
+                Logging.error(response.fetchContent());
+                throw new IOException("Download of " + source + " failed with HTTP error code " + code + ": "
+                        + response.getResponseMessage());
+            }
+            final boolean resumed = code == 206;
+            if (resumed) {
+                Logging.info("Resuming download of " + source + " at " + existing + " bytes");
+            }
+            monitor.setTicks(0);
+            try (InputStream content = response.getContent();
+                    ProgressInputStream progress = new ProgressInputStream(content, response.getContentLength(),
+                            monitor);
+                    ReadableByteChannel input = Channels.newChannel(progress);
+                    FileChannel output = FileChannel.open(partial, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE)) {
+                if (!resumed) {
+                    output.truncate(0);
+                }
+                long position = resumed ? existing : 0;
+                long transferred;
+                do {
+                    token.throwIfCancelled();
+                    transferred = output.transferFrom(input, position, CHUNK_SIZE);
+                    position += transferred;
+                } while (transferred > 0);
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Calculate the checksum of a file
+     * @param file The file
+     * @return The hex encoded SHA-256 checksum
+     * @throws IOException if the file could not be read
+     */
+    static String checksum(Path file) throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                while (channel.read(buffer) >= 0) {
+                    digest.update(buffer.flip());
+                    buffer.clear();
+                }
+            }
+            return Utils.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw new JosmRuntimeException(noSuchAlgorithmException);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RoutablePrimitives;
+
+/**
+ * Track the valhalla graph tiles that routable edits touched since the tiles were last built from a data set.
+ * <p>
+ * The valhalla tools can only build all tiles from a complete export, so this is used to skip the export (and the
+ * build) entirely when nothing routable changed, and to report which tiles an edit affects.
+ */
+final class TileChanges implements DataSetListener {
+    /** The size of valhalla's local (level 2) tiles in degrees */
+    static final double TILE_SIZE = 0.25;
+    /** The number of tile columns around the world */
+    static final int TILE_COLUMNS = (int) (360 / TILE_SIZE);
+
+    /* Weak, so that a data set from a removed layer can be collected */
+    private final WeakReference<DataSet> dataSet;
+    /* Guarded by this */
+    private final Set<Integer> dirtyTiles = new TreeSet<>();
+    /* Guarded by this; true until the first export, or after changes that we can't locate */
+    private boolean unknownChanges = true;
+    /* Guarded by this */
+    private String fingerprint;
+
+    TileChanges(DataSet dataSet) {
+        this.dataSet = new WeakReference<>(dataSet);
+    }
+
+    /**
+     * Start tracking the data set
+     */
+    void register() {
+        final DataSet tracked = this.dataSet.get();
+        if (tracked != null) {
+            tracked.addDataSetListener(this);
+        }
+    }
+
+    /**
+     * Stop tracking the data set
+     */
+    void unregister() {
+        final DataSet tracked = this.dataSet.get();
+        if (tracked != null) {
+            tracked.removeDataSetListener(this);
+        }
+    }
+
+    /**
+     * Check if this tracks a data set
+     * @param other The data set to check
+     * @return {@code true} if this tracks the data set
+     */
+    boolean isTracking(DataSet other) {
+        return this.dataSet.get() == other;
+    }
+
+    /**
+     * Get the local tile id of a location
+     * @param latLon The location
+     * @return The level 2 tile id
+     */
+    static int tileId(ILatLon latLon) {
+        final int row = Math.min((int) ((latLon.lat() + 90) / TILE_SIZE), (int) (180 / TILE_SIZE) - 1);
+        final int column = Math.min((int) ((latLon.lon() + 180) / TILE_SIZE), TILE_COLUMNS - 1);
+        return row * TILE_COLUMNS + column;
+    }
+
+    /**
+     * Get the path of a tile in the valhalla tile directory
+     * @param tileId The level 2 tile id
+     * @return The path, like {@code 2/000/756/425.gph}
+     */
+    static String tilePath(int tileId) {
+        final String digits = String.format("%09d", tileId);
+        return "2/" + digits.substring(0, 3) + '/' + digits.substring(3, 6) + '/' + digits.substring(6) + ".gph";
+    }
+
+    /**
+     * Get the fingerprint of the tiles if the data has not changed since they were built
+     * @return The fingerprint of the last export, or {@code null} if routable data changed since then
+     */
+    synchronized String unchangedFingerprint() {
+        return this.unknownChanges || !this.dirtyTiles.isEmpty() ? null : this.fingerprint;
+    }
+
+    /**
+     * Call before taking the snapshot for an export. Changes made after this are tracked for the next export.
+     * @return The tiles that changed since the last export, or {@code null} if that is not known
+     */
+    synchronized Set<Integer> beginExport() {
+        final Set<Integer> changed = this.unknownChanges ? null : new TreeSet<>(this.dirtyTiles);
+        this.unknownChanges = false;
+        this.dirtyTiles.clear();
+        this.fingerprint = null;
+        return changed;
+    }
+
+    /**
+     * Record the fingerprint of the tiles built from the last export
+     * @param exportFingerprint The fingerprint
+     */
+    synchronized void exported(String exportFingerprint) {
+        this.fingerprint = exportFingerprint;
+    }
+
+    private synchronized void markAll() {
+        this.unknownChanges = true;
+    }
+
+    private synchronized void mark(ILatLon latLon) {
+        if (latLon.isLatLonKnown()) {
+            this.dirtyTiles.add(tileId(latLon));
+        } else {
+            this.unknownChanges = true;
+        }
+    }
+
+    private void markPrimitive(OsmPrimitive primitive, boolean routable) {
+        if (!routable) {
+            return;
+        }
+        if (primitive instanceof Node node) {
+            mark(node);
+        } else if (primitive instanceof Way way && way.getNodesCount() > 0) {
+            for (Node node : way.getNodes()) {
+                mark(node);
+            }
+        } else if (primitive instanceof Relation relation && relation.getMembersCount() > 0) {
+            for (RelationMember member : relation.getMembers()) {
+                markPrimitive(member.getMember(), true);
+            }
+        } else {
+            // We can't tell where an empty way or relation was
+            markAll();
+        }
+    }
+
+    private void markPrimitives(Iterable<? extends OsmPrimitive> primitives) {
+        for (OsmPrimitive primitive : primitives) {
+            if (RoutablePrimitives.isAdminBoundary(primitive)) {
+                // Boundaries affect every tile inside them
+                markAll();
+            }
+            markPrimitive(primitive, RoutablePrimitives.isRoutable(primitive));
+        }
+    }
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        markPrimitives(event.getPrimitives());
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        // Removed nodes have no referrers anymore, so the ways that used them report the change
+        markPrimitives(event.getPrimitives());
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        final Map<String, String> originalKeys = event.getOriginalKeys();
+        // Removing a routing key makes a primitive unroutable, but the graph still changes
+        final boolean hadRoutingKeys = originalKeys.keySet().stream().anyMatch(RoutablePrimitives::isRoutingKey);
+        for (OsmPrimitive primitive : event.getPrimitives()) {
+            if (RoutablePrimitives.isAdminBoundary(primitive) || originalKeys.containsKey("admin_level")) {
+                markAll();
+            }
+            markPrimitive(primitive, hadRoutingKeys || RoutablePrimitives.isRoutable(primitive));
+        }
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        final Node node = event.getNode();
+        if (RoutablePrimitives.isRoutable(node)) {
+            mark(node);
+            // The edges to the neighbours change as well, and they may be in other tiles
+            for (OsmPrimitive referrer : node.getReferrers()) {
+                if (referrer instanceof Way way) {
+                    markPrimitive(way, RoutablePrimitives.isRoutable(way));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        // Nodes that were removed from the way are usually in the tiles of the remaining nodes
+        markPrimitive(event.getChangedWay(), RoutablePrimitives.isRoutable(event.getChangedWay()));
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        if (RoutablePrimitives.isAdminBoundary(event.getRelation())) {
+            markAll();
+        }
+        markPrimitive(event.getRelation(), RoutablePrimitives.isRestriction(event.getRelation()));
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+        // Changeset ids, conflicts and the like don't change the graph
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        markAll();
+    }
+}
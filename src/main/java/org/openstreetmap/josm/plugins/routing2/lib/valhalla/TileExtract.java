@@ -0,0 +1,319 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Write the tile extract ({@code valhalla_tiles.tar}) that valhalla loads instead of the tile directory.
+ * <p>
+ * This does the same as {@code valhalla_build_extract}: the tar starts with an {@code index.bin} member with one
+ * {@code <QII} (data offset, graph id, size) entry per tile, followed by the tiles. Since tiles are found through the
+ * index, a tile that changed can be overwritten in place as long as it still fits in the blocks of its tar member.
+ */
+final class TileExtract {
+    static final String INDEX_NAME = "index.bin";
+    static final int BLOCK_SIZE = 512;
+    static final int INDEX_ENTRY_SIZE = 16;
+    /** Tar files are padded to a multiple of this; this is what python's tarfile does */
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+
+    /**
+     * A tile in the tile directory
+     * @param name The path relative to the tile directory, like {@code 2/000/743/325.gph}
+     * @param path The file
+     * @param graphId The graph id of the tile (level and tile id)
+     * @param size The size of the tile
+     */
+    record Tile(String name, Path path, long graphId, long size) {
+    }
+
+    /**
+     * An entry of the extract index
+     * @param offset The offset of the tile data in the tar
+     * @param graphId The graph id of the tile
+     * @param size The size of the tile
+     */
+    record IndexEntry(long offset, long graphId, long size) {
+    }
+
+    private TileExtract() {
+        // Hide constructor
+    }
+
+    /**
+     * Update the extract if possible, otherwise write a new one
+     * @param tileDirectory The tile directory
+     * @param extract The extract
+     * @return The number of tiles that were written
+     * @throws IOException if the extract could not be written
+     */
+    static int writeOrUpdate(Path tileDirectory, Path extract) throws IOException {
+        final List<Tile> tiles = listTiles(tileDirectory);
+        final int updated = Files.isRegularFile(extract) ? update(tiles, extract) : -1;
+        if (updated >= 0) {
+            return updated;
+        }
+        write(tiles, extract);
+        return tiles.size();
+    }
+
+    /**
+     * Find the tiles in a tile directory, sorted by name
+     * @param tileDirectory The tile directory
+     * @return The tiles
+     * @throws IOException if the directory could not be read
+     */
+    static List<Tile> listTiles(Path tileDirectory) throws IOException {
+        final List<Tile> tiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(tileDirectory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                final String name = tileDirectory.relativize(path).toString().replace('\\', '/');
+                if (name.endsWith(".gph") && Files.isRegularFile(path)) {
+                    tiles.add(new Tile(name, path, graphId(name), Files.size(path)));
+                }
+            }
+        }
+        tiles.sort(Comparator.comparing(Tile::name));
+        return tiles;
+    }
+
+    /**
+     * Get the graph id of a tile from its name
+     * @param name The name, like {@code 2/000/743/325.gph}
+     * @return The graph id; the level is in the lowest three bits
+     */
+    static long graphId(String name) {
+        final int levelEnd = name.indexOf('/');
+        final long level = Long.parseLong(name.substring(0, levelEnd));
+        final long tileId = Long.parseLong(name.substring(levelEnd + 1, name.length() - ".gph".length())
+                .replace("/", ""));
+        return level | (tileId << 3);
+    }
+
+    /**
+     * Write a new extract. The extract is written next to the old one, and replaces it when it is complete.
+     * @param tiles The tiles to write
+     * @param extract The extract
+     * @throws IOException if the extract could not be written
+     */
+    static void write(List<Tile> tiles, Path extract) throws IOException {
+        final int indexSize = INDEX_ENTRY_SIZE * tiles.size();
+        // The offsets are known up front, so the index can be written first
+        final ByteBuffer index = ByteBuffer.allocate(indexSize).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = BLOCK_SIZE + padded(indexSize);
+        for (Tile tile : tiles) {
+            offset += BLOCK_SIZE;
+            index.putLong(offset).putInt((int) tile.graphId()).putInt((int) tile.size());
+            offset += padded(tile.size());
+        }
+        final long mtime = System.currentTimeMillis() / 1000;
+        final Path temporary = extract.resolveSibling(extract.getFileName() + ".part");
+        try (FileChannel output = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(output, header(INDEX_NAME, indexSize, mtime));
+            writeFully(output, index.flip());
+            writeFully(output, ByteBuffer.allocate((int) (padded(indexSize) - indexSize)));
+            for (Tile tile : tiles) {
+                writeFully(output, header(tile.name(), tile.size(), mtime));
+                try (FileChannel input = FileChannel.open(tile.path(), StandardOpenOption.READ)) {
+                    transfer(input, tile.size(), output);
+                }
+                writeFully(output, ByteBuffer.allocate((int) (padded(tile.size()) - tile.size())));
+            }
+            // The end of the archive is marked with two empty blocks
+            final long end = output.position() + 2 * BLOCK_SIZE;
+            writeFully(output, ByteBuffer.allocate((int) (2 * BLOCK_SIZE + (RECORD_SIZE - end % RECORD_SIZE)
+                    % RECORD_SIZE)));
+        }
+        Files.move(temporary, extract, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Overwrite the tiles that changed in an existing extract
+     * @param tiles The current tiles
+     * @param extract The extract to update
+     * @return The number of tiles that were overwritten, or {@code -1} if the extract must be written again, which
+     * is the case when tiles were added or removed, or when a tile no longer fits in its tar member
+     * @throws IOException if the extract could not be read or written
+     */
+    static int update(List<Tile> tiles, Path extract) throws IOException {
+        try (FileChannel channel = FileChannel.open(extract, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final List<IndexEntry> entries = readIndex(channel);
+            if (entries == null || entries.size() != tiles.size()) {
+                return -1;
+            }
+            final Map<Long, Integer> byGraphId = new HashMap<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                byGraphId.put(entries.get(i).graphId(), i);
+            }
+            // Check everything before writing, so that a failed update leaves the extract as it was
+            final int[] positions = new int[tiles.size()];
+            for (int i = 0; i < tiles.size(); i++) {
+                final Integer position = byGraphId.get(tiles.get(i).graphId() & 0xFFFF_FFFFL);
+                if (position == null || padded(tiles.get(i).size()) > padded(entries.get(position).size())) {
+                    return -1;
+                }
+                positions[i] = position;
+            }
+            final ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * entries.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            final long mtime = System.currentTimeMillis() / 1000;
+            int updated = 0;
+            for (int i = 0; i < tiles.size(); i++) {
+                final Tile tile = tiles.get(i);
+                final IndexEntry entry = entries.get(positions[i]);
+                if (!isSame(tile, channel, entry)) {
+                    if (tile.size() != entry.size()) {
+                        channel.write(header(tile.name(), tile.size(), mtime), entry.offset() - BLOCK_SIZE);
+                    }
+                    channel.position(entry.offset());
+                    try (FileChannel input = FileChannel.open(tile.path(), StandardOpenOption.READ)) {
+                        transfer(input, tile.size(), channel);
+                    }
+                    writeFully(channel, ByteBuffer.allocate((int) (padded(entry.size()) - tile.size())));
+                    updated++;
+                }
+                index.position(INDEX_ENTRY_SIZE * positions[i]);
+                index.putLong(entry.offset()).putInt((int) tile.graphId()).putInt((int) tile.size());
+            }
+            channel.position(BLOCK_SIZE);
+            writeFully(channel, index.position(0));
+            return updated;
+        }
+    }
+
+    /**
+     * Read the index of an extract
+     * @param channel The extract
+     * @return The index entries, or {@code null} if the extract does not start with an index
+     * @throws IOException if the extract could not be read
+     */
+    static List<IndexEntry> readIndex(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+        if (readFully(channel, header, 0) < BLOCK_SIZE
+                || !INDEX_NAME.equals(readString(header, 0, 100))) {
+            return null;
+        }
+        final long indexSize = Long.parseLong(readString(header, 124, 12).trim(), 8);
+        if (indexSize % INDEX_ENTRY_SIZE != 0 || BLOCK_SIZE + indexSize > channel.size()) {
+            return null;
+        }
+        final ByteBuffer index = ByteBuffer.allocate((int) indexSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, index, BLOCK_SIZE);
+        index.flip();
+        final List<IndexEntry> entries = new ArrayList<>((int) (indexSize / INDEX_ENTRY_SIZE));
+        while (index.hasRemaining()) {
+            entries.add(new IndexEntry(index.getLong(), Integer.toUnsignedLong(index.getInt()),
+                    Integer.toUnsignedLong(index.getInt())));
+        }
+        return entries;
+    }
+
+    private static boolean isSame(Tile tile, FileChannel extract, IndexEntry entry) throws IOException {
+        if (tile.size() != entry.size()) {
+            return false;
+        }
+        if (tile.size() == 0) {
+            return true;
+        }
+        try (FileChannel input = FileChannel.open(tile.path(), StandardOpenOption.READ)) {
+            return input.map(FileChannel.MapMode.READ_ONLY, 0, tile.size())
+                    .equals(extract.map(FileChannel.MapMode.READ_ONLY, entry.offset(), entry.size()));
+        }
+    }
+
+    /**
+     * Create a ustar header
+     * @param name The member name
+     * @param size The member size
+     * @param mtime The modification time in seconds
+     * @return The header block
+     */
+    static ByteBuffer header(String name, long size, long mtime) {
+        final byte[] header = new byte[BLOCK_SIZE];
+        putString(header, 0, 100, name);
+        putString(header, 100, 8, "0000644");
+        putString(header, 108, 8, "0000000");
+        putString(header, 116, 8, "0000000");
+        putString(header, 124, 12, String.format("%011o", size));
+        putString(header, 136, 12, String.format("%011o", mtime));
+        // The checksum is calculated with the checksum field set to spaces
+        putString(header, 148, 8, "        ");
+        header[156] = '0';
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putString(header, 148, 8, String.format("%06o", checksum));
+        header[155] = ' ';
+        return ByteBuffer.wrap(header);
+    }
+
+    private static void putString(byte[] header, int offset, int length, String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > length) {
+            throw new IllegalArgumentException(value + " does not fit in a tar header field of length " + length);
+        }
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+        if (bytes.length < length) {
+            header[offset + bytes.length] = 0;
+        }
+    }
+
+    private static String readString(ByteBuffer header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header.get(end) != 0) {
+            end++;
+        }
+        return new String(header.array(), offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static void transfer(FileChannel input, long size, FileChannel output) throws IOException {
+        long transferred = 0;
+        while (transferred < size) {
+            final long count = input.transferTo(transferred, size - transferred, output);
+            if (count <= 0 && input.size() < size) {
+                throw new IOException("Tile shrank while it was copied");
+            }
+            transferred += count;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
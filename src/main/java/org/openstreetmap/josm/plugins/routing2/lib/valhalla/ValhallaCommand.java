@@ -0,0 +1,148 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RouterExecutors;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A valhalla command line tool run. The process (and anything it started) is killed when the token is cancelled,
+ * when the timeout expires, or when this is closed before the process finished.
+ */
+final class ValhallaCommand implements AutoCloseable {
+    private final String name;
+    private final Process process;
+    private final CancellationToken token;
+    private final CancellationToken.Registration registration;
+    private final Duration timeout;
+    private volatile boolean timedOut;
+    private Path deleteOnClose;
+
+    private ValhallaCommand(String name, Process process, CancellationToken token, Duration timeout) {
+        this.name = name;
+        this.process = process;
+        this.token = token;
+        this.timeout = timeout;
+        this.registration = token.onCancel(this::kill);
+        // The timeout is dropped as soon as the process exits, so a finished command is not kept around until then
+        process.onExit().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS).whenComplete((exited, throwable) -> {
+            if (throwable instanceof TimeoutException && this.process.isAlive()) {
+                Logging.warn(this.name + " did not finish within " + this.timeout + ", stopping it");
+                this.timedOut = true;
+                kill();
+            }
+        });
+    }
+
+    /**
+     * Start a command
+     * @param token The token for cancelling the command
+     * @param timeout The maximum time the command may run
+     * @param directory The working directory
+     * @param args The command and its arguments
+     * @return The running command
+     * @throws IOException if the command could not be started
+     * @throws CancellationException if the token was already cancelled
+     */
+    static ValhallaCommand start(CancellationToken token, Duration timeout, Path directory, String... args)
+            throws IOException {
+        token.throwIfCancelled();
+        Logging.info("Running command: \"" + String.join(" ", args) + "\"");
+        final ProcessBuilder builder = new ProcessBuilder(args);
+        builder.directory(directory.toFile());
+        final Process process = builder.start();
+        // Do not block here. The pump spends its life blocked on the pipe, so it must not take a pool thread.
+        RouterExecutors.io().execute(() -> {
+            try (BufferedReader errors = process.errorReader()) {
+                errors.lines().forEach(Logging::error);
+            } catch (IOException e) {
+                Logging.trace(e);
+            }
+        });
+        return new ValhallaCommand(Path.of(args[0]).getFileName().toString(), process, token, timeout);
+    }
+
+    /**
+     * Delete a file once the command is closed, like a request file that the command reads
+     * @param file The file to delete
+     * @return This command
+     */
+    ValhallaCommand deleteOnClose(Path file) {
+        this.deleteOnClose = file;
+        return this;
+    }
+
+    /**
+     * Get the standard output of the command
+     * @return The output stream of the process
+     */
+    InputStream getInputStream() {
+        return this.process.getInputStream();
+    }
+
+    /**
+     * Wait for the command to finish
+     * @throws IOException if the command failed or timed out
+     * @throws CancellationException if the command was cancelled
+     */
+    void waitFor() throws IOException {
+        final int exitCode;
+        try {
+            exitCode = this.process.waitFor();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            kill();
+            throw new IOException(interruptedException);
+        }
+        this.token.throwIfCancelled();
+        if (this.timedOut) {
+            throw new IOException(this.name + " timed out after " + this.timeout);
+        }
+        if (exitCode != 0) {
+            throw new IOException(this.name + " exited with code " + exitCode);
+        }
+        Logging.debug(this.name + " finished");
+    }
+
+    /**
+     * Kill the process and everything it started
+     */
+    private void kill() {
+        destroyTree(this.process.toHandle());
+    }
+
+    /**
+     * Forcibly destroy a process and all of its descendants
+     * @param handle The process to destroy
+     */
+    static void destroyTree(ProcessHandle handle) {
+        // Get the descendants first, since they may be re-parented once the process is gone
+        handle.descendants().forEach(ProcessHandle::destroyForcibly);
+        handle.destroyForcibly();
+    }
+
+    @Override
+    public void close() {
+        this.registration.close();
+        if (this.process.isAlive()) {
+            kill();
+        }
+        if (this.deleteOnClose != null) {
+            try {
+                Files.deleteIfExists(this.deleteOnClose);
+            } catch (IOException ioException) {
+                Logging.trace(ioException);
+            }
+        }
+    }
+}
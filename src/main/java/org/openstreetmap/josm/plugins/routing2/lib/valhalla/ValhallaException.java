@@ -0,0 +1,44 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import org.openstreetmap.josm.plugins.routing2.lib.generic.TripException;
+
+/**
+ * Thrown when valhalla returns an error response
+ */
+public class ValhallaException extends TripException {
+    /** The error code for "No path could be found for input" */
+    public static final int NO_PATH = 442;
+    private final int errorCode;
+    private final int statusCode;
+
+    /**
+     * Create a new exception
+     * @param errorCode The valhalla error code, see
+     *  <a href="https://valhalla.github.io/valhalla/api/turn-by-turn/api-reference/#http-status-codes-and-conditions">
+     *  the valhalla documentation</a>
+     * @param statusCode The http status code
+     * @param message The error message from valhalla
+     */
+    public ValhallaException(int errorCode, int statusCode, String message) {
+        super(errorCode + " (" + statusCode + "): " + message);
+        this.errorCode = errorCode;
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Get the valhalla error code
+     * @return The error code
+     */
+    public int getErrorCode() {
+        return this.errorCode;
+    }
+
+    /**
+     * Get the http status code
+     * @return The status code
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+}
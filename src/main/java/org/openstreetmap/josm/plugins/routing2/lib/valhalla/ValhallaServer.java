@@ -3,21 +3,42 @@ package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ForkJoinPool;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -27,31 +48,31 @@ import jakarta.json.stream.JsonParsingException;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.util.GuiHelper;
-import org.openstreetmap.josm.io.ProgressInputStream;
-import org.openstreetmap.josm.plugins.pbf.io.PbfExporter;
 import org.openstreetmap.josm.plugins.routing2.Routing2Plugin;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.GooglePolyline;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
 import org.openstreetmap.josm.plugins.routing2.lib.generic.IRouter;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.Locations;
-import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Matrix;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.OsmPbfWriter;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RoutablePrimitives;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RouterExecutors;
 import org.openstreetmap.josm.plugins.routing2.lib.generic.SetupException;
 import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
 import org.openstreetmap.josm.spi.preferences.Config;
-import org.openstreetmap.josm.tools.HttpClient;
 import org.openstreetmap.josm.tools.JosmRuntimeException;
 import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
 
 import jakarta.json.Json;
 import jakarta.json.JsonArrayBuilder;
-import jakarta.json.JsonObject;
 import jakarta.json.JsonObjectBuilder;
 import jakarta.json.JsonReader;
-import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonParser;
 import org.openstreetmap.josm.tools.PlatformManager;
 
 /**
@@ -59,6 +80,23 @@ import org.openstreetmap.josm.tools.PlatformManager;
  */
 public final class ValhallaServer implements IRouter {
     private static final String valhallaVersion = "3.5.1";
+    /* Set when the binaries can't run the long-lived service */
+    private static volatile boolean serviceUnavailable;
+    private static final AtomicBoolean SHUTDOWN_HOOK_REGISTERED = new AtomicBoolean();
+    /** The buffer size for extracting the downloaded binaries */
+    private static final int EXTRACT_BUFFER_SIZE = 1 << 16;
+    /*
+     * The locks are held while waiting for processes, which may run on virtual threads. Those must not wait inside a
+     * synchronized block, since that blocks the carrier thread that other virtual threads need.
+     */
+    /* Held while the binaries are set up, to avoid downloading them multiple times */
+    private static final Lock SETUP_LOCK = new ReentrantLock();
+    /* Held while the timezone database, which all workspaces share, is built */
+    private static final Lock TIMEZONES_LOCK = new ReentrantLock();
+    /** The valhalla default for {@code service_limits.auto.max_matrix_location_pairs} */
+    static final int DEFAULT_MATRIX_PAIRS = 2500;
+    /** The longest request that is passed on the command line; Windows limits a command line to 32767 characters */
+    private static final int INLINE_REQUEST_LIMIT = 16_384;
 
     @Override
     public boolean shouldPerformSetup() {
@@ -84,18 +122,28 @@ public final class ValhallaServer implements IRouter {
     @Override
     public void performSetup(ProgressMonitor progressMonitor) throws SetupException {
         try {
-            realPerformSetup(progressMonitor);
+            realPerformSetup(CancellationToken.of(progressMonitor), progressMonitor);
         } catch (IOException ioException) {
             throw new SetupException(ioException);
         }
     }
 
     /**
-     * Perform the actual setup steps in a synchronized block, to avoid downloading stuff multiple times
+     * Perform the actual setup steps while holding the setup lock, to avoid downloading stuff multiple times
+     * @param token The token for cancelling the setup
      * @param updateable The object to use for progress updates
      * @throws IOException If there is an issue performing setup
      */
-    private static synchronized void realPerformSetup(ProgressMonitor updateable) throws IOException {
+    private static void realPerformSetup(CancellationToken token, ProgressMonitor updateable) throws IOException {
+        SETUP_LOCK.lock();
+        try {
+            setUpBinaries(token, updateable);
+        } finally {
+            SETUP_LOCK.unlock();
+        }
+    }
+
+    private static void setUpBinaries(CancellationToken token, ProgressMonitor updateable) throws IOException {
         final Path dir = getCacheDir().resolve("bin").resolve("valhalla");
         if (!Files.isDirectory(dir)) {
             Files.createDirectories(dir);
@@ -108,7 +156,7 @@ public final class ValhallaServer implements IRouter {
             Files.walkFileTree(dir, new SimpleFileVisitor<>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    if (updateable.isCanceled()) {
+                    if (token.isCancelled()) {
                         return FileVisitResult.TERMINATE;
                     }
                     Files.delete(file);
@@ -118,7 +166,7 @@ public final class ValhallaServer implements IRouter {
 
                 @Override
                 public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    if (updateable.isCanceled()) {
+                    if (token.isCancelled()) {
                         return FileVisitResult.TERMINATE;
                     }
                     Files.delete(dir);
@@ -131,92 +179,552 @@ public final class ValhallaServer implements IRouter {
         if (!Files.isDirectory(binDir)) {
             updateable.subTask(tr("Downloading valhalla binaries"));
             if (PlatformManager.isPlatformOsx()) {
-                extractBinaries(updateable, "Darwin", dir);
+                extractBinaries(token, updateable, "Darwin", dir);
             } else if (PlatformManager.isPlatformUnixoid()) {
-                extractBinaries(updateable, "Linux", dir);
+                extractBinaries(token, updateable, "Linux", dir);
             } else if (PlatformManager.isPlatformWindows()) {
-                extractBinaries(updateable, "Windows", dir);
+                extractBinaries(token, updateable, "Windows", dir);
             } else {
                 throw new UnsupportedOperationException("Your platform is not currently supported");
             }
             // Do this last in case of cancellation
-            if (!updateable.isCanceled()) {
+            if (!token.isCancelled()) {
                 Files.writeString(versionFile, valhallaVersion);
             }
+            serviceUnavailable = false;
         }
     }
 
     @Override
-    public Trip generateRoute(OsmDataLayer layer, ILatLon... locations) {
-        final Path config = generateConfig();
-        final Path dataPath = writeDataSet(layer);
+    public void prepare(CancellationToken token, OsmDataLayer layer) {
+        if (Config.getPref().getDouble("routing2.valhalla.export.clip", 0) > 0) {
+            return; // The tiles depend on the route locations
+        }
+        if (shouldPerformSetup()) {
+            try {
+                realPerformSetup(token, NullProgressMonitor.INSTANCE);
+            } catch (IOException ioException) {
+                throw new UncheckedIOException(ioException);
+            }
+            token.throwIfCancelled();
+        }
+        getService(prepareTiles(token, layer));
+    }
+
+    @Override
+    public Trip generateRoute(CancellationToken token, OsmDataLayer layer, ILatLon... locations) {
+        final Prepared prepared = prepareTiles(token, layer, locations);
+        final ValhallaService routeService = getService(prepared);
+        final String json = routeRequest(routeService != null, locations);
         try {
-            if (!Files.isDirectory(getCacheDir().resolve("valhalla_tiles"))) {
-                Files.createDirectory(getCacheDir().resolve("valhalla_tiles"));
+            if (routeService != null) {
+                try (InputStream response = routeService.request(token, "route", json)) {
+                    return parseRouteResponse(response);
+                }
+            }
+            try (ValhallaCommand command = runAction(token, prepared.workspace(), "route", json);
+                    InputStream response = command.getInputStream()) {
+                final Trip trip = parseRouteResponse(response);
+                command.waitFor();
+                return trip;
             }
+        } catch (ValhallaException valhallaException) {
+            if (valhallaException.getErrorCode() == ValhallaException.NO_PATH) {
+                GuiHelper.runInEDTAndWait(
+                        () -> new Notification(tr("No route found")).setIcon(JOptionPane.WARNING_MESSAGE).show());
+                return null; // No route found // FIXME: Throw RouteException with message?
+            } // FIXME: Look through https://valhalla.github.io/valhalla/api/turn-by-turn/api-reference/#http-status-codes-and-conditions for other "valid" problems.
+            throw new JosmRuntimeException(valhallaException);
         } catch (IOException ioException) {
             throw new UncheckedIOException(ioException);
         }
-        if (!PlatformManager.isPlatformWindows())
-            generateTimezones(config.resolveSibling("valhalla_tiles").resolve("timezones.sqlite"));
-        generateAdmins(config, dataPath);
-        generateTiles(config, dataPath);
-        generateExtract(config);
-        JsonObjectBuilder builder = Json.createObjectBuilder();
+    }
+
+    @Override
+    public Trip[] generateRoutes(CancellationToken token, OsmDataLayer layer, List<ILatLon[]> requests) {
+        final Trip[] trips = new Trip[requests.size()];
+        if (trips.length == 0) {
+            return trips;
+        }
+        // The tiles and the service are prepared once for the whole batch
+        final Prepared prepared = prepareTiles(token, layer,
+                requests.stream().flatMap(Arrays::stream).toArray(ILatLon[]::new));
+        final ValhallaService routeService = getService(prepared);
+        final long start = System.nanoTime();
+        final ResponseHandler handler = routesHandler(trips);
+        if (routeService != null) {
+            pipeline(token, routeService::requestAsync, pipelineDepth(), "route", trips.length,
+                    index -> routeRequest(true, requests.get(index)), handler);
+        } else {
+            for (int i = 0; i < trips.length; i++) {
+                runOneOff(token, prepared.workspace(), "route", routeRequest(false, requests.get(i)), i, handler);
+            }
+        }
+        Logging.info("Calculated " + trips.length + " routes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return trips;
+    }
+
+    @Override
+    public Matrix generateMatrix(CancellationToken token, OsmDataLayer layer, ILatLon[] sources,
+            ILatLon[] targets) {
+        final Matrix matrix = Matrix.unreachable(sources.length, targets.length);
+        if (sources.length == 0 || targets.length == 0) {
+            return matrix;
+        }
+        final ILatLon[] locations = Arrays.copyOf(sources, sources.length + targets.length);
+        System.arraycopy(targets, 0, locations, sources.length, targets.length);
+        final Prepared prepared = prepareTiles(token, layer, locations);
+        final ValhallaService matrixService = getService(prepared);
+        // Valhalla rejects requests with more pairs than its service limit, so large matrices are split into blocks
+        final List<int[]> blocks = matrixBlocks(sources.length, targets.length, matrixPairLimit(prepared.config()));
+        final IntFunction<String> request = index -> matrixRequest(sources, targets, blocks.get(index));
+        final ResponseHandler handler = matrixHandler(matrix, blocks);
+        final long start = System.nanoTime();
+        if (matrixService != null) {
+            pipeline(token, matrixService::requestAsync, pipelineDepth(), "sources_to_targets", blocks.size(),
+                    request, handler);
+        } else {
+            for (int i = 0; i < blocks.size(); i++) {
+                runOneOff(token, prepared.workspace(), "sources_to_targets", request.apply(i), i, handler);
+            }
+        }
+        Logging.info("Calculated a " + sources.length + "x" + targets.length + " matrix in " + blocks.size()
+                + " requests in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return matrix;
+    }
+
+    /**
+     * Build a route request
+     * @param service {@code true} if the request is sent to a valhalla http service
+     * @param locations The route locations
+     * @return The request json
+     */
+    static String routeRequest(boolean service, ILatLon... locations) {
+        final JsonObjectBuilder builder = Json.createObjectBuilder();
         builder.add("costing", "auto").add("directions_options", Json.createObjectBuilder().add("units", "miles"));
-        JsonArrayBuilder locationsArray = Json.createArrayBuilder();
-        for (ILatLon location : locations) {
-            locationsArray.add(Json.createObjectBuilder().add("lat", location.lat()).add("lon", location.lon()));
+        builder.add("locations", locationsArray(locations, 0, locations.length));
+        // Protobuf responses are smaller, but they have no maneuver cost, so they are only used when asked for.
+        // The one-off valhalla_service command writes the response as text, so pbf is only used with the service.
+        if (service && "pbf".equals(Config.getPref().get("routing2.valhalla.format", "json"))) {
+            builder.add("format", "pbf").add("pbf_field_selector", Json.createObjectBuilder().add("directions", true));
+        }
+        return builder.build().toString();
+    }
+
+    private static JsonArrayBuilder locationsArray(ILatLon[] locations, int start, int end) {
+        final JsonArrayBuilder locationsArray = Json.createArrayBuilder();
+        for (int i = start; i < end; i++) {
+            locationsArray.add(Json.createObjectBuilder().add("lat", locations[i].lat())
+                    .add("lon", locations[i].lon()));
+        }
+        return locationsArray;
+    }
+
+    /**
+     * Split a matrix into blocks that valhalla accepts in one request
+     * @param sources The number of sources
+     * @param targets The number of targets
+     * @param limit The largest number of source and target pairs in one request
+     * @return The blocks, as {@code {sourceStart, sourceEnd, targetStart, targetEnd}}
+     */
+    static List<int[]> matrixBlocks(int sources, int targets, int limit) {
+        final int targetBlock = Math.min(targets, limit);
+        final int sourceBlock = Math.max(1, limit / targetBlock);
+        final List<int[]> blocks = new ArrayList<>();
+        for (int source = 0; source < sources; source += sourceBlock) {
+            for (int target = 0; target < targets; target += targetBlock) {
+                blocks.add(new int[] {source, Math.min(sources, source + sourceBlock), target,
+                        Math.min(targets, target + targetBlock)});
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Build a matrix request for one block
+     * @param sources All sources
+     * @param targets All targets
+     * @param block The block, from {@link #matrixBlocks(int, int, int)}
+     * @return The request json
+     */
+    static String matrixRequest(ILatLon[] sources, ILatLon[] targets, int[] block) {
+        return Json.createObjectBuilder().add("costing", "auto").add("units", "miles").add("verbose", true)
+                .add("sources", locationsArray(sources, block[0], block[1]))
+                .add("targets", locationsArray(targets, block[2], block[3])).build().toString();
+    }
+
+    /**
+     * Create a handler for route responses
+     * @param trips The trips to fill in; a trip stays {@code null} if there is no route for its request
+     * @return The handler
+     */
+    static ResponseHandler routesHandler(Trip[] trips) {
+        return (index, response) -> {
+            try {
+                trips[index] = parseRouteResponse(response);
+            } catch (ValhallaException valhallaException) {
+                if (valhallaException.getErrorCode() != ValhallaException.NO_PATH) {
+                    throw valhallaException;
+                }
+                Logging.debug(valhallaException);
+            }
+        };
+    }
+
+    /**
+     * Create a handler for the responses to matrix blocks
+     * @param matrix The matrix to fill in
+     * @param blocks The blocks, in request order
+     * @return The handler
+     */
+    static ResponseHandler matrixHandler(Matrix matrix, List<int[]> blocks) {
+        return (index, response) -> {
+            final int[] block = blocks.get(index);
+            try (JsonParser parser = Json.createParser(new InputStreamReader(response, StandardCharsets.UTF_8))) {
+                JsonResponseParser.parseMatrix(parser, matrix, block[0], block[2]);
+            }
+        };
+    }
+
+    /**
+     * Get the largest number of source and target pairs that valhalla accepts in one matrix request
+     * @param config The valhalla config
+     * @return The pair limit for cars
+     */
+    private static int matrixPairLimit(Path config) {
+        try (JsonReader reader = Json.createReader(Files.newBufferedReader(config))) {
+            return Math.max(1, reader.readObject().getJsonObject("service_limits").getJsonObject("auto")
+                    .getInt("max_matrix_location_pairs", DEFAULT_MATRIX_PAIRS));
+        } catch (IOException | RuntimeException exception) {
+            Logging.trace(exception);
+            return DEFAULT_MATRIX_PAIRS;
         }
-        builder.add("locations", locationsArray);
-        Process p;
-        final Path route = config.resolveSibling("route.json");
+    }
+
+    /**
+     * Handle the response to one request of a batch
+     */
+    @FunctionalInterface
+    interface ResponseHandler {
+        /**
+         * Handle a response
+         * @param index The index of the request in the batch
+         * @param response The response body
+         * @throws IOException if the response could not be read
+         * @throws ValhallaException if valhalla returned an error
+         */
+        void handle(int index, InputStream response) throws IOException, ValhallaException;
+    }
+
+    /**
+     * Send a request to a valhalla http service without waiting for the response
+     */
+    @FunctionalInterface
+    interface RequestSender {
+        /**
+         * Send a request
+         * @param token The token for cancelling the request
+         * @param action The valhalla action
+         * @param json The request body
+         * @return The response body, which is completed exceptionally if the request fails or is cancelled
+         */
+        CompletableFuture<byte[]> send(CancellationToken token, String action, String json);
+    }
+
+    /**
+     * Get the number of requests that are kept in flight to the local service
+     * @return The pipeline depth
+     */
+    private static int pipelineDepth() {
+        return Math.max(1, Config.getPref().getInt("routing2.valhalla.pipeline",
+                2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Send a batch of requests to a service, keeping several requests in flight so that the service workers stay
+     * busy while the responses are parsed. Responses are handled in request order on the calling thread.
+     * @param token The token for cancelling the batch
+     * @param sender Sends the requests to the service
+     * @param depth The largest number of requests in flight
+     * @param action The valhalla action
+     * @param count The number of requests
+     * @param request Creates the request body for an index
+     * @param handler Handles the responses
+     */
+    static void pipeline(CancellationToken token, RequestSender sender, int depth, String action, int count,
+            IntFunction<String> request, ResponseHandler handler) {
+        // Requests still in flight are aborted when the batch fails
+        final CancellationToken batchToken = token.child();
+        final Deque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>(depth);
+        int sent = 0;
         try {
-            final String json = builder.build().toString();
-            Files.writeString(route, json);
-            String[] args = new String[] { getPath("valhalla_service"), config.toString(), "route", route.toString() };
-            Logging.info("Route command: " + String.join(" ", args));
-            ProcessBuilder processBuilder = new ProcessBuilder(args);
-            processBuilder.directory(getCacheDir().toFile()); // FIXME remove
-            p = processBuilder.start();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            for (int index = 0; index < count; index++) {
+                while (sent < count && inFlight.size() < depth) {
+                    inFlight.add(sender.send(batchToken, action, request.apply(sent++)));
+                }
+                final byte[] response;
+                try {
+                    response = join(inFlight.remove());
+                } catch (CompletionException completionException) {
+                    if (completionException.getCause() instanceof IOException ioException) {
+                        throw new UncheckedIOException(ioException);
+                    }
+                    throw completionException;
+                }
+                handler.handle(index, new ByteArrayInputStream(response));
+            }
+        } catch (ValhallaException valhallaException) {
+            throw new JosmRuntimeException(valhallaException);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        } finally {
+            batchToken.cancel();
         }
-        try (BufferedReader errors = p.errorReader()) {
-            errors.lines().forEach(Logging::error);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    }
+
+    /**
+     * Send one request of a batch to a one-off {@code valhalla_service} process
+     * @param token The token for cancelling the request
+     * @param workspace The workspace to route in
+     * @param action The valhalla action
+     * @param json The request body
+     * @param index The index of the request in the batch
+     * @param handler Handles the response
+     */
+    private static void runOneOff(CancellationToken token, ValhallaWorkspace workspace, String action, String json,
+            int index, ResponseHandler handler) {
+        token.throwIfCancelled();
+        try (ValhallaCommand command = runAction(token, workspace, action, json);
+                InputStream response = command.getInputStream()) {
+            handler.handle(index, response);
+            command.waitFor();
+        } catch (ValhallaException valhallaException) {
+            throw new JosmRuntimeException(valhallaException);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    /**
+     * The workspace and tiles to route with
+     * @param workspace The workspace of the data set
+     * @param fingerprint The fingerprint of the tiles
+     */
+    private record Prepared(ValhallaWorkspace workspace, String fingerprint) {
+        /**
+         * Get the valhalla config
+         * @return The config of the workspace
+         */
+        Path config() {
+            return this.workspace.config();
+        }
+    }
+
+    /**
+     * Write the config and build the tiles for a layer. Every data set has its own workspace, so different data sets
+     * are prepared at the same time. A data set is only prepared once at a time; this matters when a background
+     * preparation and a route run at the same time.
+     * @param token The token for cancelling the preparation
+     * @param layer The layer to route on
+     * @param locations The route locations
+     * @return The workspace and the fingerprint of the tiles
+     */
+    private Prepared prepareTiles(CancellationToken token, OsmDataLayer layer, ILatLon... locations) {
+        final ValhallaWorkspace workspace;
+        final Path timezoneDatabase;
+        try {
+            workspace = ValhallaWorkspace.of(getCacheDir().resolve("workspaces"), layer.getDataSet());
+            Files.createDirectories(workspace.tileDir());
+            timezoneDatabase = getCacheDir().resolve("timezones.sqlite");
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+        workspace.prepareLock().lock();
+        // The stages have their own token, so that they can be stopped without cancelling the caller
+        final CancellationToken stageToken = token.child();
+        CompletableFuture<Path> configuration = null;
+        CompletableFuture<Void> timezones = null;
+        try {
+            // The config and the timezones don't depend on the data, so they are prepared while the data is exported
+            configuration = CompletableFuture.supplyAsync(
+                    () -> generateConfig(stageToken, workspace, timezoneDatabase), RouterExecutors.io());
+            timezones = CompletableFuture.runAsync(
+                    () -> generateTimezones(stageToken, timezoneDatabase), RouterExecutors.io());
+            final String fingerprint = updateTiles(token, workspace, configuration, timezones, layer, locations);
+            join(configuration);
+            return new Prepared(workspace, fingerprint);
+        } finally {
+            try {
+                // A stage left running would race the next preparation of this workspace for the same files
+                stageToken.cancel();
+                awaitStages(configuration, timezones);
+            } finally {
+                workspace.prepareLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait for preparation stages to stop, whether they finished, failed or were cancelled
+     * @param stages The stages; stages that were never started are {@code null}
+     */
+    private static void awaitStages(CompletableFuture<?>... stages) {
+        for (CompletableFuture<?> stage : stages) {
+            if (stage != null) {
+                stage.exceptionally(throwable -> null).join();
+            }
+        }
+    }
+
+    /**
+     * Make sure that the tiles are built from the current data
+     * @param token The token for cancelling the build
+     * @param workspace The workspace of the data set
+     * @param configuration The valhalla config, once it is written
+     * @param timezones Completes when the timezone database is ready
+     * @param layer The layer to route on
+     * @param locations The route locations
+     * @return The fingerprint of the tiles
+     */
+    private String updateTiles(CancellationToken token, ValhallaWorkspace workspace,
+            CompletableFuture<Path> configuration, CompletableFuture<Void> timezones, OsmDataLayer layer,
+            ILatLon... locations) {
+        final Path fingerprintFile = workspace.fingerprintFile();
+        final TileChanges changes = workspace.changes();
+        // A clipped export depends on the locations as well as the data
+        final boolean clipped = Config.getPref().getDouble("routing2.valhalla.export.clip", 0) > 0;
+        final String unchanged = clipped ? null : changes.unchangedFingerprint();
+        if (unchanged != null && isTileCacheCurrent(workspace, unchanged)) {
+            Logging.info("No routable data changed, reusing cached valhalla tiles");
+            return unchanged;
         }
-        final JsonObject data;
-        try (BufferedReader br = new BufferedReader(p.inputReader())) {
+        final Set<Integer> changedTiles = changes.beginExport();
+        final CompletableFuture<Path> adminExport = CompletableFuture.supplyAsync(
+                () -> writeAdminBoundaries(workspace, layer), RouterExecutors.io());
+        final Path dataPath;
+        try {
+            dataPath = writeDataSet(workspace, layer, locations);
+        } finally {
+            // The boundaries are written into the workspace, so the export must not outlive a failed data export
+            awaitStages(adminExport);
+        }
+        final Path adminPath = join(adminExport);
+        token.throwIfCancelled();
+        final String adminFingerprint = fingerprint(adminPath);
+        // The tiles include the admin information, so they have to be rebuilt when the boundaries change
+        final String fingerprint = fingerprint(dataPath, adminPath);
+        if (isTileCacheCurrent(workspace, fingerprint)) {
+            Logging.info("Routing data unchanged, reusing cached valhalla tiles");
+        } else {
+            if (changedTiles != null) {
+                Logging.info("Routable data changed in valhalla tiles " + changedTiles.stream()
+                        .map(TileChanges::tilePath).collect(Collectors.joining(", ")));
+            }
+            workspace.stopService();
+            try {
+                // Remove the old fingerprint first so that an interrupted build is not mistaken for a good one
+                Files.deleteIfExists(fingerprintFile);
+                join(configuration);
+                generateTiles(token, workspace, dataPath, adminPath, adminFingerprint, timezones);
+                generateExtract(token, workspace);
+                Files.writeString(fingerprintFile, fingerprint);
+            } catch (IOException ioException) {
+                throw new UncheckedIOException(ioException);
+            }
+        }
+        changes.exported(fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * Parse a route response. Valhalla answers in json when it could not parse the request, even if protobuf was
+     * requested, so the format is detected from the response itself.
+     * @param response The response
+     * @return The trip
+     * @throws IOException if the response could not be read
+     * @throws ValhallaException if valhalla returned an error
+     */
+    static Trip parseRouteResponse(InputStream response) throws IOException, ValhallaException {
+        final BufferedInputStream bis = new BufferedInputStream(response);
+        bis.mark(1);
+        final int first = bis.read();
+        bis.reset();
+        if (first != '{') {
+            return ProtobufResponseParser.parseRoute(bis.readAllBytes());
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(bis, StandardCharsets.UTF_8))) {
             br.mark(40);
-            try (JsonReader reader = Json.createReader(br)) {
+            try (JsonParser parser = Json.createParser(br)) {
                 try {
-                    data = reader.readObject();
+                    return JsonResponseParser.parseRoute(parser);
                 } catch (JsonParsingException jsonParsingException) {
                     br.reset();
                     Logging.error(br.lines().collect(Collectors.joining("\n")));
                     throw jsonParsingException;
                 }
             }
-        } catch (IOException ioException) {
-            throw new UncheckedIOException(ioException);
         }
-        // check if error
-        if (data.containsKey("status_code") && 200 != data.getInt("status_code")) {
-            if (data.getInt("error_code") == 442) {
-                GuiHelper.runInEDTAndWait(
-                        () -> new Notification(tr("No route found")).setIcon(JOptionPane.WARNING_MESSAGE).show());
-                return null; // No route found // FIXME: Throw RouteException with message?
-            } // FIXME: Look through https://valhalla.github.io/valhalla/api/turn-by-turn/api-reference/#http-status-codes-and-conditions for other "valid" problems.
-            throw new JosmRuntimeException(data.toString());
+    }
+
+    /**
+     * Run a request with a one-off {@code valhalla_service} process. The request is passed on the command line, so
+     * that concurrent requests don't share a file; requests that are too long for a command line are written to a
+     * temporary file of their own.
+     * @param token The token for cancelling the request
+     * @param workspace The workspace to route in
+     * @param action The valhalla action, like {@code route}
+     * @param json The request
+     * @return The running command; the response is written to its standard output
+     * @throws IOException if the process could not be started
+     */
+    private static ValhallaCommand runAction(CancellationToken token, ValhallaWorkspace workspace, String action,
+            String json) throws IOException {
+        if (json.length() <= INLINE_REQUEST_LIMIT) {
+            return runCommand(token, routeTimeout(), workspace.dir(), getPath("valhalla_service"),
+                    workspace.config().toString(), action, json);
+        }
+        final Path request = Files.createTempFile(workspace.dir(), action, ".json");
+        try {
+            Files.writeString(request, json);
+            return runCommand(token, routeTimeout(), workspace.dir(), getPath("valhalla_service"),
+                    workspace.config().toString(), action, request.toString()).deleteOnClose(request);
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(request);
+            throw exception;
+        }
+    }
+
+    /**
+     * Get the long-lived service for the prepared tiles, starting it if necessary
+     * @param prepared The prepared workspace
+     * @return The service, or {@code null} if the one-off {@code valhalla_service} command should be used instead
+     */
+    private static ValhallaService getService(Prepared prepared) {
+        if (serviceUnavailable || !Config.getPref().getBoolean("routing2.valhalla.service", true)) {
+            return null;
+        }
+        try {
+            final ValhallaService service = prepared.workspace().service(getPath("valhalla_service"),
+                    prepared.fingerprint());
+            if (SHUTDOWN_HOOK_REGISTERED.compareAndSet(false, true)) {
+                Runtime.getRuntime().addShutdownHook(new Thread(ValhallaServer::shutdown, "routing2-valhalla-stop"));
+            }
+            return service;
+        } catch (IOException ioException) {
+            // Don't keep trying; the binaries are not going to change until the next setup
+            Logging.warn("Could not start the valhalla service, falling back to one process per route");
+            Logging.warn(ioException);
+            serviceUnavailable = true;
+            return null;
         }
-        final JsonObject trip = data.getJsonObject("trip");
-        final Locations[] locations1 = trip.getJsonArray("locations").stream().map(ValhallaServer::parseLocation)
-                .filter(Objects::nonNull).toArray(Locations[]::new);
-        final Legs[] legs = trip.getJsonArray("legs").stream().map(ValhallaServer::parseLeg).toArray(Legs[]::new);
-        final Trip.Summary summary = parseSummary(trip.getJsonObject("summary"));
-        return new Trip(locations1, legs, summary);
+    }
+
+    /**
+     * Stop the long-lived valhalla services, if any are running
+     */
+    public static void shutdown() {
+        ValhallaWorkspace.stopServices();
     }
 
     private static Path getCacheDir() throws IOException {
@@ -241,7 +749,8 @@ public final class ValhallaServer implements IRouter {
         return binaryPath.toString();
     }
 
-    private static void extractBinaries(ProgressMonitor updateable, String platform, Path dir) throws IOException {
+    private static void extractBinaries(CancellationToken token, ProgressMonitor updateable, String platform, Path dir)
+            throws IOException {
         Objects.requireNonNull(dir);
         final String version = Optional.ofNullable(Routing2Plugin.getInfo().version).orElse("SNAPSHOT");
         final String linkStart = Optional.ofNullable(Routing2Plugin.getInfo().link)
@@ -254,56 +763,51 @@ public final class ValhallaServer implements IRouter {
             downloadLocation = URI.create(linkStart + "/releases/download/v" + version + "/valhalla-" + valhallaVersion
                     + '-' + platform + ".tar.gz");
         }
-        HttpClient client = HttpClient.create(downloadLocation.toURL());
-        try {
-            HttpClient.Response response = client.connect();
-            if (response.getResponseCode() != 200) {
-                Logging.error(response.fetchContent());
-                throw new IllegalStateException("Valhalla server download location returned HTTP error code "
-                        + response.getResponseCode() + ": " + response.getResponseMessage());
-            }
-            updateable.setTicks(0);
-            try (InputStream is = response.getContent();
-                    ProgressInputStream pis = new ProgressInputStream(is, response.getContentLength(), updateable);
-                    InputStream gis = new GZIPInputStream(pis);
-                    TarArchiveInputStream tais = new TarArchiveInputStream(gis)) {
-                byte[] bytes = new byte[1024];
-                TarArchiveEntry tarArchiveEntry;
-                while (!updateable.isCanceled() && (tarArchiveEntry = tais.getNextEntry()) != null) {
-                    Path saveLocation = dir.resolve(tarArchiveEntry.getName());
-                    if (tarArchiveEntry.isDirectory()) {
-                        if (!Files.isDirectory(saveLocation)) {
-                            Files.createDirectories(saveLocation);
-                        }
-                    } else {
-                        try (OutputStream fos = Files.newOutputStream(saveLocation)) {
-                            int len;
-                            while ((len = tais.read(bytes)) > 0) {
-                                fos.write(bytes, 0, len);
-                            }
-                        }
-                        if (saveLocation.getParent().endsWith("bin") && !Files.isExecutable(saveLocation)) {
-                            saveLocation.toFile().setExecutable(true, true);
-                        }
+        // The download is kept outside of the binary directory, so that it survives a failed setup
+        final Path archive = ResumableDownload.download(token, downloadLocation,
+                getCacheDir().resolve("downloads"), updateable);
+        updateable.subTask(tr("Extracting valhalla binaries"));
+        final Path root = dir.toAbsolutePath().normalize();
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(archive), EXTRACT_BUFFER_SIZE);
+                InputStream gis = new GZIPInputStream(is, EXTRACT_BUFFER_SIZE);
+                TarArchiveInputStream tais = new TarArchiveInputStream(gis)) {
+            TarArchiveEntry tarArchiveEntry;
+            while (!token.isCancelled() && (tarArchiveEntry = tais.getNextEntry()) != null) {
+                Path saveLocation = root.resolve(tarArchiveEntry.getName()).normalize();
+                if (!saveLocation.startsWith(root)) {
+                    throw new IOException("Archive entry " + tarArchiveEntry.getName() + " is outside of " + root);
+                }
+                if (tarArchiveEntry.isDirectory()) {
+                    Files.createDirectories(saveLocation);
+                } else {
+                    Files.createDirectories(saveLocation.getParent());
+                    Files.copy(tais, saveLocation, StandardCopyOption.REPLACE_EXISTING);
+                    if (saveLocation.getParent().endsWith("bin") && !Files.isExecutable(saveLocation)) {
+                        saveLocation.toFile().setExecutable(true, true);
                     }
                 }
             }
-        } finally {
-            client.disconnect();
         }
     }
 
-    private Path generateConfig() {
+    /**
+     * Write the valhalla config of a workspace, if it does not exist yet
+     * @param token The token for cancelling the command
+     * @param workspace The workspace
+     * @param timezones The shared timezone database
+     * @return The config
+     */
+    private static Path generateConfig(CancellationToken token, ValhallaWorkspace workspace, Path timezones) {
         try {
-            final Path dataDir = getCacheDir();
-            final Path config = dataDir.resolve("valhalla.json").toAbsolutePath();
+            final Path config = workspace.config().toAbsolutePath();
             if (!Files.exists(config) || Files.size(config) < 1) {
-                try (InputStream is = runCommand(getPath("valhalla_build_config"), "--mjolnir-tile-dir",
-                        dataDir.resolve("valhalla_tiles").toString(), "--mjolnir-tile-extract",
-                        dataDir.resolve("valhalla_tiles.tar").toString(), "--mjolnir-timezone",
-                        dataDir.resolve("valhalla_tiles").resolve("timezones.sqlite").toString(), "--mjolnir-admin",
-                        dataDir.resolve("valhalla_tiles").resolve("admins.sqlite").toString())) {
-                    Files.copy(is, config);
+                try (ValhallaCommand command = runCommand(token, buildTimeout(), workspace.dir(),
+                        getPath("valhalla_build_config"), "--mjolnir-tile-dir",
+                        workspace.tileDir().toAbsolutePath().toString(), "--mjolnir-tile-extract",
+                        workspace.extract().toAbsolutePath().toString(), "--mjolnir-timezone",
+                        timezones.toAbsolutePath().toString(), "--mjolnir-admin",
+                        workspace.tileDir().resolve("admins.sqlite").toAbsolutePath().toString())) {
+                    copyOutput(command, config);
                 }
             }
             return config;
@@ -312,92 +816,212 @@ public final class ValhallaServer implements IRouter {
         }
     }
 
-    private void generateTimezones(Path output) {
-        if (!Files.exists(output)) {
-            try (InputStream is = runCommand(getPath("valhalla_build_timezones"))) {
-                Files.copy(is, output);
-            } catch (IOException ioException) {
-                throw new UncheckedIOException(ioException);
+    /**
+     * Build the timezone database if it is missing or was built for another valhalla version. The database does not
+     * depend on the data, so it is shared by all workspaces.
+     * @param token The token for cancelling the build
+     * @param output The database file
+     */
+    private static void generateTimezones(CancellationToken token, Path output) {
+        if (PlatformManager.isPlatformWindows()) {
+            return; // valhalla_build_timezones is a shell script
+        }
+        final Path versionFile = output.resolveSibling(output.getFileName() + ".version");
+        // Another workspace may be building the database, and a cancelled preparation should not wait for it
+        lock(token, TIMEZONES_LOCK);
+        try {
+            if (Files.isRegularFile(output) && Files.isRegularFile(versionFile)
+                    && valhallaVersion.equals(Files.readString(versionFile))) {
+                return;
+            }
+            Files.deleteIfExists(versionFile);
+            Files.deleteIfExists(output);
+            try (ValhallaCommand command = runCommand(token, buildTimeout(), getCacheDir(),
+                    getPath("valhalla_build_timezones"))) {
+                copyOutput(command, output);
             }
+            Files.writeString(versionFile, valhallaVersion);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        } finally {
+            TIMEZONES_LOCK.unlock();
         }
     }
 
-    private void generateAdmins(Path config, Path input) {
-        // FIXME: This needs to have full boundary information. Overpass download?
-        try (InputStream is = runCommand(getPath("valhalla_build_admins"), "--config", config.toString(),
-                input.toString())) {
-            printStdOut(is);
-        } catch (IOException ioException) {
-            throw new UncheckedIOException(ioException);
+    /**
+     * Take a lock, giving up when the token is cancelled
+     * @param token The token for cancelling the wait
+     * @param lock The lock
+     * @throws CancellationException if the token was cancelled while waiting
+     */
+    private static void lock(CancellationToken token, Lock lock) {
+        try {
+            while (!lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                token.throwIfCancelled();
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw (CancellationException) new CancellationException().initCause(interruptedException);
         }
     }
 
-    private void generateTiles(Path config, Path input) {
-        try (InputStream is = runCommand(getPath("valhalla_build_tiles"), "--config", config.toString(),
-                input.toString())) {
-            printStdOut(is);
+    /**
+     * Build the admin database if the boundaries changed since it was last built
+     * @param token The token for cancelling the build
+     * @param workspace The workspace
+     * @param input The exported boundaries
+     * @param fingerprint The fingerprint of the exported boundaries
+     */
+    private static void generateAdmins(CancellationToken token, ValhallaWorkspace workspace, Path input,
+            String fingerprint) {
+        final Path fingerprintFile = workspace.tileDir().resolve("admins.sqlite.fingerprint");
+        workspace.adminsLock().lock();
+        try {
+            if (Files.isRegularFile(fingerprintFile) && fingerprint.equals(Files.readString(fingerprintFile))) {
+                Logging.info("Administrative boundaries unchanged, reusing the valhalla admin database");
+                return;
+            }
+            Files.deleteIfExists(fingerprintFile);
+            RouterExecutors.build(token, () -> runTool(token, workspace.dir(), "valhalla_build_admins", "--config",
+                    workspace.config().toString(), input.toString()));
+            Files.writeString(fingerprintFile, fingerprint);
         } catch (IOException ioException) {
             throw new UncheckedIOException(ioException);
+        } finally {
+            workspace.adminsLock().unlock();
         }
     }
 
-    private void generateExtract(Path config) {
-        try (InputStream is = runCommand(getPath("valhalla_build_extract"), "--config", config.toString(), "-v",
-                "--overwrite")) {
-            printStdOut(is);
-        } catch (IOException ioException) {
-            throw new UncheckedIOException(ioException);
+    /**
+     * Build the tiles. The admin and timezone databases are only read when the graph is enhanced, so they are built
+     * while the graph is constructed.
+     * @param token The token for cancelling the build
+     * @param workspace The workspace
+     * @param input The exported routing data
+     * @param adminInput The exported boundaries
+     * @param adminFingerprint The fingerprint of the exported boundaries
+     * @param timezones Completes when the timezone database is ready
+     */
+    private static void generateTiles(CancellationToken token, ValhallaWorkspace workspace, Path input,
+            Path adminInput, String adminFingerprint, CompletableFuture<Void> timezones) {
+        final String config = workspace.config().toString();
+        final CancellationToken stageToken = token.child();
+        final CompletableFuture<Void> admins = CompletableFuture.runAsync(
+                () -> generateAdmins(stageToken, workspace, adminInput, adminFingerprint), RouterExecutors.io());
+        try {
+            // The build slot is given up while waiting for the databases, so that another build can use it
+            RouterExecutors.build(token, () -> runTool(token, workspace.dir(), "valhalla_build_tiles", "--config",
+                    config, "--end", "build", input.toString()));
+            join(CompletableFuture.allOf(admins, timezones));
+            RouterExecutors.build(token, () -> runTool(token, workspace.dir(), "valhalla_build_tiles", "--config",
+                    config, "--start", "enhance", input.toString()));
+        } finally {
+            // The admin database is in the tile directory, so its build must not outlive a failed tile build
+            stageToken.cancel();
+            awaitStages(admins);
         }
     }
 
-    private static Trip.Summary parseSummary(JsonObject summary) {
-        return new Trip.Summary(summary.getBoolean("has_time_restrictions", false),
-                summary.getBoolean("has_toll", false), summary.getBoolean("has_highway", false),
-                summary.getBoolean("has_ferry", false), summary.getJsonNumber("min_lat").doubleValue(),
-                summary.getJsonNumber("min_lon").doubleValue(), summary.getJsonNumber("max_lat").doubleValue(),
-                summary.getJsonNumber("max_lon").doubleValue(), summary.getJsonNumber("time").doubleValue(),
-                summary.getJsonNumber("length").doubleValue(), summary.getJsonNumber("cost").doubleValue());
+    /**
+     * Write the tile extract. Tiles are usually only changed by an edit, so the extract is updated in place when
+     * possible instead of being written again.
+     * @param token The token for cancelling the build
+     * @param workspace The workspace
+     * @throws IOException if the extract could not be written
+     */
+    private static void generateExtract(CancellationToken token, ValhallaWorkspace workspace) throws IOException {
+        token.throwIfCancelled();
+        final long start = System.nanoTime();
+        final int written = TileExtract.writeOrUpdate(workspace.tileDir(), workspace.extract());
+        Logging.info("Wrote " + written + " tiles to the valhalla extract in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
     }
 
-    private static Locations parseLocation(JsonValue value) {
-        if (value instanceof JsonObject loc) {
-            return new Locations(loc.getJsonNumber("lat").doubleValue(), loc.getJsonNumber("lon").doubleValue(), null,
-                    Double.NaN, Double.NaN, null, 0L, 0, Double.NaN, // FIXME
-                    false, null, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, null, null, null, null,
-                    null, null, null, null, null, null, null);
+    /**
+     * Wait for a stage of the tile preparation
+     * @param stage The stage
+     * @param <T> The result type
+     * @return The result of the stage
+     */
+    private static <T> T join(CompletableFuture<T> stage) {
+        try {
+            return stage.join();
+        } catch (CompletionException completionException) {
+            // Keep the original exception, so that a cancellation is still recognised as one
+            if (completionException.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (completionException.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw completionException;
         }
-        return null;
     }
 
-    private static Legs parseLeg(JsonValue value) {
-        if (value instanceof JsonObject leg) {
-            final Maneuver[] maneuvers = leg.getJsonArray("maneuvers").stream().map(ValhallaServer::parseManeuver)
-                    .filter(Objects::nonNull).toArray(Maneuver[]::new);
-            final double[] shape = GooglePolyline.decode(leg.getString("shape"), 1e6);
-            final Trip.Summary summary = parseSummary(leg.getJsonObject("summary"));
-            return new Legs(maneuvers, summary, shape);
+    /**
+     * Check if the tiles from a previous run can be reused
+     * @param workspace The workspace with the current tiles
+     * @param fingerprint The fingerprint of the data we want to route on
+     * @return {@code true} if the tiles and extract were built from the same data
+     */
+    private static boolean isTileCacheCurrent(ValhallaWorkspace workspace, String fingerprint) {
+        try {
+            final Path fingerprintFile = workspace.fingerprintFile();
+            return Files.isRegularFile(fingerprintFile) && Files.isRegularFile(workspace.extract())
+                    && Files.isDirectory(workspace.tileDir())
+                    && fingerprint.equals(Files.readString(fingerprintFile));
+        } catch (IOException ioException) {
+            Logging.trace(ioException);
+            return false;
         }
-        return new Legs(new Maneuver[0], null, new double[0]);
     }
 
-    private static Maneuver parseManeuver(JsonValue value) {
-        if (value instanceof JsonObject maneuver) {
-            return new Maneuver(Maneuver.Type.values()[maneuver.getInt("type")], maneuver.getString("instruction", ""),
-                    maneuver.getString("verbal_succinct_transition_instruction", ""),
-                    maneuver.getString("verbal_pre_transition_instruction", ""),
-                    maneuver.getString("verbal_post_transition_instruction", ""),
-                    maneuver.getJsonNumber("time").doubleValue(), maneuver.getJsonNumber("length").doubleValue(),
-                    maneuver.getJsonNumber("cost").doubleValue(), maneuver.getInt("begin_shape_index"),
-                    maneuver.getInt("end_shape_index"), maneuver.getBoolean("verbal_multi_cue", false),
-                    maneuver.getString("travel_mode", ""), maneuver.getString("travel_type", ""));
+    /**
+     * Get the fingerprint for the exported data. This includes the valhalla version, since tiles from a different
+     * version may not be compatible.
+     * @param dataPaths The exported data files
+     * @return The fingerprint
+     */
+    private static String fingerprint(Path... dataPaths) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(valhallaVersion.getBytes(StandardCharsets.UTF_8));
+            for (Path path : dataPaths) {
+                try (InputStream is = new DigestInputStream(Files.newInputStream(path), digest)) {
+                    is.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+            return Utils.toHexString(digest.digest());
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw new JosmRuntimeException(noSuchAlgorithmException);
         }
-        return null;
     }
 
-    private Path writeDataSet(OsmDataLayer layer) {
+    /**
+     * Write the data that valhalla uses for building tiles. Everything that valhalla ignores, like buildings and
+     * addresses, is left out.
+     * @param workspace The workspace to write to
+     * @param layer The layer to write
+     * @param locations The route locations, used for clipping the data if {@code routing2.valhalla.export.clip} is set
+     * @return The written file
+     */
+    private static Path writeDataSet(ValhallaWorkspace workspace, OsmDataLayer layer, ILatLon... locations) {
+        // The distance around the locations to export in meters; 0 exports everything
+        final double clip = Config.getPref().getDouble("routing2.valhalla.export.clip", 0);
+        final DataSet dataSet = layer.getDataSet();
+        final OsmPbfWriter.Snapshot snapshot;
+        // Only copy under the lock; the user can keep editing while the file is written
+        dataSet.getReadLock().lock();
+        try {
+            snapshot = OsmPbfWriter.Snapshot.of(RoutablePrimitives.select(dataSet,
+                    clip > 0 && locations.length > 0 ? RoutablePrimitives.buffered(clip, locations) : null));
+        } finally {
+            dataSet.getReadLock().unlock();
+        }
         try {
-            Path saveLocation = getCacheDir().resolve(layer.getName() + ".pbf");
-            new PbfExporter().exportData(saveLocation.toFile(), layer);
+            Path saveLocation = workspace.dir().resolve("data.pbf");
+            OsmPbfWriter.write(snapshot, saveLocation);
             saveLocation.toFile().deleteOnExit(); // Not perfect, but should reduce amount of space used long-term.
             return saveLocation;
         } catch (IOException ioException) {
@@ -405,6 +1029,31 @@ public final class ValhallaServer implements IRouter {
         }
     }
 
+    /**
+     * Write the administrative boundaries that valhalla uses for the admin database
+     * @param workspace The workspace to write to
+     * @param layer The layer to write
+     * @return The written file
+     */
+    private static Path writeAdminBoundaries(ValhallaWorkspace workspace, OsmDataLayer layer) {
+        final DataSet dataSet = layer.getDataSet();
+        final OsmPbfWriter.Snapshot snapshot;
+        dataSet.getReadLock().lock();
+        try {
+            snapshot = OsmPbfWriter.Snapshot.of(RoutablePrimitives.selectAdminBoundaries(dataSet));
+        } finally {
+            dataSet.getReadLock().unlock();
+        }
+        try {
+            Path saveLocation = workspace.dir().resolve("admins.pbf");
+            OsmPbfWriter.write(snapshot, saveLocation);
+            saveLocation.toFile().deleteOnExit();
+            return saveLocation;
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
     private static void printStdOut(InputStream is) {
         try (InputStreamReader isr = new InputStreamReader(is); BufferedReader br = new BufferedReader(isr)) {
             br.lines().forEach(Logging::info);
@@ -413,28 +1062,56 @@ public final class ValhallaServer implements IRouter {
         }
     }
 
-    private static InputStream runCommand(String... args) throws IOException {
-        Logging.info("Running command: \"" + String.join(" ", args) + "\"");
-        ProcessBuilder builder = new ProcessBuilder(args);
-        builder.directory(getCacheDir().toFile());
-        Process p = builder.start();
-        if (false) {
-            try {
-                p.waitFor();
-            } catch (InterruptedException interruptedException) {
-                Logging.error(interruptedException);
-                Thread.currentThread().interrupt();
-                throw new JosmRuntimeException(interruptedException);
-            }
+    /**
+     * Run a tool that writes progress to its standard output, and wait for it to finish
+     * @param token The token for cancelling the tool
+     * @param directory The working directory, where the tool may write temporary files
+     * @param tool The name of the valhalla tool
+     * @param args The tool arguments
+     */
+    private static void runTool(CancellationToken token, Path directory, String tool, String... args) {
+        final String[] command = new String[args.length + 1];
+        System.arraycopy(args, 0, command, 1, args.length);
+        try {
+            command[0] = getPath(tool);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
         }
-        // Do not block here.
-        ForkJoinPool.commonPool().submit(() -> {
-            try (BufferedReader errors = p.errorReader()) {
-                errors.lines().forEach(Logging::error);
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
-        });
-        return p.getInputStream();
+        try (ValhallaCommand running = runCommand(token, buildTimeout(), directory, command)) {
+            printStdOut(running.getInputStream());
+            running.waitFor();
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    /**
+     * Write the output of a command to a file. The file is removed if the command fails, so that it is regenerated
+     * on the next run.
+     * @param command The command
+     * @param output The file to write to
+     * @throws IOException if the command failed or the file could not be written
+     */
+    private static void copyOutput(ValhallaCommand command, Path output) throws IOException {
+        try {
+            Files.copy(command.getInputStream(), output);
+            command.waitFor();
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(output);
+            throw exception;
+        }
+    }
+
+    private static ValhallaCommand runCommand(CancellationToken token, Duration timeout, Path directory,
+            String... args) throws IOException {
+        return ValhallaCommand.start(token, timeout, directory, args);
+    }
+
+    private static Duration buildTimeout() {
+        return Duration.ofSeconds(Config.getPref().getInt("routing2.valhalla.build.timeout", 3600));
+    }
+
+    private static Duration routeTimeout() {
+        return Duration.ofSeconds(Config.getPref().getInt("routing2.valhalla.route.timeout", 120));
     }
 }
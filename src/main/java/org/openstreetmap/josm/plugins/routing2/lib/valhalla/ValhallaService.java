@@ -0,0 +1,225 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.RouterExecutors;
+import org.openstreetmap.josm.tools.Logging;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonWriter;
+
+/**
+ * A long-lived {@code valhalla_service} process serving a single tile extract over http on the loopback interface.
+ * Starting valhalla loads the tile extract, so keeping the process warm avoids paying that cost on every route.
+ */
+final class ValhallaService implements AutoCloseable {
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+
+    private final Process process;
+    private final URI endpoint;
+    private final String fingerprint;
+    private final HttpClient client;
+
+    private ValhallaService(Process process, URI endpoint, String fingerprint) {
+        this.process = process;
+        this.endpoint = endpoint;
+        this.fingerprint = fingerprint;
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5)).executor(RouterExecutors.io()).build();
+    }
+
+    /**
+     * Start a new service
+     * @param binary The {@code valhalla_service} binary
+     * @param config The valhalla configuration file
+     * @param fingerprint The fingerprint of the tiles the service will be serving
+     * @return The started service
+     * @throws IOException if the service could not be started; this is expected for valhalla builds without services
+     */
+    static ValhallaService start(String binary, Path config, String fingerprint) throws IOException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        final Path serviceConfig = writeServiceConfig(config, port);
+        final ProcessBuilder builder = new ProcessBuilder(binary, serviceConfig.toString(),
+                Integer.toString(Runtime.getRuntime().availableProcessors()));
+        builder.directory(config.getParent().toFile());
+        builder.redirectErrorStream(true);
+        Logging.info("Starting valhalla service: \"" + String.join(" ", builder.command()) + "\"");
+        final Process process = builder.start();
+        // The service logs every request, so we must keep draining the output
+        RouterExecutors.io().execute(() -> {
+            try (BufferedReader output = process.inputReader()) {
+                output.lines().forEach(Logging::debug);
+            } catch (IOException e) {
+                Logging.trace(e);
+            }
+        });
+        final ValhallaService service = new ValhallaService(process,
+                URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ':' + port + '/'),
+                fingerprint);
+        try {
+            service.awaitReady();
+        } catch (IOException ioException) {
+            service.close();
+            throw ioException;
+        }
+        return service;
+    }
+
+    /**
+     * Write a copy of the config that listens on the specified port. The loopback and interrupt sockets are made
+     * unique as well, so that more than one service can run at a time.
+     * @param config The original config
+     * @param port The port to listen on
+     * @return The path to the new config
+     * @throws IOException if the config could not be read or written
+     */
+    private static Path writeServiceConfig(Path config, int port) throws IOException {
+        final JsonObject original;
+        try (JsonReader reader = Json.createReader(Files.newBufferedReader(config))) {
+            original = reader.readObject();
+        }
+        final String ipc = "ipc://" + config.resolveSibling("valhalla_service_" + port).toAbsolutePath();
+        final JsonObject service = Json.createObjectBuilder(original.getJsonObject("httpd").getJsonObject("service"))
+                .add("listen", "tcp://" + InetAddress.getLoopbackAddress().getHostAddress() + ':' + port)
+                .add("loopback", ipc + "_loopback").add("interrupt", ipc + "_interrupt").build();
+        final JsonObject modified = Json.createObjectBuilder(original)
+                .add("httpd", Json.createObjectBuilder(original.getJsonObject("httpd")).add("service", service))
+                .build();
+        final Path serviceConfig = config.resolveSibling("valhalla_service.json");
+        try (JsonWriter writer = Json.createWriter(Files.newBufferedWriter(serviceConfig))) {
+            writer.writeObject(modified);
+        }
+        return serviceConfig;
+    }
+
+    /**
+     * Wait for the service to answer status requests
+     * @throws IOException if the service dies or does not come up in time
+     */
+    private void awaitReady() throws IOException {
+        final long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        final HttpRequest status = HttpRequest.newBuilder(this.endpoint.resolve("status"))
+                .timeout(Duration.ofSeconds(5)).GET().build();
+        while (System.nanoTime() < deadline) {
+            if (!this.process.isAlive()) {
+                throw new IOException("valhalla_service exited with code " + this.process.exitValue()
+                        + "; it was probably built without service support");
+            }
+            try {
+                if (this.client.send(status, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (ConnectException connectException) {
+                Logging.trace(connectException);
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException(interruptedException);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(100);
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException(interruptedException);
+            }
+        }
+        throw new IOException("valhalla_service did not start within " + STARTUP_TIMEOUT);
+    }
+
+    /**
+     * Send a request to the service. This may be called from multiple threads at the same time.
+     * @param token The token for cancelling the request
+     * @param action The valhalla action, like {@code route}
+     * @param json The request body
+     * @return The response body. Valhalla errors are returned as json as well, so this does not check the status code.
+     * @throws IOException if the request could not be made
+     * @throws CancellationException if the request was cancelled
+     */
+    InputStream request(CancellationToken token, String action, String json) throws IOException {
+        token.throwIfCancelled();
+        final CompletableFuture<HttpResponse<InputStream>> response = this.client.sendAsync(httpRequest(action, json),
+                HttpResponse.BodyHandlers.ofInputStream());
+        // Cancelling the future aborts the exchange, which stops valhalla from working on the request
+        try (CancellationToken.Registration registration = token.onCancel(() -> response.cancel(true))) {
+            return response.get().body();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            response.cancel(true);
+            throw new IOException(interruptedException);
+        } catch (ExecutionException executionException) {
+            if (executionException.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(executionException.getCause());
+        }
+    }
+
+    /**
+     * Send a request to the service without waiting for the response, so that more requests can be sent while
+     * valhalla works on this one. The service handles requests on several threads.
+     * @param token The token for cancelling the request
+     * @param action The valhalla action, like {@code sources_to_targets}
+     * @param json The request body
+     * @return The response body, which is completed exceptionally if the request fails or is cancelled
+     */
+    CompletableFuture<byte[]> requestAsync(CancellationToken token, String action, String json) {
+        token.throwIfCancelled();
+        final CompletableFuture<HttpResponse<byte[]>> response = this.client.sendAsync(httpRequest(action, json),
+                HttpResponse.BodyHandlers.ofByteArray());
+        final CancellationToken.Registration registration = token.onCancel(() -> response.cancel(true));
+        return response.whenComplete((result, throwable) -> registration.close()).thenApply(HttpResponse::body);
+    }
+
+    private HttpRequest httpRequest(String action, String json) {
+        return HttpRequest.newBuilder(this.endpoint.resolve(action)).timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8)).build();
+    }
+
+    /**
+     * Check if this service can be used for the specified tiles
+     * @param tileFingerprint The fingerprint of the current tiles
+     * @return {@code true} if the service is running and serving the same tiles
+     */
+    boolean isServing(String tileFingerprint) {
+        return this.process.isAlive() && this.fingerprint.equals(tileFingerprint);
+    }
+
+    @Override
+    public void close() {
+        Logging.info("Stopping valhalla service at " + this.endpoint);
+        this.process.destroy();
+        try {
+            if (!this.process.waitFor(5, TimeUnit.SECONDS)) {
+                ValhallaCommand.destroyTree(this.process.toHandle());
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            ValhallaCommand.destroyTree(this.process.toHandle());
+        }
+    }
+}
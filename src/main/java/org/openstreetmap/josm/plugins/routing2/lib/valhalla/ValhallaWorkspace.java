@@ -0,0 +1,223 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+
+/**
+ * The config, exports, tiles and service for one data set. Every data set gets its own directory, so different data
+ * sets are prepared and routed on at the same time, and two layers with the same name don't overwrite each other.
+ * <p>
+ * Workspaces live in numbered slots. A data set takes the lowest free slot, so the first data set after a restart
+ * finds the tiles of the last session in slot {@code 0}, and reuses them if its data did not change. A slot is freed
+ * once its data set is garbage collected.
+ */
+final class ValhallaWorkspace {
+    /** The number of lock stripes for finding the workspace of a data set; a power of two */
+    private static final int STRIPES = 16;
+    /* Finding the workspace of a data set is only locked for data sets in the same stripe */
+    private static final Lock[] LOCKS = new Lock[STRIPES];
+    /* Slots are claimed with putIfAbsent, so different data sets never wait for each other here */
+    private static final ConcurrentMap<Integer, ValhallaWorkspace> WORKSPACES = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private final int slot;
+    private final Path dir;
+    /* Weak, so that a data set from a removed layer can be collected */
+    private final WeakReference<DataSet> dataSet;
+    private final TileChanges changes;
+    /* Held while the tiles are prepared */
+    private final Lock prepareLock = new ReentrantLock();
+    /* Held while the admin database is built, since a cancelled build may still be running */
+    private final Lock adminsLock = new ReentrantLock();
+    /* Held while the service is started or stopped */
+    private final Lock serviceLock = new ReentrantLock();
+    /* Guarded by serviceLock */
+    private ValhallaService service;
+
+    private ValhallaWorkspace(int slot, Path dir, DataSet dataSet) {
+        this.slot = slot;
+        this.dir = dir;
+        this.dataSet = new WeakReference<>(dataSet);
+        this.changes = new TileChanges(dataSet);
+    }
+
+    /**
+     * Get the workspace for a data set, claiming a slot if it does not have one yet
+     * @param root The directory that holds the slots
+     * @param dataSet The data set
+     * @return The workspace, which has a directory
+     * @throws IOException if the workspace directory could not be created
+     */
+    static ValhallaWorkspace of(Path root, DataSet dataSet) throws IOException {
+        final Lock lock = LOCKS[System.identityHashCode(dataSet) & (STRIPES - 1)];
+        final ValhallaWorkspace workspace;
+        lock.lock();
+        try {
+            workspace = find(root, dataSet);
+        } finally {
+            lock.unlock();
+        }
+        Files.createDirectories(workspace.dir);
+        return workspace;
+    }
+
+    /**
+     * Find or claim the workspace for a data set. Must be called with the lock of the data set stripe held, so that a
+     * data set does not claim two slots.
+     * @param root The directory that holds the slots
+     * @param dataSet The data set
+     * @return The workspace
+     */
+    private static ValhallaWorkspace find(Path root, DataSet dataSet) {
+        for (ValhallaWorkspace workspace : WORKSPACES.values()) {
+            final DataSet tracked = workspace.dataSet.get();
+            if (tracked == dataSet) {
+                return workspace;
+            } else if (tracked == null) {
+                workspace.release();
+            }
+        }
+        for (int slot = 0;; slot++) {
+            if (!WORKSPACES.containsKey(slot)) {
+                final ValhallaWorkspace workspace = new ValhallaWorkspace(slot, root.resolve(Integer.toString(slot)),
+                        dataSet);
+                if (WORKSPACES.putIfAbsent(slot, workspace) == null) {
+                    workspace.changes.register();
+                    return workspace;
+                }
+            }
+        }
+    }
+
+    /**
+     * Free the slot of a workspace whose data set is gone
+     */
+    private void release() {
+        if (WORKSPACES.remove(this.slot, this)) {
+            this.changes.unregister();
+            stopService();
+        }
+    }
+
+    /**
+     * Stop the services of all workspaces
+     */
+    static void stopServices() {
+        WORKSPACES.values().forEach(ValhallaWorkspace::stopService);
+    }
+
+    /**
+     * Get the workspace directory
+     * @return The directory, which also is the working directory of the valhalla tools for this workspace
+     */
+    Path dir() {
+        return this.dir;
+    }
+
+    /**
+     * Get the valhalla config
+     * @return The config file
+     */
+    Path config() {
+        return this.dir.resolve("valhalla.json");
+    }
+
+    /**
+     * Get the tile directory
+     * @return The directory that valhalla builds the tiles in
+     */
+    Path tileDir() {
+        return this.dir.resolve("valhalla_tiles");
+    }
+
+    /**
+     * Get the tile extract
+     * @return The extract that valhalla routes on
+     */
+    Path extract() {
+        return this.dir.resolve("valhalla_tiles.tar");
+    }
+
+    /**
+     * Get the file with the fingerprint of the data the tiles were built from
+     * @return The fingerprint file
+     */
+    Path fingerprintFile() {
+        return this.dir.resolve("valhalla_tiles.fingerprint");
+    }
+
+    /**
+     * Get the change tracker of the data set
+     * @return The tracker
+     */
+    TileChanges changes() {
+        return this.changes;
+    }
+
+    /**
+     * Get the lock that is held while the tiles are prepared
+     * @return The lock
+     */
+    Lock prepareLock() {
+        return this.prepareLock;
+    }
+
+    /**
+     * Get the lock that is held while the admin database is built
+     * @return The lock
+     */
+    Lock adminsLock() {
+        return this.adminsLock;
+    }
+
+    /**
+     * Get the long-lived service for the current tiles, starting it if necessary
+     * @param binary The {@code valhalla_service} binary
+     * @param fingerprint The fingerprint of the current tiles
+     * @return The service
+     * @throws IOException if the service could not be started
+     */
+    ValhallaService service(String binary, String fingerprint) throws IOException {
+        this.serviceLock.lock();
+        try {
+            if (this.service != null && this.service.isServing(fingerprint)) {
+                return this.service;
+            }
+            stopService();
+            this.service = ValhallaService.start(binary, config(), fingerprint);
+            return this.service;
+        } finally {
+            this.serviceLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the long-lived service, if it is running. This must be done before the extract is rewritten, since the
+     * service has the extract mapped into memory.
+     */
+    void stopService() {
+        this.serviceLock.lock();
+        try {
+            if (this.service != null) {
+                this.service.close();
+                this.service = null;
+            }
+        } finally {
+            this.serviceLock.unlock();
+        }
+    }
+}
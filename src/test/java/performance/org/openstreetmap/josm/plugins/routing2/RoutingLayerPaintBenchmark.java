@@ -0,0 +1,110 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.preferences.JosmBaseDirectories;
+import org.openstreetmap.josm.data.preferences.JosmUrls;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.SyntheticTrips;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Benchmarks for {@link RoutingLayer#paint(Graphics2D, MapView, Bounds)}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class RoutingLayerPaintBenchmark {
+    /** The number of shape points in each leg */
+    @Param({"1000", "100000", "1000000"})
+    public int points;
+
+    /** Paint the whole route, or only a small part of it */
+    @Param({"true", "false"})
+    public boolean zoomedOut;
+
+    @Param({"false", "true"})
+    public boolean highlight;
+
+    private RoutingLayer layer;
+    private MapView mapView;
+    private BufferedImage image;
+    private Graphics2D graphics;
+    private Bounds bounds;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Config.setBaseDirectoriesProvider(JosmBaseDirectories.getInstance());
+        Config.setUrlsProvider(JosmUrls.getInstance());
+        final Preferences preferences = Preferences.main();
+        preferences.enableSaveOnPut(false);
+        Config.setPreferencesInstance(preferences);
+        ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+
+        final Trip trip = SyntheticTrips.trip(2, this.points, Math.max(2, this.points / 20));
+        final Legs first = trip.legs()[0];
+        this.layer = new RoutingLayer("Benchmark", trip.locations()[0], trip.locations()[1], false);
+        this.layer.setTrip(trip);
+        if (this.highlight) {
+            this.layer.setHighlightedManeuver(first.maneuvers()[first.maneuvers().length / 2]);
+        }
+
+        this.mapView = new MapView(MainApplication.getLayerManager(), null);
+        this.mapView.setBounds(0, 0, 1024, 768);
+        final Trip.Summary summary = trip.summary();
+        if (this.zoomedOut) {
+            this.bounds = new Bounds(summary.min_lat(), summary.min_lon(), summary.max_lat(), summary.max_lon());
+        } else {
+            // Roughly 100m around the middle of the first leg
+            final double[] shape = first.shape();
+            final int middle = (shape.length / 4) * 2;
+            final LatLon center = new LatLon(shape[middle], shape[middle + 1]);
+            this.bounds = new Bounds(center.lat() - 5e-4, center.lon() - 5e-4, center.lat() + 5e-4,
+                    center.lon() + 5e-4);
+        }
+        this.mapView.zoomTo(this.bounds);
+        this.image = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_ARGB);
+        this.graphics = this.image.createGraphics();
+        this.graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.graphics.dispose();
+        this.layer.destroy();
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        this.layer.paint(this.graphics, this.mapView, this.bounds);
+        return this.image;
+    }
+}
@@ -0,0 +1,63 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link GooglePolyline}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GooglePolylineBenchmark {
+    @Param({"100", "10000", "1000000"})
+    public int points;
+
+    private double[] shape;
+    private String polyline;
+    private double[] decodeBuffer;
+    private int[] decodeE6Buffer;
+
+    @Setup
+    public void setup() {
+        this.shape = SyntheticTrips.shape(this.points, 0);
+        this.polyline = GooglePolyline.encode(this.shape);
+        this.decodeBuffer = new double[2 * this.points];
+        this.decodeE6Buffer = new int[2 * this.points];
+    }
+
+    @Benchmark
+    public String encode() {
+        return GooglePolyline.encode(this.shape);
+    }
+
+    @Benchmark
+    public double[] decode() {
+        return GooglePolyline.decode(this.polyline, 1e5);
+    }
+
+    @Benchmark
+    public int decodeIntoBuffer() {
+        return GooglePolyline.decode(this.polyline, 0, this.polyline.length(), 1e5, this.decodeBuffer, 0);
+    }
+
+    @Benchmark
+    public int decodeE6IntoBuffer() {
+        return GooglePolyline.decodeE6(this.polyline, 0, this.polyline.length(), 1e5, this.decodeE6Buffer, 0);
+    }
+}
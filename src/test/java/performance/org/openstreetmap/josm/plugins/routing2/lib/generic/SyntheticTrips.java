@@ -0,0 +1,137 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import java.util.Random;
+
+/**
+ * Generate reproducible routes for benchmarks
+ */
+public final class SyntheticTrips {
+    private static final Maneuver.Type[] TURNS = {Maneuver.Type.CONTINUE, Maneuver.Type.RIGHT, Maneuver.Type.LEFT,
+            Maneuver.Type.SLIGHT_RIGHT, Maneuver.Type.SLIGHT_LEFT};
+
+    private SyntheticTrips() {
+        // Hide constructor
+    }
+
+    /**
+     * Generate a random walk, starting in Grand Junction, Colorado
+     * @param points The number of points
+     * @param seed The random seed
+     * @return The shape, in lat/lon pairs
+     */
+    public static double[] shape(int points, long seed) {
+        final Random random = new Random(seed);
+        final double[] shape = new double[2 * points];
+        double lat = 39.0776524;
+        double lon = -108.4588285;
+        double heading = 0;
+        for (int i = 0; i < shape.length; i += 2) {
+            // Roughly 10m steps, with a gently wandering heading
+            heading += (random.nextDouble() - 0.5) * 0.5;
+            lat += Math.cos(heading) * 1e-4;
+            lon += Math.sin(heading) * 1e-4;
+            shape[i] = Math.round(lat * 1e6) / 1e6;
+            shape[i + 1] = Math.round(lon * 1e6) / 1e6;
+        }
+        return shape;
+    }
+
+    /**
+     * Encode a shape as a polyline with 1e6 precision, like valhalla responses
+     * @param shape The shape in lat/lon pairs
+     * @return The encoded polyline
+     */
+    public static String encodeE6(double[] shape) {
+        final StringBuilder sb = new StringBuilder(shape.length * 4);
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = 0; i < shape.length; i += 2) {
+            final long lat = Math.round(shape[i] * 1e6);
+            final long lon = Math.round(shape[i + 1] * 1e6);
+            encodeE6Value(sb, lat - lastLat);
+            encodeE6Value(sb, lon - lastLon);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    private static void encodeE6Value(StringBuilder sb, long value) {
+        long shifted = value < 0 ? ~(value << 1) : value << 1;
+        while (shifted >= 0x20) {
+            sb.append((char) ((0x20 | (shifted & 0x1f)) + 63));
+            shifted >>= 5;
+        }
+        sb.append((char) (shifted + 63));
+    }
+
+    /**
+     * Get the maneuver type to use for a generated maneuver
+     * @param index The index of the maneuver in the leg
+     * @param count The number of maneuvers in the leg
+     * @return The maneuver type
+     */
+    public static Maneuver.Type maneuverType(int index, int count) {
+        if (index == 0) {
+            return Maneuver.Type.START;
+        } else if (index == count - 1) {
+            return Maneuver.Type.DESTINATION;
+        }
+        return TURNS[index % TURNS.length];
+    }
+
+    /**
+     * Generate a trip
+     * @param legs The number of legs
+     * @param points The number of shape points per leg
+     * @param maneuvers The number of maneuvers per leg (at least 2)
+     * @return The trip
+     */
+    public static Trip trip(int legs, int points, int maneuvers) {
+        final Legs[] tripLegs = new Legs[legs];
+        double minLat = Double.POSITIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int leg = 0; leg < legs; leg++) {
+            final double[] shape = shape(points, leg);
+            final int count = Math.max(2, maneuvers);
+            final Maneuver[] legManeuvers = new Maneuver[count];
+            final int step = Math.max(1, (points - 1) / (count - 1));
+            for (int i = 0; i < count; i++) {
+                final int begin = Math.min(points - 1, i * step);
+                final int end = i == count - 1 ? points - 1 : Math.min(points - 1, (i + 1) * step);
+                legManeuvers[i] = new Maneuver(maneuverType(i, count), "Maneuver " + i, "", "", "", 10, 0.1, 12, begin,
+                        end, false, "drive", "car");
+            }
+            double legMinLat = Double.POSITIVE_INFINITY;
+            double legMinLon = Double.POSITIVE_INFINITY;
+            double legMaxLat = Double.NEGATIVE_INFINITY;
+            double legMaxLon = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < shape.length; i += 2) {
+                legMinLat = Math.min(legMinLat, shape[i]);
+                legMaxLat = Math.max(legMaxLat, shape[i]);
+                legMinLon = Math.min(legMinLon, shape[i + 1]);
+                legMaxLon = Math.max(legMaxLon, shape[i + 1]);
+            }
+            minLat = Math.min(minLat, legMinLat);
+            minLon = Math.min(minLon, legMinLon);
+            maxLat = Math.max(maxLat, legMaxLat);
+            maxLon = Math.max(maxLon, legMaxLon);
+            tripLegs[leg] = new Legs(legManeuvers, new Trip.Summary(false, false, false, false, legMinLat, legMinLon,
+                    legMaxLat, legMaxLon, 10.0 * count, 0.1 * count, 12.0 * count), shape);
+        }
+        final double[] first = tripLegs[0].shape();
+        final double[] last = tripLegs[legs - 1].shape();
+        return new Trip(new Locations[] {location(first[0], first[1]),
+                location(last[last.length - 2], last[last.length - 1])}, tripLegs,
+                new Trip.Summary(false, false, false, false, minLat, minLon, maxLat, maxLon, 0, 0, 0));
+    }
+
+    private static Locations location(double lat, double lon) {
+        return new Locations(lat, lon, null, Double.NaN, Double.NaN, null, 0L, 0, Double.NaN, false, null, Double.NaN,
+                Double.NaN, Double.NaN, Double.NaN, Double.NaN, null, null, null, null, null, null, null, null, null,
+                null, null);
+    }
+}
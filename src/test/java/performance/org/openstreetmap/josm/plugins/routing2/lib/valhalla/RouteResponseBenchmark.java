@@ -0,0 +1,275 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.GooglePolyline;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Locations;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.SyntheticTrips;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonParser;
+
+/**
+ * Benchmarks for parsing valhalla route responses in the json and protobuf formats. The {@code jsonBytes} and
+ * {@code protobufBytes} counters report how many bytes of each format were parsed per second, so dividing a counter
+ * by the throughput gives the response size in that format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteResponseBenchmark {
+    /** The number of maneuvers in each leg; each maneuver covers 20 shape points */
+    @Param({"10", "1000", "20000"})
+    public int maneuvers;
+
+    @Param({"1", "4"})
+    public int legs;
+
+    private byte[] json;
+    private byte[] protobuf;
+
+    /**
+     * Count the bytes parsed for each format
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long jsonBytes;
+        public long protobufBytes;
+    }
+
+    @Setup
+    public void setup() {
+        final String[] shapes = new String[this.legs];
+        for (int leg = 0; leg < this.legs; leg++) {
+            shapes[leg] = SyntheticTrips.encodeE6(SyntheticTrips.shape(this.maneuvers * 20 + 1, leg));
+        }
+        this.json = json(shapes).getBytes(StandardCharsets.UTF_8);
+        this.protobuf = protobuf(shapes);
+    }
+
+    private String json(String[] shapes) {
+        final StringBuilder sb = new StringBuilder("{\"trip\":{\"locations\":[");
+        sb.append("{\"type\":\"break\",\"lat\":39.0776524,\"lon\":-108.4588285,\"original_index\":0},");
+        sb.append("{\"type\":\"break\",\"lat\":39.0676135,\"lon\":-108.5601538,\"original_index\":1}],\"legs\":[");
+        for (int leg = 0; leg < shapes.length; leg++) {
+            sb.append(leg == 0 ? "" : ",").append("{\"maneuvers\":[");
+            for (int i = 0; i < this.maneuvers; i++) {
+                sb.append(i == 0 ? "" : ",").append("{\"type\":")
+                        .append(SyntheticTrips.maneuverType(i, this.maneuvers).ordinal())
+                        .append(",\"instruction\":\"Turn right onto Main Street.\",")
+                        .append("\"verbal_succinct_transition_instruction\":\"Turn right.\",")
+                        .append("\"verbal_pre_transition_instruction\":\"Turn right onto Main Street.\",")
+                        .append("\"verbal_post_transition_instruction\":\"Continue for 200 feet.\",")
+                        .append("\"street_names\":[\"Main Street\"],\"time\":12.345,\"length\":0.042,\"cost\":15.1,")
+                        .append("\"begin_shape_index\":").append(i * 20).append(",\"end_shape_index\":")
+                        .append(i * 20 + 20).append(",\"verbal_multi_cue\":false,\"travel_mode\":\"drive\",")
+                        .append("\"travel_type\":\"car\"}");
+            }
+            // Polylines may contain backslashes, which valhalla escapes
+            sb.append("],\"summary\":").append(jsonSummary()).append(",\"shape\":\"")
+                    .append(shapes[leg].replace("\\", "\\\\")).append("\"}");
+        }
+        sb.append("],\"summary\":").append(jsonSummary())
+                .append(",\"status_message\":\"Found route between points\",\"status\":0,\"units\":\"miles\",")
+                .append("\"language\":\"en-US\"}}");
+        return sb.toString();
+    }
+
+    private static String jsonSummary() {
+        return "{\"has_time_restrictions\":false,\"has_toll\":false,\"has_highway\":true,\"has_ferry\":false,"
+                + "\"min_lat\":39.06,\"min_lon\":-108.57,\"max_lat\":39.08,\"max_lon\":-108.45,\"time\":1234.5,"
+                + "\"length\":12.34,\"cost\":1500.2}";
+    }
+
+    private byte[] protobuf(String[] shapes) {
+        final Writer route = new Writer();
+        for (String shape : shapes) {
+            final Writer leg = new Writer()
+                    .message(4, new Writer().message(1, latLng(39.0776524, -108.4588285)))
+                    .message(4, new Writer().message(1, latLng(39.0676135, -108.5601538)))
+                    .message(5, new Writer().fixed32(1, 12.34f).fixed64(2, 1234.5)
+                            .message(3, new Writer().message(1, latLng(39.06, -108.57))
+                                    .message(2, latLng(39.08, -108.45)))
+                            .uint(7, 1));
+            for (int i = 0; i < this.maneuvers; i++) {
+                leg.message(6, new Writer().uint(1, SyntheticTrips.maneuverType(i, this.maneuvers).ordinal())
+                        .string(2, "Turn right onto Main Street.")
+                        .message(3, new Writer().string(1, "Main Street"))
+                        .fixed32(4, 0.042f).fixed64(5, 12.345).uint(8, i * 20L).uint(9, i * 20L + 20)
+                        .string(13, "Turn right onto Main Street.").string(14, "Continue for 200 feet.")
+                        .string(31, "Turn right."));
+            }
+            leg.string(7, shape);
+            route.message(1, leg);
+        }
+        return new Writer().message(3, new Writer().message(1, route)).toByteArray();
+    }
+
+    private static Writer latLng(double lat, double lon) {
+        return new Writer().fixed64(1, lat).fixed64(2, lon);
+    }
+
+    @Benchmark
+    public Trip jsonStreaming(Bytes bytes) throws ValhallaException {
+        bytes.jsonBytes += this.json.length;
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(this.json))) {
+            return JsonResponseParser.parseRoute(parser);
+        }
+    }
+
+    /**
+     * The previous implementation, which read the whole object tree and then mapped it onto the records
+     * @param bytes The byte counter
+     * @return The parsed trip
+     * @throws IOException if the response could not be read
+     */
+    @Benchmark
+    public Trip jsonTree(Bytes bytes) throws IOException {
+        bytes.jsonBytes += this.json.length;
+        final JsonObject data;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.json),
+                StandardCharsets.UTF_8)); JsonReader reader = Json.createReader(br)) {
+            data = reader.readObject();
+        }
+        final JsonObject trip = data.getJsonObject("trip");
+        final Locations[] locations = trip.getJsonArray("locations").stream().map(RouteResponseBenchmark::treeLocation)
+                .filter(Objects::nonNull).toArray(Locations[]::new);
+        final Legs[] legs = trip.getJsonArray("legs").stream().map(RouteResponseBenchmark::treeLeg)
+                .toArray(Legs[]::new);
+        return new Trip(locations, legs, treeSummary(trip.getJsonObject("summary")));
+    }
+
+    private static Trip.Summary treeSummary(JsonObject summary) {
+        return new Trip.Summary(summary.getBoolean("has_time_restrictions", false),
+                summary.getBoolean("has_toll", false), summary.getBoolean("has_highway", false),
+                summary.getBoolean("has_ferry", false), summary.getJsonNumber("min_lat").doubleValue(),
+                summary.getJsonNumber("min_lon").doubleValue(), summary.getJsonNumber("max_lat").doubleValue(),
+                summary.getJsonNumber("max_lon").doubleValue(), summary.getJsonNumber("time").doubleValue(),
+                summary.getJsonNumber("length").doubleValue(), summary.getJsonNumber("cost").doubleValue());
+    }
+
+    private static Locations treeLocation(JsonValue value) {
+        if (value instanceof JsonObject loc) {
+            return new Locations(loc.getJsonNumber("lat").doubleValue(), loc.getJsonNumber("lon").doubleValue(), null,
+                    Double.NaN, Double.NaN, null, 0L, 0, Double.NaN,
+                    false, null, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, null, null, null, null,
+                    null, null, null, null, null, null, null);
+        }
+        return null;
+    }
+
+    private static Legs treeLeg(JsonValue value) {
+        if (value instanceof JsonObject leg) {
+            final Maneuver[] maneuvers = leg.getJsonArray("maneuvers").stream()
+                    .map(RouteResponseBenchmark::treeManeuver).filter(Objects::nonNull).toArray(Maneuver[]::new);
+            final double[] shape = GooglePolyline.decode(leg.getString("shape"), 1e6);
+            return new Legs(maneuvers, treeSummary(leg.getJsonObject("summary")), shape);
+        }
+        return new Legs(new Maneuver[0], null, new double[0]);
+    }
+
+    private static Maneuver treeManeuver(JsonValue value) {
+        if (value instanceof JsonObject maneuver) {
+            return new Maneuver(Maneuver.Type.values()[maneuver.getInt("type")], maneuver.getString("instruction", ""),
+                    maneuver.getString("verbal_succinct_transition_instruction", ""),
+                    maneuver.getString("verbal_pre_transition_instruction", ""),
+                    maneuver.getString("verbal_post_transition_instruction", ""),
+                    maneuver.getJsonNumber("time").doubleValue(), maneuver.getJsonNumber("length").doubleValue(),
+                    maneuver.getJsonNumber("cost").doubleValue(), maneuver.getInt("begin_shape_index"),
+                    maneuver.getInt("end_shape_index"), maneuver.getBoolean("verbal_multi_cue", false),
+                    maneuver.getString("travel_mode", ""), maneuver.getString("travel_type", ""));
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Trip protobuf(Bytes bytes) throws IOException, ValhallaException {
+        bytes.protobufBytes += this.protobuf.length;
+        return ProtobufResponseParser.parseRoute(this.protobuf);
+    }
+
+    /**
+     * A minimal protobuf writer for building responses
+     */
+    private static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private void varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        Writer uint(int field, long value) {
+            varint((long) field << 3);
+            varint(value);
+            return this;
+        }
+
+        Writer string(int field, String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(((long) field << 3) | 2);
+            varint(bytes.length);
+            out.writeBytes(bytes);
+            return this;
+        }
+
+        Writer message(int field, Writer value) {
+            final byte[] bytes = value.toByteArray();
+            varint(((long) field << 3) | 2);
+            varint(bytes.length);
+            out.writeBytes(bytes);
+            return this;
+        }
+
+        Writer fixed64(int field, double value) {
+            varint(((long) field << 3) | 1);
+            out.writeBytes(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putDouble(value).array());
+            return this;
+        }
+
+        Writer fixed32(int field, float value) {
+            varint(((long) field << 3) | 5);
+            out.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(value).array());
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.command.AddCommand;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.MoveCommand;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+import org.openstreetmap.josm.testutils.annotations.Projection;
+
+@BasicPreferences
+@Projection
+class RerouteFilterTest {
+    private static final LatLon START = new LatLon(39.0, -108.0);
+    private static final LatLon END = new LatLon(39.1, -108.0);
+
+    private DataSet dataSet;
+    private Way road;
+    private RerouteFilter filter;
+
+    private static Trip trip() {
+        final Trip.Summary summary = new Trip.Summary(false, false, false, false, 39.0, -108.0, 39.1, -108.0, 0, 0,
+                0);
+        return new Trip(null, new Legs[] {new Legs(new Maneuver[0], summary, new double[] {39.0, -108.0, 39.1,
+                -108.0})}, summary);
+    }
+
+    private Way way(String key, String value, LatLon... coordinates) {
+        final Way way = new Way();
+        for (LatLon coordinate : coordinates) {
+            final Node node = new Node(coordinate);
+            this.dataSet.addPrimitive(node);
+            way.addNode(node);
+        }
+        way.put(key, value);
+        this.dataSet.addPrimitive(way);
+        return way;
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.dataSet = new DataSet();
+        this.road = way("highway", "residential", START, END);
+        this.filter = new RerouteFilter(this.dataSet, trip(), 500, START, END);
+    }
+
+    @Test
+    void testOtherDataSet() {
+        final DataSet other = new DataSet();
+        assertFalse(this.filter.isRelevant(new AddCommand(other, new Node(START))));
+    }
+
+    @Test
+    void testUnroutable() {
+        final Way building = way("building", "yes", new LatLon(39.05, -108.0), new LatLon(39.05, -107.9999));
+        assertFalse(this.filter.isRelevant(new ChangePropertyCommand(building, "building", "house")));
+        // A node that is not on a road
+        assertFalse(this.filter.isRelevant(new AddCommand(this.dataSet, new Node(new LatLon(39.05, -108.0)))));
+    }
+
+    @Test
+    void testFarAway() {
+        final Way farRoad = way("highway", "primary", new LatLon(40.0, -108.0), new LatLon(40.1, -108.0));
+        assertFalse(this.filter.isRelevant(new ChangePropertyCommand(farRoad, "maxspeed", "50")));
+    }
+
+    @Test
+    void testNearRoute() {
+        assertTrue(this.filter.isRelevant(new ChangePropertyCommand(this.road, "maxspeed", "50")));
+        final Way nearRoad = way("highway", "service", new LatLon(39.05, -107.999), new LatLon(39.05, -107.998));
+        assertTrue(this.filter.isRelevant(new ChangePropertyCommand(nearRoad, "oneway", "yes")));
+    }
+
+    @Test
+    void testRemovingRoutingTag() {
+        final ChangePropertyCommand command = new ChangePropertyCommand(this.road, "highway", null);
+        command.executeCommand();
+        assertTrue(this.filter.isRelevant(command));
+    }
+
+    @Test
+    void testMovedAwayNode() {
+        final Node node = this.road.firstNode();
+        final MoveCommand command = new MoveCommand(node, new LatLon(45.0, -100.0));
+        command.executeCommand();
+        assertTrue(this.filter.isRelevant(command));
+    }
+
+    @Test
+    void testRestriction() {
+        final Relation restriction = new Relation();
+        restriction.put("type", "restriction");
+        restriction.put("restriction", "no_left_turn");
+        restriction.addMember(new RelationMember("from", this.road));
+        this.dataSet.addPrimitive(restriction);
+        assertTrue(this.filter.isRelevant(new ChangePropertyCommand(Collections.singleton(restriction),
+                "restriction", "no_right_turn")));
+    }
+
+    @Test
+    void testWithoutTrip() {
+        final RerouteFilter noTrip = new RerouteFilter(this.dataSet, null, 500, START, END);
+        final Way nearStart = way("highway", "track", new LatLon(39.001, -108.0), new LatLon(39.002, -108.0));
+        assertTrue(noTrip.isRelevant(new ChangePropertyCommand(nearStart, "tracktype", "grade1")));
+        final Way farRoad = way("highway", "primary", new LatLon(40.0, -108.0), new LatLon(40.1, -108.0));
+        assertFalse(noTrip.isRelevant(new ChangePropertyCommand(farRoad, "maxspeed", "50")));
+    }
+
+    @Test
+    void testEditBetweenLocationsWithoutTrip() {
+        // After "No route found", the user connects the locations with a road that is away from both of them
+        final RerouteFilter noTrip = new RerouteFilter(this.dataSet, null, 500, START, new LatLon(39.1, -107.9));
+        final Way between = way("highway", "track", new LatLon(39.05, -107.95), new LatLon(39.06, -107.95));
+        assertTrue(noTrip.isRelevant(new ChangePropertyCommand(between, "tracktype", "grade1")));
+    }
+}
@@ -0,0 +1,151 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.testutils.annotations.Projection;
+
+@Projection
+class RouteGeometryTest {
+    private static Maneuver maneuver(Maneuver.Type type, int start, int end) {
+        return new Maneuver(type, "", "", "", "", 0, 0, 0, start, end, false, "drive", "car");
+    }
+
+    private static Trip trip(double[] shape, Maneuver... maneuvers) {
+        final Trip.Summary summary = new Trip.Summary(false, false, false, false, 0, 0, 0, 0, 0, 0, 0);
+        return new Trip(null, new Legs[] {new Legs(maneuvers, summary, shape)}, summary);
+    }
+
+    /**
+     * A zig-zag with decreasing amplitude, so each level drops some points
+     * @param points The number of points
+     * @return The shape in lat/lon pairs
+     */
+    private static double[] zigZag(int points) {
+        final double[] shape = new double[2 * points];
+        for (int i = 0; i < points; i++) {
+            shape[2 * i] = (i % 2 == 0 ? 1 : -1) * 0.1 / (1 + i % 17);
+            shape[2 * i + 1] = i * 0.001;
+        }
+        return shape;
+    }
+
+    @Test
+    void testLevels() {
+        final Maneuver middle = maneuver(Maneuver.Type.RIGHT, 500, 700);
+        final RouteGeometry geometry = new RouteGeometry(trip(zigZag(1000), maneuver(Maneuver.Type.START, 0, 500),
+                middle, maneuver(Maneuver.Type.DESTINATION, 700, 999)), ProjectionRegistry.getProjection());
+        final RouteGeometry.Leg leg = geometry.legs()[0];
+        final RouteGeometry.Level[] levels = leg.levels();
+        assertTrue(levels.length > 1);
+        final RouteGeometry.Level full = levels[levels.length - 1];
+        assertEquals(0, full.tolerance());
+        assertArrayEquals(leg.points(), full.points());
+        int[] previous = new int[0];
+        for (RouteGeometry.Level level : levels) {
+            final int[] indices = level.indices() == null ? IntStream.range(0, 1000).toArray()
+                    : level.indices();
+            // Maneuver points are always kept
+            for (int index : new int[] {0, 500, 700, 999}) {
+                assertTrue(Arrays.binarySearch(indices, index) >= 0, () -> "Missing " + index);
+            }
+            // Coarser levels are subsets of finer levels
+            for (int index : previous) {
+                assertTrue(Arrays.binarySearch(indices, index) >= 0);
+            }
+            previous = indices;
+        }
+        for (int i = 1; i < levels.length; i++) {
+            assertTrue(levels[i - 1].tolerance() > levels[i].tolerance());
+            assertTrue(levels[i - 1].points().length * 2 <= levels[i].points().length);
+        }
+    }
+
+    @Test
+    void testLevelSelection() {
+        final RouteGeometry geometry = new RouteGeometry(trip(zigZag(1000)), ProjectionRegistry.getProjection());
+        final RouteGeometry.Leg leg = geometry.legs()[0];
+        final RouteGeometry.Level[] levels = leg.levels();
+        assertEquals(levels[levels.length - 1], leg.level(0));
+        assertEquals(levels[0], leg.level(Double.POSITIVE_INFINITY));
+        for (RouteGeometry.Level level : levels) {
+            assertEquals(level, leg.level(level.tolerance()));
+        }
+    }
+
+    @Test
+    void testHighlightMapping() {
+        final Maneuver middle = maneuver(Maneuver.Type.LEFT, 123, 456);
+        final RouteGeometry geometry = new RouteGeometry(trip(zigZag(1000), maneuver(Maneuver.Type.START, 0, 123),
+                middle, maneuver(Maneuver.Type.DESTINATION, 456, 999)), ProjectionRegistry.getProjection());
+        final RouteGeometry.Range range = geometry.highlight(middle);
+        assertNotNull(range);
+        assertEquals(new RouteGeometry.Range(0, 1, 123, 456), range);
+        for (RouteGeometry.Level level : geometry.legs()[0].levels()) {
+            final double[] points = level.points();
+            final double[] original = geometry.legs()[0].points();
+            assertEquals(original[2 * 123], points[2 * level.map(range.start())]);
+            assertEquals(original[2 * 456 + 1], points[2 * level.map(range.end()) + 1]);
+        }
+        assertNull(geometry.highlight(maneuver(Maneuver.Type.LEFT, 1, 2)));
+    }
+
+    @Test
+    void testNearest() {
+        final Maneuver start = maneuver(Maneuver.Type.START, 0, 123);
+        final Maneuver middle = maneuver(Maneuver.Type.LEFT, 123, 456);
+        final Maneuver destination = maneuver(Maneuver.Type.DESTINATION, 456, 999);
+        final RouteGeometry geometry = new RouteGeometry(trip(zigZag(1000), start, middle, destination),
+                ProjectionRegistry.getProjection());
+        final double[] points = geometry.legs()[0].points();
+        // On a maneuver point
+        assertEquals(new RouteGeometry.Range(0, 1, 123, 456), geometry.nearest(points[246], points[247], 1));
+        // Halfway along a segment covered by a maneuver
+        final double east = (points[2 * 300] + points[2 * 301]) / 2;
+        final double north = (points[2 * 300 + 1] + points[2 * 301 + 1]) / 2;
+        assertEquals(new RouteGeometry.Range(0, 1, 123, 456), geometry.nearest(east, north, 1));
+        assertEquals(new RouteGeometry.Range(0, 2, 456, 999), geometry.nearest(points[1996], points[1997], 1));
+        // Nothing nearby
+        assertNull(geometry.nearest(points[0] - 1e6, points[1], 1));
+    }
+
+    @Test
+    void testEmptyShape() {
+        final Maneuver start = maneuver(Maneuver.Type.START, 0, 1);
+        final RouteGeometry geometry = new RouteGeometry(trip(new double[0], start,
+                maneuver(Maneuver.Type.DESTINATION, 1, 1)), ProjectionRegistry.getProjection());
+        final RouteGeometry.Leg leg = geometry.legs()[0];
+        assertEquals(0, leg.points().length);
+        assertEquals(0, leg.maneuvers().length);
+        assertNull(geometry.highlight(start));
+        assertEquals(0, geometry.visibleChunks(new ProjectionBounds(-1e7, -1e7, 1e7, 1e7)).length);
+        assertNotNull(new RouteGeometry(trip(null, start), ProjectionRegistry.getProjection()).legs()[0]);
+    }
+
+    @Test
+    void testVisibleChunks() {
+        final RouteGeometry geometry = new RouteGeometry(trip(zigZag(1000)), ProjectionRegistry.getProjection());
+        final double[] points = geometry.legs()[0].points();
+        final int[] chunks = geometry.visibleChunks(new ProjectionBounds(points[2 * 500], points[2 * 500 + 1],
+                points[2 * 500], points[2 * 500 + 1]));
+        assertTrue(chunks.length > 0);
+        for (int chunk : chunks) {
+            assertEquals(0, geometry.chunkLeg(chunk));
+        }
+        assertTrue(Arrays.stream(chunks)
+                .anyMatch(chunk -> geometry.chunkStart(chunk) <= 500 && geometry.chunkEnd(chunk) >= 500));
+    }
+}
@@ -0,0 +1,187 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.dataset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Costing;
+
+class RoutingGraphTest {
+    private DataSet dataSet;
+    private RoutingGraph graph;
+
+    private Node node(long id, double lat, double lon) {
+        final Node node = new Node(id, 1);
+        node.setCoor(new LatLon(lat, lon));
+        this.dataSet.addPrimitive(node);
+        return node;
+    }
+
+    private Way way(long id, String name, String highway, Node... nodes) {
+        final Way way = new Way(id, 1);
+        way.setNodes(Arrays.asList(nodes));
+        way.put("highway", highway);
+        way.put("name", name);
+        this.dataSet.addPrimitive(way);
+        return way;
+    }
+
+    private RoutingGraph.Path route(Costing costing, LatLon from, LatLon to) {
+        this.graph = RoutingGraph.build(this.dataSet);
+        final RoutingGraph.Costs costs = this.graph.costs(costing);
+        final RoutingGraph.Snap start = this.graph.snap(from, costs);
+        final RoutingGraph.Snap end = this.graph.snap(to, costs);
+        assertNotNull(start);
+        assertNotNull(end);
+        return this.graph.route(costs, start, end, CancellationToken.NONE);
+    }
+
+    /**
+     * Get the ids of the data set nodes that a path goes through
+     */
+    private long[] nodeIds(RoutingGraph.Path path) {
+        return Arrays.stream(path.nodes())
+                .mapToObj(node -> this.dataSet.getNodes().stream()
+                        .filter(n -> n.lat() == this.graph.lats[node] && n.lon() == this.graph.lons[node])
+                        .findFirst().orElseThrow())
+                .mapToLong(Node::getUniqueId).toArray();
+    }
+
+    /**
+     * A square of streets, about 1.1 km on each side, with a footway across it
+     */
+    @BeforeEach
+    void setUp() {
+        this.dataSet = new DataSet();
+        final Node southWest = node(1, 0, 0);
+        final Node southEast = node(2, 0, 0.01);
+        final Node northEast = node(3, 0.01, 0.01);
+        final Node northWest = node(4, 0.01, 0);
+        way(1, "South Street", "residential", southWest, southEast);
+        way(2, "East Street", "residential", southEast, northEast);
+        way(3, "West Street", "primary", southWest, northWest);
+        way(4, "North Street", "residential", northWest, northEast);
+        way(5, "Diagonal", "footway", southWest, northEast);
+    }
+
+    @Test
+    void testBuild() {
+        final RoutingGraph graph = RoutingGraph.build(this.dataSet);
+        assertEquals(4, graph.nodeCount());
+        assertEquals(10, graph.edgeCount());
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            assertEquals(e, graph.edgeTwin[graph.edgeTwin[e]]);
+            assertTrue(graph.firstEdge[graph.edgeSource[e]] <= e && e < graph.firstEdge[graph.edgeSource[e] + 1]);
+        }
+    }
+
+    @Test
+    void testFastestRoute() {
+        // The primary road on the west side is faster than the residential roads on the east side
+        final RoutingGraph.Path path = route(Costing.AUTO, new LatLon(-0.0001, 0.002), new LatLon(0.0101, 0.002));
+        assertNotNull(path);
+        assertArrayEquals(new long[] {1, 4}, nodeIds(path));
+        // About 200 m on residential roads at 30 km/h, and 1.1 km at 65 km/h
+        assertEquals(2 * 222 / (30 / 3.6) + 1113 / (65 / 3.6), path.cost(), 2);
+    }
+
+    @Test
+    void testOneway() {
+        this.dataSet.getWays().stream().filter(way -> "West Street".equals(way.get("name"))).findFirst()
+                .orElseThrow().put("oneway", "-1");
+        final RoutingGraph.Path path = route(Costing.AUTO, new LatLon(-0.0001, 0.002), new LatLon(0.0101, 0.002));
+        assertNotNull(path);
+        assertArrayEquals(new long[] {2, 3}, nodeIds(path));
+        // The other way around can still use West Street
+        final RoutingGraph.Path back = route(Costing.AUTO, new LatLon(0.0101, 0.002), new LatLon(-0.0001, 0.002));
+        assertNotNull(back);
+        assertArrayEquals(new long[] {4, 1}, nodeIds(back));
+    }
+
+    @Test
+    void testAccess() {
+        // Cars can't use the footway, but walking across is shorter
+        final RoutingGraph.Path walk = route(Costing.PEDESTRIAN, new LatLon(0, 0), new LatLon(0.01, 0.01));
+        assertNotNull(walk);
+        assertEquals(1574 / (5.1 / 3.6), walk.cost(), 5);
+        final RoutingGraph.Path drive = route(Costing.AUTO, new LatLon(0, 0), new LatLon(0.01, 0.01));
+        assertNotNull(drive);
+        assertTrue(drive.nodes().length > 0);
+        final Way diagonal = this.dataSet.getWays().stream().filter(way -> "Diagonal".equals(way.get("name")))
+                .findFirst().orElseThrow();
+        assertFalse(RoutingGraph.isAllowed(diagonal, RoutingGraph.Mode.DRIVE));
+        assertTrue(RoutingGraph.isAllowed(diagonal, RoutingGraph.Mode.FOOT));
+        diagonal.put("motor_vehicle", "yes");
+        assertTrue(RoutingGraph.isAllowed(diagonal, RoutingGraph.Mode.DRIVE));
+        diagonal.put("access", "no");
+        assertFalse(RoutingGraph.isAllowed(diagonal, RoutingGraph.Mode.FOOT));
+    }
+
+    @Test
+    void testSameSegment() {
+        final RoutingGraph.Path path = route(Costing.AUTO, new LatLon(0, 0.002), new LatLon(0, 0.004));
+        assertNotNull(path);
+        assertEquals(0, path.nodes().length);
+        assertEquals(222 / (30 / 3.6), path.cost(), 1);
+    }
+
+    @Test
+    void testRouteToMany() {
+        way(6, "Island", "residential", node(5, 0.05, 0.05), node(6, 0.05, 0.051));
+        this.graph = RoutingGraph.build(this.dataSet);
+        final RoutingGraph.Costs costs = this.graph.costs(Costing.AUTO);
+        final RoutingGraph.Snap from = this.graph.snap(new LatLon(-0.0001, 0.002), costs);
+        final RoutingGraph.Snap[] targets = {this.graph.snap(new LatLon(0.0101, 0.002), costs),
+            this.graph.snap(new LatLon(0, 0.004), costs), null, this.graph.snap(new LatLon(0.05, 0.0505), costs)};
+        final double[] times = new double[targets.length];
+        final double[] lengths = new double[targets.length];
+        this.graph.routeToMany(costs, from, targets, CancellationToken.NONE, times, lengths);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(this.graph.route(costs, from, targets[i], CancellationToken.NONE).cost(), times[i], 1e-9);
+        }
+        assertEquals(2 * 222 + 1113, lengths[0], 2);
+        assertEquals(222, lengths[1], 1);
+        assertTrue(Double.isNaN(times[2]));
+        assertTrue(Double.isNaN(times[3]));
+        assertTrue(Double.isNaN(lengths[3]));
+    }
+
+    @Test
+    void testNoRoute() {
+        way(6, "Island", "residential", node(5, 0.05, 0.05), node(6, 0.05, 0.051));
+        assertNull(route(Costing.AUTO, new LatLon(0, 0.002), new LatLon(0.05, 0.0505)));
+    }
+
+    @Test
+    void testDirection() {
+        final Way roundabout = way(6, "Circle", "primary", node(5, 0.05, 0.05), node(6, 0.05, 0.051));
+        roundabout.put("junction", "roundabout");
+        assertEquals(RoutingGraph.FORWARD, RoutingGraph.direction(roundabout, RoutingGraph.Mode.DRIVE));
+        assertEquals(RoutingGraph.FORWARD | RoutingGraph.BACKWARD,
+                RoutingGraph.direction(roundabout, RoutingGraph.Mode.FOOT));
+        roundabout.put("oneway:bicycle", "no");
+        assertEquals(RoutingGraph.FORWARD | RoutingGraph.BACKWARD,
+                RoutingGraph.direction(roundabout, RoutingGraph.Mode.BICYCLE));
+    }
+
+    @Test
+    void testParseMaxspeed() {
+        assertEquals(50, RoutingGraph.parseMaxspeed("50"));
+        assertEquals(48.28, RoutingGraph.parseMaxspeed("30 mph"), 0.01);
+        assertTrue(Double.isNaN(RoutingGraph.parseMaxspeed("signals")));
+        assertTrue(Double.isNaN(RoutingGraph.parseMaxspeed(null)));
+    }
+}
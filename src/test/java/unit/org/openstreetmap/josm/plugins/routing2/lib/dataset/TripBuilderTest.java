@@ -0,0 +1,70 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.dataset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Costing;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+class TripBuilderTest {
+    @Test
+    void testTurn() {
+        assertEquals(Maneuver.Type.CONTINUE, TripBuilder.turn(350, 5));
+        assertEquals(Maneuver.Type.SLIGHT_RIGHT, TripBuilder.turn(0, 30));
+        assertEquals(Maneuver.Type.RIGHT, TripBuilder.turn(0, 90));
+        assertEquals(Maneuver.Type.LEFT, TripBuilder.turn(90, 0));
+        assertEquals(Maneuver.Type.SHARP_LEFT, TripBuilder.turn(10, 220));
+        assertEquals(Maneuver.Type.U_TURN_LEFT, TripBuilder.turn(0, 180));
+    }
+
+    @Test
+    void testTrip() {
+        final DataSet dataSet = new DataSet();
+        final Node[] nodes = new Node[4];
+        final LatLon[] coordinates = {new LatLon(0, 0.01), new LatLon(0, 0), new LatLon(0.01, 0),
+                new LatLon(0.01, 0.01)};
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(i + 1L, 1);
+            nodes[i].setCoor(coordinates[i]);
+            dataSet.addPrimitive(nodes[i]);
+        }
+        final String[] names = {"South Street", "West Street", "North Street"};
+        for (int i = 0; i < names.length; i++) {
+            final Way way = new Way(i + 1L, 1);
+            way.setNodes(Arrays.asList(nodes[i], nodes[i + 1]));
+            way.put("highway", "residential");
+            way.put("name", names[i]);
+            dataSet.addPrimitive(way);
+        }
+        final RoutingGraph graph = RoutingGraph.build(dataSet);
+        final RoutingGraph.Costs costs = graph.costs(Costing.AUTO);
+        final ILatLon[] locations = {new LatLon(0, 0.005), new LatLon(0.01, 0.005)};
+        final RoutingGraph.Path path = graph.route(costs, graph.snap(locations[0], costs),
+                graph.snap(locations[1], costs), CancellationToken.NONE);
+        final Legs leg = TripBuilder.leg(graph, costs, Costing.AUTO, path);
+        assertArrayEquals(new Maneuver.Type[] {Maneuver.Type.START, Maneuver.Type.RIGHT, Maneuver.Type.RIGHT,
+                Maneuver.Type.DESTINATION}, Arrays.stream(leg.maneuvers()).map(Maneuver::type).toArray());
+        assertEquals("Drive west on South Street.", leg.maneuvers()[0].instruction());
+        assertEquals("Turn right onto West Street.", leg.maneuvers()[1].instruction());
+        assertEquals(8, leg.shape().length);
+        assertEquals(1, leg.maneuvers()[1].startShape());
+        assertEquals(2, leg.maneuvers()[1].endShape());
+        // About 2.2 km, in miles
+        final Trip trip = TripBuilder.trip(locations, new Legs[] {leg});
+        assertEquals(2226 / 1609.344, trip.summary().length(), 0.01);
+        assertEquals(path.cost(), trip.summary().time(), 1e-6);
+        assertEquals(0.01, trip.summary().max_lat(), 1e-9);
+    }
+}
@@ -33,6 +33,34 @@ class GooglePolylineTest {
         assertArrayEquals(coordinates, GooglePolyline.decode(GooglePolyline.encode(coordinates)));
     }
 
+    @Test
+    void testDecodeSlice() {
+        final String polyline = GooglePolyline.encode(38.5, -120.2, 40.7, -120.95, 43.252, -126.453);
+        // Decode a polyline embedded in a larger buffer
+        final StringBuilder response = new StringBuilder("\"shape\":\"").append(polyline).append('"');
+        final int start = response.indexOf(polyline);
+        final int end = start + polyline.length();
+        assertEquals(6, GooglePolyline.count(response, start, end));
+        final double[] destination = new double[8];
+        assertEquals(6, GooglePolyline.decode(response, start, end, 1e5, destination, 1));
+        assertArrayEquals(new double[] {0, 38.5, -120.2, 40.7, -120.95, 43.252, -126.453, 0}, destination);
+    }
+
+    @Test
+    void testDecodeE6() {
+        final String polyline = GooglePolyline.encode(38.5, -120.2, 40.7, -120.95, 43.252, -126.453);
+        assertArrayEquals(new int[] {38_500_000, -120_200_000, 40_700_000, -120_950_000, 43_252_000, -126_453_000},
+                GooglePolyline.decodeE6(polyline, 1e5));
+        assertArrayEquals(new int[] {38_500_000, -120_200_000, 40_700_000, -120_950_000, 43_252_000, -126_453_000},
+                GooglePolyline.decodeE6("_izlhA~rlgdF_{geC~ywl@_kwzCn`{nI", 1e6));
+    }
+
+    @Test
+    void testLargeValues() {
+        final double[] coordinates = {89.99999, -179.99999, -89.99999, 179.99999, 0, 0};
+        assertArrayEquals(coordinates, GooglePolyline.decode(GooglePolyline.encode(coordinates)));
+    }
+
     /**
      * Just to debug shape points
      * @param args Not read
@@ -0,0 +1,114 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.plugins.pbf.io.PbfReader;
+
+class OsmPbfWriterTest {
+    @TempDir
+    Path temporaryDirectory;
+
+    private static DataSet read(Path file) throws IOException, IllegalDataException {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            return PbfReader.parseDataSet(inputStream, NullProgressMonitor.INSTANCE);
+        }
+    }
+
+    /**
+     * Write more than one block of each type, so that block boundaries and ordering are checked
+     */
+    @Test
+    void testRoundTrip() throws IOException, IllegalDataException {
+        final DataSet dataSet = new DataSet();
+        final int wayCount = OsmPbfWriter.BLOCK_SIZE + 10;
+        Node previous = null;
+        for (int i = 0; i < wayCount + 1; i++) {
+            final Node node = new Node(i + 1L, 1);
+            node.setCoor(new LatLon(39 + i * 1e-5, -108 - i * 1e-5));
+            if (i % 100 == 0) {
+                node.put("barrier", "gate");
+            }
+            dataSet.addPrimitive(node);
+            if (previous != null) {
+                final Way way = new Way(i, 1);
+                way.setNodes(List.of(previous, node));
+                way.put("highway", i % 2 == 0 ? "residential" : "service");
+                way.put("name", "Street " + i);
+                dataSet.addPrimitive(way);
+            }
+            previous = node;
+        }
+        for (int i = 1; i <= OsmPbfWriter.BLOCK_SIZE + 1; i++) {
+            final Way from = (Way) dataSet.getPrimitiveById(i, OsmPrimitiveType.WAY);
+            final Way to = (Way) dataSet.getPrimitiveById(i + 1, OsmPrimitiveType.WAY);
+            final Relation restriction = new Relation(i, 1);
+            restriction.put("type", "restriction");
+            restriction.put("restriction", "no_u_turn");
+            restriction.addMember(new RelationMember("from", from));
+            restriction.addMember(new RelationMember("via", from.lastNode()));
+            restriction.addMember(new RelationMember("to", to));
+            dataSet.addPrimitive(restriction);
+        }
+
+        final Path file = this.temporaryDirectory.resolve("round-trip.osm.pbf");
+        OsmPbfWriter.write(OsmPbfWriter.Snapshot.of(RoutablePrimitives.select(dataSet, null)), file,
+                new ForkJoinPool(3));
+        final DataSet read = read(file);
+
+        assertEquals(dataSet.getNodes().size(), read.getNodes().size());
+        assertEquals(dataSet.getWays().size(), read.getWays().size());
+        assertEquals(dataSet.getRelations().size(), read.getRelations().size());
+        for (Node node : dataSet.getNodes()) {
+            final Node readNode = (Node) read.getPrimitiveById(node.getPrimitiveId());
+            assertNotNull(readNode);
+            assertEquals(node.lat(), readNode.lat(), 1e-7);
+            assertEquals(node.lon(), readNode.lon(), 1e-7);
+            assertEquals(node.getKeys(), readNode.getKeys());
+        }
+        for (Way way : dataSet.getWays()) {
+            final Way readWay = (Way) read.getPrimitiveById(way.getPrimitiveId());
+            assertNotNull(readWay);
+            assertEquals(way.getKeys(), readWay.getKeys());
+            assertEquals(way.firstNode().getUniqueId(), readWay.firstNode().getUniqueId());
+            assertEquals(way.lastNode().getUniqueId(), readWay.lastNode().getUniqueId());
+        }
+        for (Relation relation : dataSet.getRelations()) {
+            final Relation readRelation = (Relation) read.getPrimitiveById(relation.getPrimitiveId());
+            assertNotNull(readRelation);
+            assertEquals(relation.getKeys(), readRelation.getKeys());
+            assertEquals(relation.getMembersCount(), readRelation.getMembersCount());
+            for (int i = 0; i < relation.getMembersCount(); i++) {
+                assertEquals(relation.getMember(i).getRole(), readRelation.getMember(i).getRole());
+                assertEquals(relation.getMember(i).getType(), readRelation.getMember(i).getType());
+                assertEquals(relation.getMember(i).getUniqueId(), readRelation.getMember(i).getUniqueId());
+            }
+        }
+    }
+
+    @Test
+    void testEmpty() throws IOException, IllegalDataException {
+        final Path file = this.temporaryDirectory.resolve("empty.osm.pbf");
+        OsmPbfWriter.write(OsmPbfWriter.Snapshot.of(RoutablePrimitives.select(new DataSet(), null)), file);
+        assertEquals(0, read(file).allPrimitives().size());
+    }
+}
@@ -0,0 +1,72 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PackedRTreeTest {
+    @Test
+    void testEmpty() {
+        final PackedRTree tree = new PackedRTree(new double[0]);
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.search(-1, -1, 1, 1).length);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 16, 17, 255, 256, 257, 10_000})
+    void testSearch(int count) {
+        final Random random = new Random(count);
+        final double[] items = new double[4 * count];
+        for (int i = 0; i < count; i++) {
+            final double x = random.nextDouble() * 100;
+            final double y = random.nextDouble() * 100;
+            items[4 * i] = x;
+            items[4 * i + 1] = y;
+            items[4 * i + 2] = x + random.nextDouble();
+            items[4 * i + 3] = y + random.nextDouble();
+        }
+        final PackedRTree tree = new PackedRTree(items);
+        assertEquals(count, tree.size());
+        for (int query = 0; query < 100; query++) {
+            final double minX = random.nextDouble() * 100;
+            final double minY = random.nextDouble() * 100;
+            final double maxX = minX + random.nextDouble() * 10;
+            final double maxY = minY + random.nextDouble() * 10;
+            final int[] expected = IntStream.range(0, count)
+                    .filter(i -> items[4 * i] <= maxX && items[4 * i + 1] <= maxY && items[4 * i + 2] >= minX
+                            && items[4 * i + 3] >= minY)
+                    .toArray();
+            final int[] actual = tree.search(minX, minY, maxX, maxY);
+            Arrays.sort(actual);
+            assertArrayEquals(expected, actual);
+        }
+        assertEquals(count, tree.search(-1, -1, 200, 200).length);
+    }
+
+    @Test
+    void testPoints() {
+        // Degenerate boxes and identical coordinates must still be found
+        final double[] items = new double[4 * 100];
+        for (int i = 0; i < 100; i++) {
+            Arrays.fill(items, 4 * i, 4 * i + 4, i % 10);
+        }
+        final PackedRTree tree = new PackedRTree(items);
+        final int[] found = tree.search(5, 5, 5, 5);
+        Arrays.sort(found);
+        assertArrayEquals(IntStream.range(0, 100).filter(i -> i % 10 == 5).toArray(), found);
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new PackedRTree(new double[3]));
+    }
+}
@@ -0,0 +1,134 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+
+class RoutablePrimitivesTest {
+    private DataSet dataSet;
+
+    private Way way(long id, String key, String value, LatLon... coordinates) {
+        final Way way = new Way(id, 1);
+        for (int i = 0; i < coordinates.length; i++) {
+            final Node node = new Node(id * 100 + i, 1);
+            node.setCoor(coordinates[i]);
+            this.dataSet.addPrimitive(node);
+            way.addNode(node);
+        }
+        way.put(key, value);
+        this.dataSet.addPrimitive(way);
+        return way;
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.dataSet = new DataSet();
+    }
+
+    @Test
+    void testIsRoutable() {
+        final Way road = way(1, "highway", "residential", new LatLon(0, 0), new LatLon(0, 0.001));
+        final Way proposed = way(2, "highway", "proposed", new LatLon(0, 0), new LatLon(0, 0.001));
+        final Way ferry = way(3, "route", "ferry", new LatLon(0, 0), new LatLon(0, 0.001));
+        final Way building = way(4, "building", "yes", new LatLon(0, 0), new LatLon(0, 0.001));
+        assertTrue(RoutablePrimitives.isRoutable(road));
+        assertFalse(RoutablePrimitives.isRoutable(proposed));
+        assertTrue(RoutablePrimitives.isRoutable(ferry));
+        assertFalse(RoutablePrimitives.isRoutable(building));
+        assertTrue(RoutablePrimitives.isRoutable(road.firstNode()));
+        assertFalse(RoutablePrimitives.isRoutable(building.firstNode()));
+        assertTrue(RoutablePrimitives.isRoutingKey("highway"));
+        assertTrue(RoutablePrimitives.isRoutingKey("restriction:hgv"));
+        assertFalse(RoutablePrimitives.isRoutingKey("name"));
+    }
+
+    @Test
+    void testSelect() {
+        final Way road = way(1, "highway", "residential", new LatLon(0, 0), new LatLon(0, 0.001));
+        final Way other = way(2, "highway", "service", new LatLon(0.001, 0.001));
+        other.addNode(0, road.lastNode());
+        final Way building = way(3, "building", "yes", new LatLon(0.0005, 0), new LatLon(0.0005, 0.0005));
+        road.lastNode().put("barrier", "gate");
+        final Relation restriction = new Relation(1, 1);
+        restriction.put("type", "restriction");
+        restriction.put("restriction", "no_left_turn");
+        restriction.addMember(new RelationMember("from", road));
+        restriction.addMember(new RelationMember("via", road.lastNode()));
+        restriction.addMember(new RelationMember("to", other));
+        this.dataSet.addPrimitive(restriction);
+        final Relation multipolygon = new Relation(2, 1);
+        multipolygon.put("type", "multipolygon");
+        this.dataSet.addPrimitive(multipolygon);
+
+        final RoutablePrimitives.Selection selection = RoutablePrimitives.select(this.dataSet, null);
+        assertEquals(List.of(road, other), selection.ways());
+        // The shared node is only selected once
+        assertEquals(3, selection.nodes().size());
+        assertTrue(selection.nodes().containsAll(road.getNodes()));
+        assertFalse(selection.nodes().contains(building.firstNode()));
+        assertEquals(List.of(restriction), selection.relations());
+    }
+
+    @Test
+    void testSelectClipped() {
+        final Way near = way(1, "highway", "residential", new LatLon(0, 0), new LatLon(0, 0.001));
+        final Way far = way(2, "highway", "residential", new LatLon(1, 1), new LatLon(1, 1.001));
+        final Relation restriction = new Relation(1, 1);
+        restriction.put("type", "restriction");
+        restriction.addMember(new RelationMember("from", far));
+        this.dataSet.addPrimitive(restriction);
+
+        final BBox clip = RoutablePrimitives.buffered(100, new LatLon(0, 0));
+        final RoutablePrimitives.Selection selection = RoutablePrimitives.select(this.dataSet, clip);
+        assertEquals(List.of(near), selection.ways());
+        // Restrictions with members outside of the clip area are dropped
+        assertTrue(selection.relations().isEmpty());
+    }
+
+    @Test
+    void testSelectAdminBoundaries() {
+        final Way outline = way(1, "boundary", "administrative", new LatLon(0, 0), new LatLon(0, 1), new LatLon(1, 1),
+                new LatLon(0, 0));
+        way(2, "highway", "residential", new LatLon(0, 0), new LatLon(0, 0.001));
+        final Relation boundary = new Relation(1, 1);
+        boundary.put("type", "boundary");
+        boundary.put("boundary", "administrative");
+        boundary.put("admin_level", "2");
+        boundary.addMember(new RelationMember("outer", outline));
+        this.dataSet.addPrimitive(boundary);
+        final Relation park = new Relation(2, 1);
+        park.put("type", "boundary");
+        park.put("boundary", "national_park");
+        this.dataSet.addPrimitive(park);
+
+        final RoutablePrimitives.Selection selection = RoutablePrimitives.selectAdminBoundaries(this.dataSet);
+        assertEquals(1, selection.relations().size());
+        assertSame(boundary, selection.relations().get(0));
+        assertEquals(1, selection.ways().size());
+        assertEquals(3, selection.nodes().size());
+    }
+
+    @Test
+    void testBuffered() {
+        final BBox bbox = RoutablePrimitives.buffered(111_320, new LatLon(0, 0), new LatLon(1, 1));
+        assertEquals(-1, bbox.getBottomRightLat(), 1e-9);
+        assertEquals(2, bbox.getTopLeftLat(), 1e-9);
+        // Longitude degrees are shorter away from the equator
+        assertTrue(bbox.getTopLeftLon() < -1);
+        assertTrue(bbox.getBottomRightLon() > 2);
+    }
+}
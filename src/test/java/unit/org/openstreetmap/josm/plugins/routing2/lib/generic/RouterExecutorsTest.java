@@ -0,0 +1,87 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.generic;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+
+@BasicPreferences
+class RouterExecutorsTest {
+    @Test
+    void testSupplyAsync() {
+        final CompletableFuture<Boolean> virtual = RouterExecutors.supplyAsync(CancellationToken.NONE,
+                token -> Thread.currentThread().isVirtual());
+        assertTrue(virtual.join());
+        final CompletableFuture<Object> failed = RouterExecutors.supplyAsync(CancellationToken.NONE, token -> {
+            throw new TripException("No trip");
+        });
+        assertTrue(failed.handle((result, throwable) -> throwable instanceof TripException).join());
+    }
+
+    @Test
+    void testCancelFuture() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CompletableFuture<Object> future = RouterExecutors.supplyAsync(CancellationToken.NONE, token -> {
+            token.onCancel(stopped::countDown);
+            started.countDown();
+            return stopped.await(1, TimeUnit.MINUTES);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        future.cancel(false);
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testCancelToken() throws InterruptedException {
+        final CancellationToken parent = new CancellationToken();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<Object> future = RouterExecutors.supplyAsync(parent, token -> {
+            release.await();
+            token.throwIfCancelled();
+            return null;
+        });
+        parent.cancel();
+        // The result is only complete once the task has stopped
+        assertFalse(future.isDone());
+        release.countDown();
+        assertThrows(CancellationException.class, future::join);
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    void testBuild() throws InterruptedException {
+        final int parallelism = Config.getPref().getInt("routing2.build.parallelism", 2);
+        final CountDownLatch started = new CountDownLatch(parallelism);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < parallelism; i++) {
+            RouterExecutors.io().execute(() -> RouterExecutors.build(CancellationToken.NONE, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // Every slot is taken, so a cancelled build gives up instead of waiting
+            final CancellationToken cancelled = new CancellationToken();
+            cancelled.cancel();
+            assertThrows(CancellationException.class, () -> RouterExecutors.build(cancelled, () -> { }));
+        } finally {
+            release.countDown();
+        }
+        assertTrue(RouterExecutors.build(CancellationToken.NONE, () -> true));
+    }
+}
@@ -0,0 +1,105 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Matrix;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+import jakarta.json.Json;
+import jakarta.json.stream.JsonParser;
+
+class JsonResponseParserTest {
+    private static final String ROUTE = """
+            {"trip":{"locations":[{"type":"break","lat":38.5,"lon":-120.2,"original_index":0},
+            {"type":"break","lat":43.252,"lon":-126.453,"original_index":1}],
+            "legs":[{"maneuvers":[{"type":1,"instruction":"Drive north.","time":10.5,"length":0.2,"cost":12,
+            "begin_shape_index":0,"end_shape_index":1,"verbal_multi_cue":true,"travel_mode":"drive",
+            "travel_type":"car","street_names":["Main Street"],"lanes":[{"directions":4}]},
+            {"type":4,"instruction":"You have arrived.","time":0,"length":0,"cost":0,"begin_shape_index":2,
+            "end_shape_index":2,"travel_mode":"drive","travel_type":"car"}],
+            "summary":{"has_time_restrictions":false,"has_toll":true,"min_lat":38.5,"min_lon":-126.453,
+            "max_lat":43.252,"max_lon":-120.2,"time":10.5,"length":0.2,"cost":12},
+            "shape":"_izlhA~rlgdF_{geC~ywl@_kwzCn`{nI"}],
+            "summary":{"has_time_restrictions":false,"has_toll":true,"min_lat":38.5,"min_lon":-126.453,
+            "max_lat":43.252,"max_lon":-120.2,"time":10.5,"length":0.2,"cost":12},
+            "status_message":"Found route between points","status":0,"units":"miles","language":"en-US"}}
+            """;
+
+    private static Trip parse(String json) throws ValhallaException {
+        try (JsonParser parser = Json.createParser(new StringReader(json))) {
+            return JsonResponseParser.parseRoute(parser);
+        }
+    }
+
+    @Test
+    void testRoute() throws ValhallaException {
+        final Trip trip = parse(ROUTE);
+        assertEquals(2, trip.locations().length);
+        assertEquals(43.252, trip.locations()[1].lat());
+        assertEquals(1, trip.legs().length);
+        final Legs leg = trip.legs()[0];
+        assertArrayEquals(new double[] {38.5, -120.2, 40.7, -120.95, 43.252, -126.453}, leg.shape(), 1e-9);
+        assertEquals(2, leg.maneuvers().length);
+        final Maneuver start = leg.maneuvers()[0];
+        assertAll(() -> assertEquals(Maneuver.Type.START, start.type()),
+                () -> assertEquals("Drive north.", start.instruction()),
+                () -> assertEquals(10.5, start.time()),
+                () -> assertEquals(12, start.cost()),
+                () -> assertEquals(1, start.endShape()),
+                () -> assertTrue(start.multiVerbalCue()),
+                () -> assertEquals("car", start.travelType()));
+        assertEquals(Maneuver.Type.DESTINATION, leg.maneuvers()[1].type());
+        assertTrue(trip.summary().has_toll());
+        assertEquals(-126.453, trip.summary().min_lon());
+    }
+
+    @Test
+    void testNoRoute() {
+        final ValhallaException exception = assertThrows(ValhallaException.class, () -> parse(
+                "{\"error_code\":442,\"error\":\"No path could be found for input\",\"status_code\":400,\"status\":\"Bad Request\"}"));
+        assertEquals(ValhallaException.NO_PATH, exception.getErrorCode());
+        assertEquals(400, exception.getStatusCode());
+    }
+
+    @Test
+    void testMatrix() throws ValhallaException {
+        final Matrix matrix = Matrix.unreachable(3, 2);
+        // The second block of a 3x2 matrix with two sources per request
+        final String json = """
+                {"sources_to_targets":[[{"distance":1.5,"time":120,"to_index":0,"from_index":0},
+                {"distance":null,"time":null,"to_index":1,"from_index":0}]],
+                "sources":[{"lat":1,"lon":2}],"targets":[{"lat":3,"lon":4},{"lat":5,"lon":6}],"units":"miles"}
+                """;
+        try (JsonParser parser = Json.createParser(new StringReader(json))) {
+            JsonResponseParser.parseMatrix(parser, matrix, 2, 0);
+        }
+        assertEquals(120, matrix.time(2, 0));
+        assertEquals(1.5, matrix.length(2, 0));
+        assertTrue(Double.isNaN(matrix.time(2, 1)));
+        assertTrue(Double.isNaN(matrix.time(0, 0)));
+        // The concise format
+        try (JsonParser parser = Json.createParser(new StringReader(
+                "{\"sources_to_targets\":{\"durations\":[[10,20]],\"distances\":[[0.1,null]]}}"))) {
+            JsonResponseParser.parseMatrix(parser, matrix, 0, 0);
+        }
+        assertEquals(20, matrix.time(0, 1));
+        assertEquals(0.1, matrix.length(0, 0));
+        assertTrue(Double.isNaN(matrix.length(0, 1)));
+    }
+
+    @Test
+    void testUnknownManeuverType() {
+        assertEquals(Maneuver.Type.NONE, JsonResponseParser.maneuverType(Maneuver.Type.values().length));
+        assertEquals(Maneuver.Type.NONE, JsonResponseParser.maneuverType(-1));
+    }
+}
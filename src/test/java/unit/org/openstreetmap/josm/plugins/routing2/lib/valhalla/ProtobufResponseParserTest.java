@@ -0,0 +1,125 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Legs;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Maneuver;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+
+class ProtobufResponseParserTest {
+    /**
+     * A minimal protobuf writer for building test messages
+     */
+    private static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private void varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        Writer uint(int field, long value) {
+            varint((long) field << 3);
+            varint(value);
+            return this;
+        }
+
+        Writer bytes(int field, byte[] value) {
+            varint(((long) field << 3) | 2);
+            varint(value.length);
+            out.writeBytes(value);
+            return this;
+        }
+
+        Writer string(int field, String value) {
+            return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Writer message(int field, Writer value) {
+            return bytes(field, value.toByteArray());
+        }
+
+        Writer fixed64(int field, double value) {
+            varint(((long) field << 3) | 1);
+            out.writeBytes(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putDouble(value).array());
+            return this;
+        }
+
+        Writer fixed32(int field, float value) {
+            varint(((long) field << 3) | 5);
+            out.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(value).array());
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    private static Writer latLng(double lat, double lon) {
+        return new Writer().fixed64(1, lat).fixed64(2, lon);
+    }
+
+    @Test
+    void testRoute() throws IOException, ValhallaException {
+        final Writer summary = new Writer().fixed32(1, 0.25f).fixed64(2, 10.5)
+                .message(3, new Writer().message(1, latLng(38.5, -126.453)).message(2, latLng(43.252, -120.2)))
+                .uint(5, 1);
+        final Writer leg = new Writer().message(4, new Writer().message(1, latLng(38.5, -120.2)))
+                .message(4, new Writer().message(1, latLng(43.252, -126.453))).message(5, summary)
+                .message(6, new Writer().uint(1, 1).string(2, "Drive north.").fixed32(4, 0.25f).fixed64(5, 10.5)
+                        .uint(9, 1).uint(17, 1).uint(18, 2).uint(21, 3))
+                .message(6, new Writer().uint(1, 4).string(2, "You have arrived.").uint(8, 2).uint(9, 2))
+                .string(7, "_izlhA~rlgdF_{geC~ywl@_kwzCn`{nI");
+        final Writer api = new Writer().message(3, new Writer().message(1, new Writer().message(1, leg)));
+
+        final Trip trip = ProtobufResponseParser.parseRoute(api.toByteArray());
+        assertEquals(2, trip.locations().length);
+        assertEquals(-126.453, trip.locations()[1].lon());
+        assertEquals(1, trip.legs().length);
+        final Legs parsed = trip.legs()[0];
+        assertArrayEquals(new double[] {38.5, -120.2, 40.7, -120.95, 43.252, -126.453}, parsed.shape(), 1e-9);
+        final Maneuver start = parsed.maneuvers()[0];
+        assertAll(() -> assertEquals(Maneuver.Type.START, start.type()),
+                () -> assertEquals("Drive north.", start.instruction()),
+                () -> assertEquals(10.5, start.time()),
+                () -> assertEquals(0.25, start.length()),
+                () -> assertEquals(0, start.startShape()),
+                () -> assertEquals(1, start.endShape()),
+                () -> assertTrue(start.multiVerbalCue()),
+                () -> assertEquals("bicycle", start.travelMode()),
+                () -> assertEquals("mountain", start.travelType()));
+        final Maneuver destination = parsed.maneuvers()[1];
+        assertAll(() -> assertEquals(Maneuver.Type.DESTINATION, destination.type()),
+                () -> assertEquals("drive", destination.travelMode()),
+                () -> assertEquals("car", destination.travelType()));
+        assertAll(() -> assertTrue(trip.summary().has_toll()),
+                () -> assertEquals(10.5, trip.summary().time()),
+                () -> assertEquals(38.5, trip.summary().min_lat()),
+                () -> assertEquals(-120.2, trip.summary().max_lon()));
+    }
+
+    @Test
+    void testError() {
+        final Writer api = new Writer().message(20, new Writer().message(2,
+                new Writer().string(1, "No path could be found for input").uint(2, 442)));
+        final ValhallaException exception = assertThrows(ValhallaException.class,
+                () -> ProtobufResponseParser.parseRoute(api.toByteArray()));
+        assertEquals(ValhallaException.NO_PATH, exception.getErrorCode());
+    }
+}
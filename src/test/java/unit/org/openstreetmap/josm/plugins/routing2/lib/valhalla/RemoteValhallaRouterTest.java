@@ -0,0 +1,154 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.exactly;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.ILatLon;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Matrix;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.Trip;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+import org.openstreetmap.josm.testutils.annotations.HTTP;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
+import com.github.tomakehurst.wiremock.junit5.WireMockTest;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+@BasicPreferences
+@HTTP
+@WireMockTest
+class RemoteValhallaRouterTest {
+    private static final String ROUTE = """
+            {"trip":{"locations":[{"type":"break","lat":1,"lon":2},{"type":"break","lat":3,"lon":4}],
+            "legs":[{"maneuvers":[{"type":1,"instruction":"Drive north.","time":10.5,"length":0.2,"cost":12,
+            "begin_shape_index":0,"end_shape_index":1}],
+            "summary":{"time":10.5,"length":0.2,"cost":12},"shape":"_izlhA~rlgdF_{geC~ywl@_kwzCn`{nI"}],
+            "summary":{"has_toll":true,"time":10.5,"length":0.2,"cost":12},
+            "status_message":"Found route between points","status":0,"units":"miles","language":"en-US"}}
+            """;
+    private static final String NO_ROUTE =
+            "{\"error_code\":442,\"error\":\"No path could be found for input\",\"status_code\":400}";
+    private static final ILatLon[] LOCATIONS = {new LatLon(1, 2), new LatLon(3, 4)};
+    private RemoteValhallaRouter router;
+
+    @BeforeEach
+    void setUp(WireMockRuntimeInfo wireMockRuntimeInfo) {
+        this.router = new RemoteValhallaRouter(URI.create(wireMockRuntimeInfo.getHttpBaseUrl()));
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void testRoute() {
+        stubFor(post(urlEqualTo("/route")).willReturn(aResponse().withHeader("Content-Type", "application/json")
+                .withBody(ROUTE)));
+        assertFalse(this.router.shouldPerformSetup());
+        final Trip trip = this.router.generateRoute(CancellationToken.NONE, null, LOCATIONS);
+        assertNotNull(trip);
+        assertEquals(3, trip.locations()[1].lat());
+        assertEquals(10.5, trip.summary().time());
+        verify(postRequestedFor(urlEqualTo("/route")).withHeader("Accept-Encoding", containing("gzip"))
+                .withRequestBody(containing("\"locations\"")));
+    }
+
+    @Test
+    void testGzip() throws IOException {
+        stubFor(post(urlEqualTo("/route")).willReturn(aResponse().withHeader("Content-Type", "application/json")
+                .withHeader("Content-Encoding", "gzip").withBody(gzip(ROUTE))));
+        final Trip trip = this.router.generateRoute(CancellationToken.NONE, null, LOCATIONS);
+        assertNotNull(trip);
+        assertTrue(trip.summary().has_toll());
+    }
+
+    @Test
+    void testRetry() {
+        stubFor(post(urlEqualTo("/route")).inScenario("overload").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(429).withHeader("Retry-After", "0")).willSetStateTo("busy"));
+        stubFor(post(urlEqualTo("/route")).inScenario("overload").whenScenarioStateIs("busy")
+                .willReturn(aResponse().withStatus(503)).willSetStateTo("ready"));
+        stubFor(post(urlEqualTo("/route")).inScenario("overload").whenScenarioStateIs("ready")
+                .willReturn(aResponse().withHeader("Content-Type", "application/json").withBody(ROUTE)));
+        assertNotNull(this.router.generateRoute(CancellationToken.NONE, null, LOCATIONS));
+        verify(exactly(3), postRequestedFor(urlEqualTo("/route")));
+    }
+
+    @Test
+    void testGiveUp() {
+        Config.getPref().putInt("routing2.valhalla.remote.attempts", 2);
+        stubFor(post(urlEqualTo("/route")).willReturn(aResponse().withStatus(503).withBody("Service Unavailable")));
+        assertThrows(UncheckedIOException.class,
+                () -> this.router.generateRoute(CancellationToken.NONE, null, LOCATIONS));
+        verify(exactly(2), postRequestedFor(urlEqualTo("/route")));
+    }
+
+    @Test
+    void testBatch() {
+        stubFor(post(urlEqualTo("/route")).willReturn(aResponse().withHeader("Content-Type", "application/json")
+                .withBody(ROUTE)));
+        // The error is json with a 400 status, like valhalla reports it
+        stubFor(post(urlEqualTo("/route")).withRequestBody(containing("\"lat\":5.0"))
+                .willReturn(aResponse().withStatus(400).withHeader("Content-Type", "application/json")
+                        .withBody(NO_ROUTE)));
+        final List<ILatLon[]> requests = List.of(LOCATIONS, new ILatLon[] {new LatLon(1, 2), new LatLon(5, 6)},
+                LOCATIONS);
+        final Trip[] trips = this.router.generateRoutes(CancellationToken.NONE, null, requests);
+        assertEquals(3, trips.length);
+        assertNotNull(trips[0]);
+        assertNull(trips[1]);
+        assertNotNull(trips[2]);
+    }
+
+    @Test
+    void testMatrix() {
+        Config.getPref().putInt("routing2.valhalla.remote.matrix_pairs", 2);
+        // Each source gets its own block, and the server returns the same block for both
+        stubFor(post(urlEqualTo("/sources_to_targets")).willReturn(aResponse()
+                .withHeader("Content-Type", "application/json").withBody("""
+                        {"sources_to_targets":[[{"distance":1.5,"time":120,"to_index":0,"from_index":0},
+                        {"distance":null,"time":null,"to_index":1,"from_index":0}]],"units":"miles"}
+                        """)));
+        final Matrix matrix = this.router.generateMatrix(CancellationToken.NONE, null, LOCATIONS, LOCATIONS);
+        verify(exactly(2), postRequestedFor(urlEqualTo("/sources_to_targets")));
+        assertEquals(120, matrix.time(0, 0));
+        assertEquals(1.5, matrix.length(1, 0));
+        assertTrue(Double.isNaN(matrix.time(1, 1)));
+    }
+
+    @Test
+    void testParseRetryAfter() {
+        assertEquals(2000, RemoteValhallaRouter.parseRetryAfter("2"));
+        assertEquals(0, RemoteValhallaRouter.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(0, RemoteValhallaRouter.parseRetryAfter("soon"));
+    }
+}
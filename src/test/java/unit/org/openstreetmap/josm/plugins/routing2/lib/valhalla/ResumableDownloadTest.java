@@ -0,0 +1,109 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.plugins.routing2.lib.generic.CancellationToken;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+import org.openstreetmap.josm.testutils.annotations.HTTP;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
+import com.github.tomakehurst.wiremock.junit5.WireMockTest;
+
+@BasicPreferences
+@HTTP
+@WireMockTest
+class ResumableDownloadTest {
+    private static final String NAME = "valhalla-3.5.1-Linux.tar.gz";
+    @TempDir
+    Path cacheDirectory;
+    private byte[] content;
+    private URI source;
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    private Path download() throws IOException {
+        return ResumableDownload.download(CancellationToken.NONE, this.source, this.cacheDirectory,
+                NullProgressMonitor.INSTANCE);
+    }
+
+    @BeforeEach
+    void setUp(WireMockRuntimeInfo wireMockRuntimeInfo) throws NoSuchAlgorithmException {
+        this.content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(this.content);
+        this.source = URI.create(wireMockRuntimeInfo.getHttpBaseUrl() + "/download/" + NAME);
+        stubFor(get(urlEqualTo("/download/" + NAME)).willReturn(aResponse().withBody(this.content)));
+        stubFor(get(urlEqualTo("/download/" + NAME + ".sha256"))
+                .willReturn(aResponse().withBody(sha256(this.content) + "  " + NAME + "\n")));
+    }
+
+    @Test
+    void testDownload() throws IOException, NoSuchAlgorithmException {
+        final Path downloaded = download();
+        assertArrayEquals(this.content, Files.readAllBytes(downloaded));
+        assertEquals(sha256(this.content), Files.readString(this.cacheDirectory.resolve(NAME + ".sha256")));
+        assertFalse(Files.exists(this.cacheDirectory.resolve(NAME + ".part")));
+        // The second call only checks the published checksum
+        assertEquals(downloaded, download());
+        verify(1, getRequestedFor(urlEqualTo("/download/" + NAME)));
+    }
+
+    @Test
+    void testResume() throws IOException {
+        final int existing = 1024 * 1024;
+        Files.write(this.cacheDirectory.resolve(NAME + ".part"), Arrays.copyOf(this.content, existing));
+        stubFor(get(urlEqualTo("/download/" + NAME)).withHeader("Range", equalTo("bytes=" + existing + "-"))
+                .willReturn(aResponse().withStatus(206)
+                        .withBody(Arrays.copyOfRange(this.content, existing, this.content.length))));
+        assertArrayEquals(this.content, Files.readAllBytes(download()));
+    }
+
+    @Test
+    void testRangeIgnored() throws IOException {
+        // Servers that don't support ranges send the whole file
+        Files.write(this.cacheDirectory.resolve(NAME + ".part"), new byte[] {1, 2, 3});
+        assertArrayEquals(this.content, Files.readAllBytes(download()));
+    }
+
+    @Test
+    void testChecksumMismatch() {
+        stubFor(get(urlEqualTo("/download/" + NAME + ".sha256"))
+                .willReturn(aResponse().withBody("0".repeat(64) + "  " + NAME + "\n")));
+        assertThrows(IOException.class, this::download);
+        assertFalse(Files.exists(this.cacheDirectory.resolve(NAME)));
+        // The next attempt has to start over
+        assertFalse(Files.exists(this.cacheDirectory.resolve(NAME + ".part")));
+    }
+
+    @Test
+    void testNoChecksum() throws IOException {
+        stubFor(get(urlEqualTo("/download/" + NAME + ".sha256")).willReturn(aResponse().withStatus(404)));
+        assertArrayEquals(this.content, Files.readAllBytes(download()));
+    }
+}
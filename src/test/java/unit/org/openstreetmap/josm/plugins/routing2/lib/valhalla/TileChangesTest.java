@@ -0,0 +1,110 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+
+class TileChangesTest {
+    private DataSet dataSet;
+    private Way road;
+    private TileChanges changes;
+
+    private Way way(String key, String value, LatLon... coordinates) {
+        final Way way = new Way();
+        for (LatLon coordinate : coordinates) {
+            final Node node = new Node(coordinate);
+            this.dataSet.addPrimitive(node);
+            way.addNode(node);
+        }
+        way.put(key, value);
+        this.dataSet.addPrimitive(way);
+        return way;
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.dataSet = new DataSet();
+        this.road = way("highway", "residential", new LatLon(39.1, -108.1), new LatLon(39.1, -107.9));
+        this.changes = new TileChanges(this.dataSet);
+        this.changes.register();
+        // Nothing is known about the data before the first export
+        assertNull(this.changes.unchangedFingerprint());
+        assertNull(this.changes.beginExport());
+        this.changes.exported("fingerprint");
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.changes.unregister();
+    }
+
+    @Test
+    void testTileId() {
+        // Row 516 (39 to 39.25 degrees), column 285 (-108.75 to -108.5 degrees)
+        assertEquals(743325, TileChanges.tileId(new LatLon(39.1, -108.6)));
+        assertEquals("2/000/743/325.gph", TileChanges.tilePath(743325));
+        assertEquals(0, TileChanges.tileId(new LatLon(-90, -180)));
+        assertEquals(720 * 1440 - 1, TileChanges.tileId(new LatLon(90, 180)));
+    }
+
+    @Test
+    void testUnroutableChanges() {
+        final Way building = way("building", "yes", new LatLon(39.1, -108.0), new LatLon(39.11, -108.0));
+        building.put("name", "Town hall");
+        assertEquals("fingerprint", this.changes.unchangedFingerprint());
+    }
+
+    @Test
+    void testRoutableTagChange() {
+        this.road.put("maxspeed", "30");
+        assertNull(this.changes.unchangedFingerprint());
+        // The road crosses the -108 meridian, which is a tile boundary
+        assertEquals(Set.of(TileChanges.tileId(this.road.firstNode()), TileChanges.tileId(this.road.lastNode())),
+                this.changes.beginExport());
+    }
+
+    @Test
+    void testRemovingRoutingTag() {
+        this.road.remove("highway");
+        assertNull(this.changes.unchangedFingerprint());
+    }
+
+    @Test
+    void testNodeMoved() {
+        this.road.firstNode().setCoor(new LatLon(39.2, -108.1));
+        assertEquals(2, this.changes.beginExport().size());
+    }
+
+    @Test
+    void testAdminBoundaryChange() {
+        final Relation boundary = new Relation();
+        boundary.put("type", "boundary");
+        boundary.put("boundary", "administrative");
+        this.dataSet.addPrimitive(boundary);
+        assertEquals("fingerprint", this.changes.unchangedFingerprint());
+        boundary.put("admin_level", "4");
+        // The admin database has to be rebuilt, which changes all tiles
+        assertNull(this.changes.beginExport());
+    }
+
+    @Test
+    void testChangesDuringExport() {
+        this.road.put("maxspeed", "30");
+        this.changes.beginExport();
+        this.road.put("maxspeed", "40");
+        this.changes.exported("newer");
+        // The export may have missed the second change
+        assertNull(this.changes.unchangedFingerprint());
+    }
+}
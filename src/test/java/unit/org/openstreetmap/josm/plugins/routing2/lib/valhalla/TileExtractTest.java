@@ -0,0 +1,117 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TileExtractTest {
+    @TempDir
+    Path temporaryDirectory;
+    private Path tiles;
+    private Path extract;
+
+    private void tile(String name, int size, int seed) throws IOException {
+        final byte[] data = new byte[size];
+        Arrays.fill(data, (byte) seed);
+        final Path path = this.tiles.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, data);
+    }
+
+    /**
+     * Read the extract the way a tar reader does, and check that the index points at the tile data
+     * @return The tile contents by name
+     */
+    private Map<String, byte[]> read() throws IOException {
+        final Map<String, byte[]> members = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(Files.newInputStream(this.extract))) {
+            for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+                members.put(entry.getName(), tar.readAllBytes());
+            }
+        }
+        final byte[] index = members.remove(TileExtract.INDEX_NAME);
+        assertNotNull(index);
+        assertEquals(TileExtract.INDEX_ENTRY_SIZE * members.size(), index.length);
+        final byte[] file = Files.readAllBytes(this.extract);
+        final ByteBuffer entries = ByteBuffer.wrap(index).order(ByteOrder.LITTLE_ENDIAN);
+        for (Map.Entry<String, byte[]> member : members.entrySet()) {
+            final int offset = (int) entries.getLong();
+            assertEquals(TileExtract.graphId(member.getKey()), entries.getInt());
+            final int size = entries.getInt();
+            assertArrayEquals(member.getValue(), Arrays.copyOfRange(file, offset, offset + size), member.getKey());
+        }
+        return members;
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.tiles = this.temporaryDirectory.resolve("valhalla_tiles");
+        this.extract = this.temporaryDirectory.resolve("valhalla_tiles.tar");
+        tile("0/003/015.gph", 1000, 1);
+        tile("1/047/701.gph", 512, 2);
+        tile("2/000/743/325.gph", 700, 3);
+        Files.writeString(this.tiles.resolve("timezones.sqlite"), "not a tile");
+        assertEquals(3, TileExtract.writeOrUpdate(this.tiles, this.extract));
+    }
+
+    @Test
+    void testGraphId() {
+        assertEquals(2 | (743325L << 3), TileExtract.graphId("2/000/743/325.gph"));
+        assertEquals(3015L << 3, TileExtract.graphId("0/003/015.gph"));
+    }
+
+    @Test
+    void testWrite() throws IOException {
+        final Map<String, byte[]> members = read();
+        assertEquals(3, members.size());
+        assertEquals(700, members.get("2/000/743/325.gph").length);
+        assertEquals(0, Files.size(this.extract) % (20 * TileExtract.BLOCK_SIZE));
+    }
+
+    @Test
+    void testUnchanged() throws IOException {
+        assertEquals(0, TileExtract.writeOrUpdate(this.tiles, this.extract));
+        assertEquals(3, read().size());
+    }
+
+    @Test
+    void testUpdateInPlace() throws IOException {
+        final long size = Files.size(this.extract);
+        tile("0/003/015.gph", 1000, 4);
+        // Still fits in the two blocks of the member
+        tile("2/000/743/325.gph", 1024, 5);
+        assertEquals(2, TileExtract.writeOrUpdate(this.tiles, this.extract));
+        assertEquals(size, Files.size(this.extract));
+        final Map<String, byte[]> members = read();
+        assertEquals(4, members.get("0/003/015.gph")[0]);
+        assertEquals(1024, members.get("2/000/743/325.gph").length);
+    }
+
+    @Test
+    void testRewrite() throws IOException {
+        // Needs a block more than the member has
+        tile("1/047/701.gph", 513, 6);
+        assertEquals(3, TileExtract.writeOrUpdate(this.tiles, this.extract));
+        assertEquals(513, read().get("1/047/701.gph").length);
+        // A new tile needs a larger index
+        tile("2/000/743/326.gph", 10, 7);
+        assertEquals(4, TileExtract.writeOrUpdate(this.tiles, this.extract));
+        assertEquals(4, read().size());
+    }
+}
@@ -0,0 +1,71 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.routing2.lib.valhalla;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.data.osm.DataSet;
+
+class ValhallaWorkspaceTest {
+    @TempDir
+    Path root;
+
+    @Test
+    void testOf() throws IOException {
+        final DataSet first = new DataSet();
+        final DataSet second = new DataSet();
+        final ValhallaWorkspace workspace = ValhallaWorkspace.of(this.root, first);
+        assertSame(workspace, ValhallaWorkspace.of(this.root, first));
+        assertTrue(Files.isDirectory(workspace.dir()));
+        assertEquals(workspace.dir(), workspace.config().getParent());
+        assertEquals(workspace.dir(), workspace.extract().getParent());
+        // Layers with the same name still get their own files
+        final ValhallaWorkspace other = ValhallaWorkspace.of(this.root, second);
+        assertNotEquals(workspace.dir(), other.dir());
+        assertSame(other.changes(), ValhallaWorkspace.of(this.root, second).changes());
+    }
+
+    @Test
+    void testConcurrentClaims() throws Exception {
+        final DataSet[] dataSets = new DataSet[32];
+        for (int i = 0; i < dataSets.length; i++) {
+            dataSets[i] = new DataSet();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Callable<ValhallaWorkspace>> claims = new ArrayList<>();
+            for (int i = 0; i < 4 * dataSets.length; i++) {
+                final DataSet dataSet = dataSets[i % dataSets.length];
+                claims.add(() -> ValhallaWorkspace.of(this.root, dataSet));
+            }
+            final List<ValhallaWorkspace> workspaces = new ArrayList<>();
+            for (Future<ValhallaWorkspace> future : executor.invokeAll(claims)) {
+                workspaces.add(future.get());
+            }
+            // Every data set has exactly one workspace, and no two data sets share a directory
+            for (int i = 0; i < workspaces.size(); i++) {
+                assertSame(workspaces.get(i % dataSets.length), workspaces.get(i));
+            }
+            final Set<Path> dirs = workspaces.stream().map(ValhallaWorkspace::dir).collect(Collectors.toSet());
+            assertEquals(dataSets.length, dirs.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}